@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Aggregates values for high-frequency measurements, such as frame times,
+ * into a count, sum, minimum, maximum, and a histogram, instead of recording
+ * an event for each value.
+ * <p>
+ * A single summary event named after the aggregator will be recorded at the
+ * end of each aggregation window, with the {@code aggregateCount},
+ * {@code aggregateSum}, {@code aggregateMin}, {@code aggregateMax}, and
+ * {@code aggregateHistogram} parameters. The histogram holds the number of
+ * values which were less than or equal to each of the bounds in
+ * {@link #BOUNDS}, and which did not fit in a previous bucket, with the
+ * last bucket holding the values greater than all the bounds.
+ * <p>
+ * Recording values does not take any locks, so it is safe to call from
+ * any thread.
+ *
+ * @see DDNA#aggregate(String)
+ */
+public final class Aggregator {
+
+    /**
+     * Upper bounds of the histogram buckets.
+     */
+    public static final double[] BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    final String name;
+
+    private final AtomicReference<Window> window =
+            new AtomicReference<>(new Window());
+
+    Aggregator(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value the value
+     *
+     * @return this {@link Aggregator} instance
+     */
+    public Aggregator record(double value) {
+        if (Double.isNaN(value)) return this;
+
+        final Window current = enter();
+        try {
+            current.buckets.incrementAndGet(bucket(value));
+            add(current.sum, value);
+            lower(current.min, value);
+            raise(current.max, value);
+            current.count.incrementAndGet();
+        } finally {
+            current.writers.decrementAndGet();
+        }
+
+        return this;
+    }
+
+    /**
+     * Takes a snapshot of the values recorded so far.
+     */
+    Snapshot snapshot() {
+        return window.get().snapshot();
+    }
+
+    /**
+     * Takes a snapshot of the values recorded so far, and starts over.
+     * <p>
+     * Values which are recorded concurrently end up in either this or the
+     * next snapshot, as the window is swapped out in one go and only read
+     * once the values being recorded into it have been.
+     */
+    Snapshot reset() {
+        final Window previous = window.getAndSet(new Window());
+        while (previous.writers.get() > 0) {
+            Thread.yield();
+        }
+
+        return previous.snapshot();
+    }
+
+    /**
+     * Adds the values from a {@code snapshot}, such as one restored from
+     * a checkpoint.
+     */
+    void merge(Snapshot snapshot) {
+        final Window current = enter();
+        try {
+            for (int i = 0;
+                 i < current.buckets.length() && i < snapshot.buckets.length;
+                 i++) {
+                current.buckets.addAndGet(i, snapshot.buckets[i]);
+            }
+            add(current.sum, snapshot.sum);
+            lower(current.min, snapshot.min);
+            raise(current.max, snapshot.max);
+            current.count.addAndGet(snapshot.count);
+        } finally {
+            current.writers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Registers as writing into the current window, which will not be
+     * read by {@link #reset()} until {@link Window#writers} gets
+     * decremented again.
+     */
+    private Window enter() {
+        while (true) {
+            final Window current = window.get();
+            current.writers.incrementAndGet();
+            // not swapped out before registering, so reset will wait for it
+            if (window.get() == current) return current;
+
+            current.writers.decrementAndGet();
+        }
+    }
+
+    private static int bucket(double value) {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            if (value <= BOUNDS[i]) return i;
+        }
+        return BOUNDS.length;
+    }
+
+    private static void add(AtomicLong target, double value) {
+        long current;
+        do {
+            current = target.get();
+        } while (!target.compareAndSet(current, bits(value(current) + value)));
+    }
+
+    private static void lower(AtomicLong target, double value) {
+        long current;
+        do {
+            current = target.get();
+            if (value(current) <= value) return;
+        } while (!target.compareAndSet(current, bits(value)));
+    }
+
+    private static void raise(AtomicLong target, double value) {
+        long current;
+        do {
+            current = target.get();
+            if (value(current) >= value) return;
+        } while (!target.compareAndSet(current, bits(value)));
+    }
+
+    private static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    private static double value(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Values recorded within a window, which gets swapped out as a whole.
+     */
+    private static final class Window {
+
+        final AtomicInteger writers = new AtomicInteger();
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sum = new AtomicLong(bits(0));
+        final AtomicLong min = new AtomicLong(bits(Double.POSITIVE_INFINITY));
+        final AtomicLong max = new AtomicLong(bits(Double.NEGATIVE_INFINITY));
+        final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+
+        Snapshot snapshot() {
+            // count first, as it gets updated after the other values
+            final long count = this.count.get();
+            final long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+
+            return new Snapshot(
+                    count,
+                    value(sum.get()),
+                    value(min.get()),
+                    value(max.get()),
+                    counts);
+        }
+    }
+
+    static final class Snapshot {
+
+        final long count;
+        final double sum;
+        final double min;
+        final double max;
+        final long[] buckets;
+
+        Snapshot(long count, double sum, double min, double max, long[] buckets) {
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+            this.buckets = buckets;
+        }
+
+        Event toEvent(String name) {
+            final JSONArray histogram = new JSONArray();
+            for (final long bucket : buckets) {
+                histogram.put(bucket);
+            }
+
+            final Event event = new Event(name)
+                    .putParam("aggregateCount", count)
+                    .putParam("aggregateHistogram", histogram);
+            // parameters cannot hold infinity, such as from infinite values
+            if (isFinite(sum)) event.putParam("aggregateSum", sum);
+            if (isFinite(min)) event.putParam("aggregateMin", min);
+            if (isFinite(max)) event.putParam("aggregateMax", max);
+
+            return event;
+        }
+
+        JSONObject toJson() throws JSONException {
+            final JSONArray histogram = new JSONArray();
+            for (final long bucket : buckets) {
+                histogram.put(bucket);
+            }
+
+            final JSONObject json = new JSONObject()
+                    .put("count", count)
+                    .put("buckets", histogram);
+            // JSON has no representation for infinity
+            if (isFinite(sum)) json.put("sum", sum);
+            if (isFinite(min)) json.put("min", min);
+            if (isFinite(max)) json.put("max", max);
+
+            return json;
+        }
+
+        private static boolean isFinite(double value) {
+            return !Double.isInfinite(value) && !Double.isNaN(value);
+        }
+
+        static Snapshot fromJson(JSONObject json) throws JSONException {
+            final JSONArray histogram = json.getJSONArray("buckets");
+            final long[] buckets = new long[histogram.length()];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = histogram.getLong(i);
+            }
+
+            return new Snapshot(
+                    json.getLong("count"),
+                    json.optDouble("sum", 0),
+                    json.optDouble("min", Double.POSITIVE_INFINITY),
+                    json.optDouble("max", Double.NEGATIVE_INFINITY),
+                    buckets);
+        }
+    }
+}
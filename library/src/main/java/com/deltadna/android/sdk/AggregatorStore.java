@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the {@link Aggregator}s, periodically checkpointing their
+ * values to disk so that they survive the process being killed, and
+ * recording a summary event for each of them at the end of every window.
+ */
+final class AggregatorStore {
+
+    private static final String TAG = BuildConfig.LOG_TAG
+            + ' '
+            + AggregatorStore.class.getSimpleName();
+
+    private final ScheduledExecutorService executor =
+            new ScheduledThreadPoolExecutor(1, r -> new Thread(
+                    r,
+                    AggregatorStore.class.getSimpleName()));
+
+    private final ConcurrentMap<String, Aggregator> aggregators =
+            new ConcurrentHashMap<>();
+
+    private final DDNA ddna;
+    private final File checkpoint;
+
+    @Nullable
+    private ScheduledFuture<?> windowTask;
+    @Nullable
+    private ScheduledFuture<?> checkpointTask;
+
+    private boolean restored;
+
+    AggregatorStore(DDNA ddna, File checkpoint) {
+        this.ddna = ddna;
+        this.checkpoint = checkpoint;
+
+        executor.execute(this::restore);
+    }
+
+    Aggregator get(String name) {
+        final Aggregator aggregator = aggregators.get(name);
+        if (aggregator != null) return aggregator;
+
+        final Aggregator created = new Aggregator(name);
+        final Aggregator existing = aggregators.putIfAbsent(name, created);
+        return (existing != null) ? existing : created;
+    }
+
+    /**
+     * Starts recording the summary events and checkpointing.
+     *
+     * @param window    length of the aggregation window in seconds
+     * @param interval  checkpoint interval in seconds
+     */
+    synchronized void start(int window, int interval) {
+        cancelTasks();
+
+        windowTask = executor.scheduleWithFixedDelay(
+                this::flush,
+                window,
+                window,
+                TimeUnit.SECONDS);
+        if (interval > 0) {
+            checkpointTask = executor.scheduleWithFixedDelay(
+                    this::checkpoint,
+                    interval,
+                    interval,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the scheduled work, recording the summary events for the
+     * values aggregated so far on the executor as the checkpoint gets
+     * written to disk.
+     * <p>
+     * Blocks until the summary events have been recorded, so that they
+     * make it into the events sent when stopping the SDK.
+     */
+    void stop() {
+        final Future<?> flushed;
+        // not waiting while holding the lock, as flush needs it
+        synchronized (this) {
+            cancelTasks();
+            flushed = executor.submit(this::flush);
+        }
+
+        try {
+            flushed.get();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted waiting for summaries", e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Failed recording summaries", e);
+        }
+    }
+
+    /**
+     * Records a summary event for each aggregator which has values, and
+     * starts a new window.
+     */
+    synchronized void flush() {
+        restore();
+
+        for (final Aggregator aggregator : aggregators.values()) {
+            final Aggregator.Snapshot snapshot = aggregator.reset();
+            if (snapshot.count > 0) {
+                Log.v(TAG, "Recording summary for " + aggregator.name);
+                // an exception would cancel the scheduled task for good
+                try {
+                    ddna.recordEvent(snapshot.toEvent(aggregator.name));
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed recording summary for " + aggregator.name, e);
+                }
+            }
+        }
+
+        checkpoint();
+    }
+
+    /**
+     * Discards all the aggregated values.
+     */
+    synchronized void clear() {
+        restored = true;
+
+        for (final Aggregator aggregator : aggregators.values()) {
+            aggregator.reset();
+        }
+
+        if (checkpoint.exists() && !checkpoint.delete()) {
+            Log.w(TAG, "Failed to delete " + checkpoint);
+        }
+    }
+
+    synchronized void checkpoint() {
+        restore();
+
+        final JSONObject json = new JSONObject();
+        try {
+            for (final Aggregator aggregator : aggregators.values()) {
+                final Aggregator.Snapshot snapshot = aggregator.snapshot();
+                if (snapshot.count > 0) {
+                    json.put(aggregator.name, snapshot.toJson());
+                }
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed serialising aggregates", e);
+            return;
+        }
+
+        if (json.length() == 0) {
+            if (checkpoint.exists() && !checkpoint.delete()) {
+                Log.w(TAG, "Failed to delete " + checkpoint);
+            }
+            return;
+        }
+
+        final File parent = checkpoint.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            Log.w(TAG, "Failed to create " + parent);
+            return;
+        }
+
+        // write to the side and rename so a crash leaves the old checkpoint
+        final File temp = new File(parent, checkpoint.getName() + ".tmp");
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            os.write(json.toString().getBytes("UTF-8"));
+            os.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed writing checkpoint", e);
+            return;
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing stream for " + temp, e);
+                }
+            }
+        }
+
+        if (!temp.renameTo(checkpoint)) {
+            Log.w(TAG, "Failed to rename " + temp);
+        }
+    }
+
+    /**
+     * Restores the checkpoint from a previous run, unless it has been
+     * restored already, before it gets overwritten.
+     */
+    private synchronized void restore() {
+        if (restored) return;
+        restored = true;
+
+        if (!checkpoint.exists()) return;
+
+        final StringBuilder builder = new StringBuilder();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(checkpoint),
+                    "UTF-8"));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                builder.append(line);
+            }
+
+            final JSONObject json = new JSONObject(builder.toString());
+            final Iterator<String> names = json.keys();
+            while (names.hasNext()) {
+                final String name = names.next();
+                get(name).merge(Aggregator.Snapshot.fromJson(
+                        json.getJSONObject(name)));
+            }
+
+            Log.d(TAG, "Restored " + json.length() + " aggregates");
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed restoring checkpoint", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing stream for " + checkpoint, e);
+                }
+            }
+        }
+    }
+
+    private void cancelTasks() {
+        if (windowTask != null) {
+            windowTask.cancel(false);
+            windowTask = null;
+        }
+        if (checkpointTask != null) {
+            checkpointTask.cancel(false);
+            checkpointTask = null;
+        }
+    }
+}
@@ -28,7 +28,9 @@ import com.deltadna.android.sdk.helpers.Settings;
 import com.deltadna.android.sdk.listeners.EngageListener;
 import com.deltadna.android.sdk.listeners.EventListener;
 import com.deltadna.android.sdk.listeners.internal.IEventListener;
+import com.deltadna.android.sdk.net.Lane;
 import com.deltadna.android.sdk.net.NetworkManager;
+import com.deltadna.android.sdk.net.NetworkStats;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -151,6 +153,7 @@ public abstract class DDNA {
         
         preferences = new Preferences(application);
         network = new NetworkManager(
+                application,
                 environmentKey,
                 collectUrl,
                 engageUrl,
@@ -221,6 +224,60 @@ public abstract class DDNA {
      */
     public abstract EventAction recordEvent(Event event);
     
+    /**
+     * Records an event which has already been serialised into JSON with
+     * Collect, such as one coming from an engine bridge.
+     * <p>
+     * The event needs to be an object with an {@code eventName} and
+     * optionally {@code eventParams}. Any of the standard fields which are
+     * missing, such as the timestamp or session id, will be added. The
+     * event is only validated and not parsed, unless Event-Triggered
+     * Campaigns have been set up for its name.
+     *
+     * @param json the event as JSON
+     *
+     * @return the {@link EventAction} for this event
+     *
+     * @throws IllegalArgumentException if the {@code json} is null or not a
+     *                                  valid event
+     */
+    public abstract EventAction recordEventJson(String json);
+    
+    /**
+     * Records a batch of events which have already been serialised into a
+     * JSON array with Collect, such as when coming from an engine bridge.
+     * <p>
+     * Each event is handled as in {@link #recordEventJson(String)}, with
+     * events failing validation being skipped. As there is no
+     * {@link EventAction} to return, any actions from Event-Triggered
+     * Campaigns will be passed to the default handlers set on the
+     * {@link Settings}.
+     *
+     * @param json the events as a JSON array
+     *
+     * @return this {@link DDNA} instance
+     *
+     * @throws IllegalArgumentException if the {@code json} is null or not a
+     *                                  valid array
+     */
+    public abstract DDNA recordEventsJson(String json);
+    
+    /**
+     * Gets the {@link Aggregator} for an event, which can be used for
+     * recording high-frequency values into a single summary event per
+     * aggregation window, instead of recording an event for each value.
+     * <p>
+     * The length of the window can be set through
+     * {@link Settings#setAggregationWindow(int)}.
+     *
+     * @param name the name of the summary event
+     *
+     * @return the {@link Aggregator} for the event
+     *
+     * @throws IllegalArgumentException if the {@code name} is null or empty
+     */
+    public abstract Aggregator aggregate(String name);
+    
     /**
      * Record when a push notification has been opened.
      *
@@ -406,6 +463,29 @@ public abstract class DDNA {
      */
     public abstract DDNA stopTrackingMe();
     
+    /**
+     * Gets the statistics of the event store, such as the number of events
+     * waiting to be uploaded and the number of events which have been
+     * dropped.
+     * <p>
+     * The statistics are kept up to date as events are stored and removed,
+     * so this is cheap enough to be called frequently.
+     *
+     * @return the statistics of the event store
+     */
+    public abstract EventStoreStats getEventStoreStats();
+    
+    /**
+     * Gets the timings of the recent network requests made by the SDK,
+     * such as the percentiles of the time to first byte, aggregated by
+     * {@link Lane}.
+     *
+     * @return the statistics of the network requests
+     *
+     * @see Settings#setRequestMetricsListener(com.deltadna.android.sdk.net.RequestMetrics.Listener)
+     */
+    public abstract NetworkStats getNetworkStats();
+    
     abstract ImageMessageStore getImageMessageStore();
     
     abstract Map<String, Integer> getIso4217();
@@ -22,6 +22,7 @@ import android.text.TextUtils;
 import com.deltadna.android.sdk.listeners.EngageListener;
 import com.deltadna.android.sdk.listeners.EventListener;
 import com.deltadna.android.sdk.listeners.internal.IEventListener;
+import com.deltadna.android.sdk.net.NetworkStats;
 
 import java.util.Map;
 import java.util.Set;
@@ -90,6 +91,21 @@ class DDNADelegate extends DDNA {
         return getDelegate().recordEvent(event);
     }
     
+    @Override
+    public EventAction recordEventJson(String json) {
+        return getDelegate().recordEventJson(json);
+    }
+    
+    @Override
+    public DDNA recordEventsJson(String json) {
+        return getDelegate().recordEventsJson(json);
+    }
+    
+    @Override
+    public Aggregator aggregate(String name) {
+        return getDelegate().aggregate(name);
+    }
+    
     @Override
     public EventAction recordNotificationOpened(boolean launch, Bundle payload) {
         return getDelegate().recordNotificationOpened(launch, payload);
@@ -184,6 +200,16 @@ class DDNADelegate extends DDNA {
         return nonTracking;
     }
     
+    @Override
+    public EventStoreStats getEventStoreStats() {
+        return getDelegate().getEventStoreStats();
+    }
+    
+    @Override
+    public NetworkStats getNetworkStats() {
+        return getDelegate().getNetworkStats();
+    }
+    
     @Override
     ImageMessageStore getImageMessageStore() {
         return getDelegate().getImageMessageStore();
@@ -31,6 +31,7 @@ import com.deltadna.android.sdk.helpers.Settings;
 import com.deltadna.android.sdk.listeners.EngageListener;
 import com.deltadna.android.sdk.listeners.EventListener;
 import com.deltadna.android.sdk.listeners.internal.IEventListener;
+import com.deltadna.android.sdk.net.NetworkStats;
 import com.deltadna.android.sdk.net.Response;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -68,6 +69,8 @@ final class DDNAImpl extends DDNA {
     
     private final SessionRefreshHandler sessionHandler;
     private final EventHandler eventHandler;
+    private final EventThrottler eventThrottler;
+    private final AggregatorStore aggregatorStore;
     
     private final Map<String, Integer> iso4217;
     private final EventTriggeredCampaignMetricStore etcMetricStore;
@@ -79,6 +82,12 @@ final class DDNAImpl extends DDNA {
     private Set<String> whitelistEvents = Collections.emptySet();
     private Set<String> cacheImages = Collections.emptySet();
     private Map<String, SortedSet<EventTrigger>> eventTriggers = Collections.emptyMap();
+    @Nullable
+    private EventSchema configuredSchema;
+    @Nullable
+    private EventSchema settingsSchema;
+    @Nullable
+    private JSONObject settingsSchemaSource;
     private static final ScheduledExecutorService futureWorker = Executors.newSingleThreadScheduledExecutor();
     private int failedSessionConfigurations = 0;
     
@@ -112,6 +121,9 @@ final class DDNAImpl extends DDNA {
                         settings.backgroundEventUploadStartDelaySeconds(),
                         settings.backgroundEventUploadRepeatRateSeconds());
             }
+            aggregatorStore.start(
+                    settings.getAggregationWindow(),
+                    settings.getAggregationCheckpointInterval());
             failedSessionConfigurations = 0;
             Log.d(TAG, "SDK started");
             performOn(iEventListeners, IEventListener::onStarted);
@@ -127,6 +139,7 @@ final class DDNAImpl extends DDNA {
         if (!started) {
             Log.w(TAG, "SDK has not been started");
         } else {
+            aggregatorStore.stop();
             recordEvent("gameEnded").run();
             
             sessionHandler.unregister();
@@ -162,6 +175,22 @@ final class DDNAImpl extends DDNA {
             return EventAction.EMPTY;
         }
         
+        final double sampleRate = eventThrottler.admit(event.name);
+        if (sampleRate == EventThrottler.DROP) {
+            Log.v(TAG, "Event " + event.name + " has been throttled, ignoring");
+            return EventAction.EMPTY;
+        }
+        
+        final EventSchema schema = getEventSchema();
+        if (    schema != null
+                && schema.covers(event.name)
+                && !conforms(
+                        schema,
+                        event.name,
+                        EventSchema.kinds(event.params.toJson()))) {
+            return EventAction.EMPTY;
+        }
+        
         Log.v(TAG, "Recording event " + event.name);
         if (!started) {
             Log.w(TAG, "SDK has not been started");
@@ -179,6 +208,9 @@ final class DDNAImpl extends DDNA {
                     new JSONObject(event.params.toJson().toString());
             params.put("platform", platform);
             params.put("sdkVersion", SDK_VERSION);
+            if (sampleRate != EventThrottler.KEEP) {
+                params.put("ddnaSampleRate", sampleRate);
+            }
             
             jsonEvent.put("eventParams", params);
         } catch (JSONException e) {
@@ -186,7 +218,7 @@ final class DDNAImpl extends DDNA {
             throw new IllegalArgumentException(e);
         }
         
-        eventHandler.handleEvent(jsonEvent);
+        eventHandler.handleEvent(jsonEvent.toString(), priorityOf(event.name));
         
         return new EventAction(
                 event,
@@ -197,6 +229,159 @@ final class DDNAImpl extends DDNA {
                 settings);
     }
     
+    @Override
+    public EventAction recordEventJson(String json) {
+        Preconditions.checkArg(json != null, "json cannot be null");
+        
+        try {
+            return recordEvent(RawEvent.parse(json));
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+    
+    @Override
+    public DDNA recordEventsJson(String json) {
+        Preconditions.checkArg(json != null, "json cannot be null");
+        
+        final List<JSONException> failures = new ArrayList<>();
+        final List<RawEvent> events;
+        try {
+            events = RawEvent.parseAll(json, failures);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+        
+        for (final JSONException failure : failures) {
+            Log.w(TAG, "Skipping invalid event", failure);
+        }
+        for (final RawEvent event : events) {
+            recordEvent(event).run();
+        }
+        
+        return this;
+    }
+    
+    private EventAction recordEvent(RawEvent event) {
+        if (!whitelistEvents.isEmpty() && !whitelistEvents.contains(event.name)) {
+            Log.d(TAG, "Event " + event.name + " is not whitelisted, ignoring");
+            return EventAction.EMPTY;
+        }
+        
+        final double sampleRate = eventThrottler.admit(event.name);
+        if (sampleRate == EventThrottler.DROP) {
+            Log.v(TAG, "Event " + event.name + " has been throttled, ignoring");
+            return EventAction.EMPTY;
+        } else if (sampleRate != EventThrottler.KEEP) {
+            event.putParam("ddnaSampleRate", sampleRate);
+        }
+        
+        final EventSchema schema = getEventSchema();
+        if (    schema != null
+                && schema.covers(event.name)
+                && !conforms(schema, event.name, event.params)) {
+            return EventAction.EMPTY;
+        }
+        
+        Log.v(TAG, "Recording serialised event " + event.name);
+        if (!started) {
+            Log.w(TAG, "SDK has not been started");
+        }
+        
+        eventHandler.handleEvent(event
+                .putFieldIfAbsent("eventTimestamp", getCurrentTimestamp())
+                .putFieldIfAbsent("eventUUID", UUID.randomUUID().toString())
+                .putFieldIfAbsent("sessionID", sessionId)
+                .putFieldIfAbsent("userID", getUserId())
+                .putParam("platform", platform)
+                .putParam("sdkVersion", SDK_VERSION)
+                .serialise(),
+                priorityOf(event.name));
+        
+        // only pay for parsing the parameters if there is something to evaluate
+        final SortedSet<EventTrigger> triggers = eventTriggers.get(event.name);
+        if (triggers == null || triggers.isEmpty()) {
+            return EventAction.EMPTY;
+        } else {
+            return new EventAction(
+                    new Event(event.name, event.toParams()),
+                    triggers,
+                    actionStore,
+                    settings);
+        }
+    }
+    
+    /**
+     * Sets the schema from the session configuration, falling back to the
+     * one from the settings if the configuration does not have one.
+     */
+    private synchronized void setConfiguredSchema(@Nullable JSONObject source) {
+        configuredSchema = null;
+        
+        if (source != null) {
+            try {
+                configuredSchema = EventSchema.compile(source);
+            } catch (JSONException e) {
+                Log.w(TAG, "Failed deserialising event schema", e);
+            }
+        }
+    }
+    
+    @Nullable
+    private synchronized EventSchema getEventSchema() {
+        if (configuredSchema != null) return configuredSchema;
+        
+        final JSONObject source = settings.getEventSchema();
+        if (source != settingsSchemaSource) {
+            settingsSchemaSource = source;
+            settingsSchema = null;
+            
+            if (source != null) {
+                try {
+                    settingsSchema = EventSchema.compile(source);
+                } catch (JSONException e) {
+                    Log.w(TAG, "Failed compiling event schema", e);
+                }
+            }
+        }
+        
+        return settingsSchema;
+    }
+    
+    private EventPriority priorityOf(String name) {
+        final EventPriority priority = settings.getEventPriorities().get(name);
+        if (priority != null) {
+            return priority;
+        } else if (name.equals("transaction")) {
+            return EventPriority.CRITICAL;
+        } else {
+            return EventPriority.NORMAL;
+        }
+    }
+    
+    private boolean conforms(
+            EventSchema schema,
+            String name,
+            Map<String, JsonScanner.Kind> params) {
+        
+        final String violation = schema.validate(name, params);
+        if (violation == null) return true;
+        
+        Log.w(TAG, "Event " + name + " failed validation, ignoring: " + violation);
+        if (settings.debugMode()) {
+            performOn(eventListeners, it -> it.onEventInvalid(name, violation));
+        }
+        
+        return false;
+    }
+    
+    @Override
+    public Aggregator aggregate(String name) {
+        Preconditions.checkString(name, "name cannot be null or empty");
+        
+        return aggregatorStore.get(name);
+    }
+    
     @Override
     public EventAction recordNotificationOpened(boolean launch, Bundle payload) {
         final Event event = new Event("notificationOpened");
@@ -376,6 +561,7 @@ final class DDNAImpl extends DDNA {
         actionStore.clear();
         imageMessageStore.clear();
         etcMetricStore.clear();
+        aggregatorStore.clear();
         
         return this;
     }
@@ -390,6 +576,16 @@ final class DDNAImpl extends DDNA {
         return stopSdk();
     }
     
+    @Override
+    public EventStoreStats getEventStoreStats() {
+        return eventStore.getStats();
+    }
+    
+    @Override
+    public NetworkStats getNetworkStats() {
+        return network.getStats();
+    }
+    
     @Override
     ImageMessageStore getImageMessageStore() {
         return imageMessageStore;
@@ -517,7 +713,19 @@ final class DDNAImpl extends DDNA {
                     Log.d(TAG, "Session expired, updating id");
                     newSession(true);
                 });
-        eventHandler = new EventHandler(eventStore, engageStore, network);
+        eventHandler = new EventHandler(
+                eventStore,
+                engageStore,
+                network,
+                count -> performOn(
+                        eventListeners,
+                        it -> it.onEventsExpired(count)));
+        eventThrottler = new EventThrottler(settings);
+        aggregatorStore = new AggregatorStore(
+                this,
+                new File(
+                        Location.INTERNAL.storage(application, "aggregates"),
+                        "checkpoint.json"));
         
         final Map<String, Integer> temp = new HashMap<>();
         try {
@@ -645,6 +853,22 @@ final class DDNAImpl extends DDNA {
                     whitelistEvents = Collections.unmodifiableSet(toBeWhitelisted);
                 }
                 
+                final JSONObject eventsSchema = Objects.extract(
+                        engagement.getJson(),
+                        "parameters",
+                        "eventsSchema");
+                setConfiguredSchema(eventsSchema);
+                
+                eventThrottler.configure(
+                        Objects.extract(
+                                engagement.getJson(),
+                                "parameters",
+                                "eventsSampling"),
+                        Objects.extract(
+                                engagement.getJson(),
+                                "parameters",
+                                "eventsRateLimits"));
+                
                 final JSONArray triggers = Objects.extractArray(
                         engagement.getJson(),
                         "parameters",
@@ -28,6 +28,7 @@ import com.deltadna.android.sdk.listeners.EngageListener;
 import com.deltadna.android.sdk.listeners.EventListener;
 import com.deltadna.android.sdk.listeners.RequestListener;
 import com.deltadna.android.sdk.listeners.internal.IEventListener;
+import com.deltadna.android.sdk.net.NetworkStats;
 import com.deltadna.android.sdk.net.Response;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -113,6 +114,22 @@ final class DDNANonTracking extends DDNA {
         return EventAction.EMPTY;
     }
     
+    @Override
+    public EventAction recordEventJson(String json) {
+        return EventAction.EMPTY;
+    }
+    
+    @Override
+    public DDNA recordEventsJson(String json) {
+        return this;
+    }
+    
+    @Override
+    public Aggregator aggregate(String name) {
+        // values will never be recorded as summary events
+        return new Aggregator(name);
+    }
+    
     @Override
     public EventAction recordNotificationOpened(boolean launch, Bundle payload) {
         return EventAction.EMPTY;
@@ -206,6 +223,16 @@ final class DDNANonTracking extends DDNA {
         return this;
     }
     
+    @Override
+    public EventStoreStats getEventStoreStats() {
+        return EventStoreStats.EMPTY;
+    }
+    
+    @Override
+    public NetworkStats getNetworkStats() {
+        return network.getStats();
+    }
+    
     @Override
     ImageMessageStore getImageMessageStore() {
         // ok as we should never get far enough to use the store
@@ -29,13 +29,29 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 final class DatabaseHelper extends SQLiteOpenHelper {
 
     private static final String TAG = BuildConfig.LOG_TAG + ' ' + "DatabaseHelper";
-    private static final short VERSION = 5;
+    private static final short VERSION = 8;
+
+    /**
+     * Running totals of the event rows, so that they can be read without
+     * querying. Loaded on first use and then kept up to date by the methods
+     * which insert and remove event rows, while holding its lock.
+     */
+    private final Tally tally = new Tally();
+    /**
+     * Snapshot of {@link #tally}, republished after every change to it so
+     * that it can be read without waiting on its lock.
+     */
+    @Nullable
+    private volatile EventsTotals totals;
 
     DatabaseHelper(Context context) {
         super(context, "com.deltadna.android.sdk", null, VERSION);
@@ -49,7 +65,12 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                 + Events.Column.LOCATION + " TEXT NOT NULL, "
                 + Events.Column.NAME + " TEXT NOT NULL UNIQUE, "
                 + Events.Column.HASH + " TEXT, "
-                + Events.Column.SIZE + " INTEGER NOT NULL)");
+                + Events.Column.SIZE + " INTEGER NOT NULL, "
+                + Events.Column.PRIORITY + " INTEGER NOT NULL DEFAULT "
+                + EventPriority.NORMAL.value + ", "
+                + Events.Column.LENGTH + " INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX " + Events.TABLE + '_' + Events.Column.PRIORITY + "_idx "
+                + "ON " + Events.TABLE + '(' + Events.Column.PRIORITY + ',' + Events.Column.ID + ')');
         db.execSQL("CREATE TABLE " + Engagements.TABLE + "("
                 + Engagements.Column.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
                 + Engagements.Column.DECISION_POINT + " TEXT NOT NULL, "
@@ -65,7 +86,10 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                 + ImageMessages.Column.LOCATION + " TEXT NOT NULL, "
                 + ImageMessages.Column.NAME + " TEXT NOT NULL UNIQUE, "
                 + ImageMessages.Column.SIZE + " INTEGER NOT NULL, "
-                + ImageMessages.Column.DOWNLOADED + " INTEGER NOT NULL)");
+                + ImageMessages.Column.DOWNLOADED + " INTEGER NOT NULL, "
+                + ImageMessages.Column.ETAG + " TEXT, "
+                + ImageMessages.Column.LAST_MODIFIED + " TEXT, "
+                + ImageMessages.Column.EXPIRES + " INTEGER NOT NULL DEFAULT 0)");
         db.execSQL("CREATE TABLE " + Actions.TABLE + "("
                 + Actions.Column.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
                 + Actions.Column.NAME + " TEXT NOT NULL, "
@@ -139,18 +163,148 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                             + ETCExecutions.Column.EXECUTION_COUNT + " INTEGER NOT NULL )");
                     db.execSQL("CREATE INDEX " + ETCExecutions.TABLE + '_' + ETCExecutions.Column.VARIANT_ID + "_idx "
                             + "ON " + ETCExecutions.TABLE + '(' + ETCExecutions.Column.VARIANT_ID + ')');
+                    break;
+
+                case 6:
+                    db.execSQL("ALTER TABLE " + Events.TABLE + " ADD COLUMN "
+                            + Events.Column.PRIORITY + " INTEGER NOT NULL DEFAULT "
+                            + EventPriority.NORMAL.value);
+                    db.execSQL("CREATE INDEX " + Events.TABLE + '_' + Events.Column.PRIORITY + "_idx "
+                            + "ON " + Events.TABLE + '(' + Events.Column.PRIORITY + ',' + Events.Column.ID + ')');
+                    break;
 
+                case 7:
+                    db.execSQL("ALTER TABLE " + Events.TABLE + " ADD COLUMN "
+                            + Events.Column.LENGTH + " INTEGER NOT NULL DEFAULT 0");
+                    // events stored until now were all uncompressed json
+                    db.execSQL("UPDATE " + Events.TABLE + " SET "
+                            + Events.Column.LENGTH + " = " + Events.Column.SIZE);
+                    break;
+
+                case 8:
+                    db.execSQL("ALTER TABLE " + ImageMessages.TABLE + " ADD COLUMN "
+                            + ImageMessages.Column.ETAG + " TEXT");
+                    db.execSQL("ALTER TABLE " + ImageMessages.TABLE + " ADD COLUMN "
+                            + ImageMessages.Column.LAST_MODIFIED + " TEXT");
+                    db.execSQL("ALTER TABLE " + ImageMessages.TABLE + " ADD COLUMN "
+                            + ImageMessages.Column.EXPIRES + " INTEGER NOT NULL DEFAULT 0");
             }
         }
     }
 
+    /**
+     * Gets the size of all of the stored events from the running totals.
+     */
     long getEventsSize() {
+        synchronized (tally) {
+            return Tally.total(tally().bytes);
+        }
+    }
+
+    /**
+     * Gets the latest snapshot of the running totals, which only has to
+     * wait on the totals being loaded when called for the first time.
+     */
+    EventsTotals getEventsTotals() {
+        final EventsTotals totals = this.totals;
+        if (totals != null) return totals;
+
+        synchronized (tally) {
+            tally();
+            return publish();
+        }
+    }
+
+    /**
+     * Gets the number of stored events from the running totals.
+     */
+    long getEventsCount(Location location) {
+        return getEventsTotals().getCount(location);
+    }
+
+    /**
+     * Gets the size of the stored events from the running totals.
+     */
+    long getEventsBytes(Location location) {
+        return getEventsTotals().getBytes(location);
+    }
+
+    /**
+     * Gets the time at which the earliest inserted of the stored events
+     * was recorded.
+     *
+     * @return the time, or {@code -1} if there are no stored events
+     */
+    long getOldestEventTime() {
+        return getEventsTotals().getOldest();
+    }
+
+    /**
+     * Gets the size of the stored events with {@code priority} from the
+     * running totals.
+     */
+    long getEventsSize(EventPriority priority) {
+        synchronized (tally) {
+            return tally().priorityBytes[priority.ordinal()];
+        }
+    }
+
+    /**
+     * Gets the event rows in the order in which they should be uploaded,
+     * with higher priorities coming first and the oldest events first
+     * within the same priority.
+     *
+     * @param notBefore the time before which events are excluded as they
+     *                  have expired
+     */
+    Cursor getEventRows(long notBefore) {
+        return getReadableDatabase().query(
+                Events.TABLE,
+                new String[]{
+                        Events.Column.ID.toString(),
+                        Events.Column.TIME.toString(),
+                        Events.Column.LOCATION.toString(),
+                        Events.Column.NAME.toString(),
+                        Events.Column.SIZE.toString(),
+                        Events.Column.PRIORITY.toString(),
+                        Events.Column.LENGTH.toString(),
+                        Events.Column.HASH.toString()},
+                Events.Column.TIME + " >= ?",
+                new String[]{Long.toString(notBefore)},
+                null,
+                null,
+                Events.Column.PRIORITY + " DESC, " + Events.Column.ID + " ASC");
+    }
+
+    @Nullable
+    Location getEventRowLocation(String name) {
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(
+                    Events.TABLE,
+                    new String[]{Events.Column.LOCATION.toString()},
+                    Events.Column.NAME + " = ?",
+                    new String[]{name},
+                    null,
+                    null,
+                    null);
+
+            return cursor.moveToFirst()
+                    ? Location.valueOf(cursor.getString(0))
+                    : null;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    long getEventsSize(Location location) {
         Cursor cursor = null;
         try {
             cursor = getReadableDatabase().rawQuery(
                     "SELECT SUM(" + Events.Column.SIZE + ") " +
-                            "FROM " + Events.TABLE + ";",
-                    new String[]{});
+                            "FROM " + Events.TABLE + " " +
+                            "WHERE " + Events.Column.LOCATION + " = ?;",
+                    new String[]{location.name()});
 
             return (cursor.moveToFirst()) ? cursor.getLong(0) : 0;
         } finally {
@@ -158,23 +312,130 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    Cursor getEventRows() {
-        return getReadableDatabase().rawQuery(
-                String.format(
-                        Locale.US,
-                        "SELECT e.%s, e.%s, e.%s, e.%s, e.%s, SUM(e1.%s) AS Total "
-                                + "FROM %s e "
-                                + "JOIN %s e1 ON e1.%s <= e.%s "
-                                + "GROUP BY e.%s "
-                                + "HAVING SUM(e1.%s) <= %d "
-                                + "ORDER BY e.%s ASC;",
-                        Events.Column.ID, Events.Column.TIME, Events.Column.LOCATION, Events.Column.NAME, Events.Column.SIZE, Events.Column.SIZE,
-                        Events.TABLE,
-                        Events.TABLE, Events.Column.ID, Events.Column.ID,
-                        Events.Column.ID,
-                        Events.Column.SIZE, EventStore.EVENTS_LIMIT,
-                        Events.Column.TIME),
-                new String[]{});
+    /**
+     * Gets up to {@code limit} of the oldest event rows in
+     * {@code location}.
+     */
+    Cursor getEventRowsIn(Location location, int limit) {
+        return getReadableDatabase().query(
+                Events.TABLE,
+                new String[]{
+                        Events.Column.ID.toString(),
+                        Events.Column.NAME.toString(),
+                        Events.Column.SIZE.toString()},
+                Events.Column.LOCATION + " = ?",
+                new String[]{location.name()},
+                null,
+                null,
+                Events.Column.ID + " ASC",
+                Integer.toString(limit));
+    }
+
+    boolean updateEventRowLocation(long id, Location location) {
+        final ContentValues values = new ContentValues(1);
+        values.put(Events.Column.LOCATION.toString(), location.name());
+
+        synchronized (tally) {
+            final Tally tally = tally();
+            final Tally row = tally(Events.Column.ID + " = " + id);
+            if (getWritableDatabase().update(
+                    Events.TABLE,
+                    values,
+                    Events.Column.ID + " = ?",
+                    new String[]{Long.toString(id)})
+                    != 1) {
+                return false;
+            }
+
+            tally.relocate(row, location);
+            publish();
+            return true;
+        }
+    }
+
+    /**
+     * Gets up to {@code limit} event rows following the row with
+     * {@code id}, in the order of their ids.
+     */
+    Cursor getEventRowsAfter(long id, int limit) {
+        return getReadableDatabase().query(
+                Events.TABLE,
+                new String[]{
+                        Events.Column.ID.toString(),
+                        Events.Column.LOCATION.toString(),
+                        Events.Column.NAME.toString()},
+                Events.Column.ID + " > ?",
+                new String[]{Long.toString(id)},
+                null,
+                null,
+                Events.Column.ID + " ASC",
+                Integer.toString(limit));
+    }
+
+    /**
+     * Gets the event rows which may be evicted to make space for an event
+     * with {@code priority}, in the order in which they should be evicted.
+     *
+     * @param priority              the highest priority to include
+     * @param before                the time before which events should have
+     *                              been stored to be included
+     * @param lowestPriorityFirst   whether lower priorities should come
+     *                              first, otherwise the oldest events come
+     *                              first regardless of priority
+     */
+    Cursor getEventRowsForEviction(
+            EventPriority priority,
+            long before,
+            boolean lowestPriorityFirst) {
+
+        return getEventRowsForEviction(priority, before, lowestPriorityFirst, false);
+    }
+
+    /**
+     * @param only  whether to only include events with {@code priority},
+     *              such as when making space within its quota
+     */
+    Cursor getEventRowsForEviction(
+            EventPriority priority,
+            long before,
+            boolean lowestPriorityFirst,
+            boolean only) {
+
+        return getEventRowsForEviction(
+                only ? priority : EventPriority.LOW,
+                priority,
+                before,
+                lowestPriorityFirst);
+    }
+
+    /**
+     * @param lowest    the lowest priority to include
+     * @param highest   the highest priority to include
+     */
+    Cursor getEventRowsForEviction(
+            EventPriority lowest,
+            EventPriority highest,
+            long before,
+            boolean lowestPriorityFirst) {
+
+        return getReadableDatabase().query(
+                Events.TABLE,
+                new String[]{
+                        Events.Column.ID.toString(),
+                        Events.Column.LOCATION.toString(),
+                        Events.Column.NAME.toString(),
+                        Events.Column.SIZE.toString()},
+                Events.Column.PRIORITY + " BETWEEN ? AND ?"
+                        + " AND " + Events.Column.TIME + " < ?",
+                new String[]{
+                        Integer.toString(lowest.value),
+                        Integer.toString(highest.value),
+                        Long.toString(before)},
+                null,
+                null,
+                lowestPriorityFirst
+                        ? Events.Column.PRIORITY + " ASC, " + Events.Column.ID + " ASC"
+                        : Events.Column.ID + " ASC");
     }
 
     boolean insertEventRow(
@@ -183,27 +444,229 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             String name,
             @Nullable String hash,
             long size) {
-        final ContentValues values = new ContentValues(5);
+        return insertEventRow(
+                time,
+                location,
+                name,
+                hash,
+                size,
+                EventPriority.NORMAL);
+    }
+
+    boolean insertEventRow(
+            long time,
+            Location location,
+            String name,
+            @Nullable String hash,
+            long size,
+            EventPriority priority) {
+        return insertEventRow(
+                time,
+                location,
+                name,
+                hash,
+                size,
+                priority,
+                size);
+    }
+
+    /**
+     * @param size      the size of the stored content
+     * @param length    the size of the content when uploaded, which may be
+     *                  different from {@code size} due to compression
+     */
+    boolean insertEventRow(
+            long time,
+            Location location,
+            String name,
+            @Nullable String hash,
+            long size,
+            EventPriority priority,
+            long length) {
+        return insertEventRows(Collections.singletonList(
+                eventRow(time, location, name, hash, size, priority, length)));
+    }
+
+    /**
+     * Inserts the event {@code rows} in a single transaction, so that
+     * either all or none of them get inserted.
+     *
+     * @param rows the rows, as created by {@link #eventRow}
+     */
+    boolean insertEventRows(List<ContentValues> rows) {
+        if (rows.isEmpty()) return true;
+
+        synchronized (tally) {
+            final Tally tally = tally();
+            final SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (final ContentValues row : rows) {
+                    if (db.insert(Events.TABLE, null, row) == -1) return false;
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            for (final ContentValues row : rows) {
+                tally.add(
+                        Location.valueOf(row.getAsString(Events.Column.LOCATION.toString())),
+                        EventPriority.of(row.getAsInteger(Events.Column.PRIORITY.toString())),
+                        row.getAsLong(Events.Column.SIZE.toString()),
+                        row.getAsLong(Events.Column.TIME.toString()));
+            }
+            publish();
+            return true;
+        }
+    }
+
+    static ContentValues eventRow(
+            long time,
+            Location location,
+            String name,
+            @Nullable String hash,
+            long size,
+            EventPriority priority,
+            long length) {
+        final ContentValues values = new ContentValues(7);
         values.put(Events.Column.TIME.toString(), time);
         values.put(Events.Column.LOCATION.toString(), location.name());
         values.put(Events.Column.NAME.toString(), name);
         values.put(Events.Column.HASH.toString(), hash);
         values.put(Events.Column.SIZE.toString(), size);
-
-        return (getWritableDatabase().insert(Events.TABLE, null, values)
-                != -1);
+        values.put(Events.Column.PRIORITY.toString(), priority.value);
+        values.put(Events.Column.LENGTH.toString(), length);
+        return values;
     }
 
     boolean removeEventRow(long id) {
-        return (getWritableDatabase().delete(
-                Events.TABLE,
-                Events.Column.ID + " = ?",
-                new String[]{Long.toString(id)})
-                == 1);
+        return removeEventRows(Collections.singletonList(id)) == 1;
     }
 
     void removeEventRows() {
-        getWritableDatabase().delete(Events.TABLE, null, null);
+        synchronized (tally) {
+            getWritableDatabase().delete(Events.TABLE, null, null);
+            tally.reset();
+            publish();
+        }
+    }
+
+    void removeEventRows(Location location) {
+        synchronized (tally) {
+            final Tally tally = tally();
+            final Tally removed = tally(
+                    Events.Column.LOCATION + " = '" + location.name() + '\'');
+            getWritableDatabase().delete(
+                    Events.TABLE,
+                    Events.Column.LOCATION + " = ?",
+                    new String[]{location.name()});
+
+            tally.subtract(removed);
+            publish();
+        }
+    }
+
+    int removeEventRows(List<Long> ids) {
+        if (ids.isEmpty()) return 0;
+
+        final StringBuilder in = new StringBuilder();
+        for (final Long id : ids) {
+            if (in.length() > 0) in.append(',');
+            in.append(id);
+        }
+        final String where = Events.Column.ID + " IN (" + in + ')';
+
+        synchronized (tally) {
+            final Tally tally = tally();
+            final Tally removed = tally(where);
+            final int count = getWritableDatabase().delete(Events.TABLE, where, null);
+
+            tally.subtract(removed);
+            publish();
+            return count;
+        }
+    }
+
+    /**
+     * Publishes a snapshot of {@link #tally}, looking up the oldest event
+     * if it is not known so that readers never have to.
+     * <p>
+     * Must be called while holding the lock of {@link #tally}.
+     */
+    private EventsTotals publish() {
+        if (tally.oldest == null) {
+            Cursor cursor = null;
+            try {
+                // by id as time is not indexed
+                cursor = getReadableDatabase().query(
+                        Events.TABLE,
+                        new String[]{Events.Column.TIME.toString()},
+                        null,
+                        null,
+                        null,
+                        null,
+                        Events.Column.ID + " ASC",
+                        "1");
+
+                tally.oldest = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            } finally {
+                if (cursor != null) cursor.close();
+            }
+        }
+
+        final EventsTotals totals = new EventsTotals(
+                tally.count.clone(),
+                tally.bytes.clone(),
+                tally.oldest);
+        this.totals = totals;
+        return totals;
+    }
+
+    /**
+     * Must be called while holding the lock of {@link #tally}.
+     */
+    private Tally tally() {
+        if (!tally.loaded) {
+            tally.set(tally(null));
+            tally.loaded = true;
+        }
+        return tally;
+    }
+
+    /**
+     * Totals up the event rows matching {@code where}, or all of them.
+     */
+    private Tally tally(@Nullable String where) {
+        final Tally result = new Tally();
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(
+                    Events.TABLE,
+                    new String[]{
+                            Events.Column.LOCATION.toString(),
+                            Events.Column.PRIORITY.toString(),
+                            "COUNT(*)",
+                            "SUM(" + Events.Column.SIZE + ')'},
+                    where,
+                    null,
+                    Events.Column.LOCATION + ", " + Events.Column.PRIORITY,
+                    null,
+                    null);
+
+            while (cursor.moveToNext()) {
+                final int location = Location.valueOf(cursor.getString(0)).ordinal();
+                final int priority = EventPriority.of(cursor.getInt(1)).ordinal();
+                result.count[location] += cursor.getLong(2);
+                result.bytes[location] += cursor.getLong(3);
+                result.priorityBytes[priority] += cursor.getLong(3);
+            }
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+
+        return result;
     }
 
     Cursor getEngagement(String decisionPoint, String flavour) {
@@ -270,15 +733,6 @@ final class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     Cursor getImageMessage(String url) {
-        final String other;
-        if (url.startsWith("http://")) {
-            other = "https" + url.substring("http".length(), url.length());
-        } else if (url.startsWith("https://")) {
-            other = "http" + url.substring("https".length(), url.length());
-        } else {
-            other = url;
-        }
-
         return getReadableDatabase().query(
                 ImageMessages.TABLE,
                 ImageMessages.Column.all(),
@@ -287,12 +741,49 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                         "%s = ? OR %s = ?",
                         ImageMessages.Column.URL,
                         ImageMessages.Column.URL),
-                new String[]{url, other},
+                new String[]{url, otherScheme(url)},
                 null,
                 null,
                 null);
     }
 
+    /**
+     * Gets the stored url, location, and validators of the image message
+     * for {@code url}, if it has validators and is no longer fresh as of
+     * {@code now}.
+     */
+    @Nullable
+    ContentValues getStaleImageMessage(String url, Date now) {
+        try (final Cursor cursor = getReadableDatabase().query(
+                ImageMessages.TABLE,
+                new String[] {
+                        ImageMessages.Column.URL.toString(),
+                        ImageMessages.Column.LOCATION.toString(),
+                        ImageMessages.Column.ETAG.toString(),
+                        ImageMessages.Column.LAST_MODIFIED.toString()},
+                String.format(
+                        Locale.ENGLISH,
+                        "(%s = ? OR %s = ?) AND %s <= ? AND (%s IS NOT NULL OR %s IS NOT NULL)",
+                        ImageMessages.Column.URL,
+                        ImageMessages.Column.URL,
+                        ImageMessages.Column.EXPIRES,
+                        ImageMessages.Column.ETAG,
+                        ImageMessages.Column.LAST_MODIFIED),
+                new String[]{url, otherScheme(url), Long.toString(now.getTime())},
+                null,
+                null,
+                null)) {
+            if (!cursor.moveToFirst()) return null;
+
+            final ContentValues values = new ContentValues(4);
+            values.put(ImageMessages.Column.URL.toString(), cursor.getString(0));
+            values.put(ImageMessages.Column.LOCATION.toString(), cursor.getString(1));
+            values.put(ImageMessages.Column.ETAG.toString(), cursor.getString(2));
+            values.put(ImageMessages.Column.LAST_MODIFIED.toString(), cursor.getString(3));
+            return values;
+        }
+    }
+
     boolean removeImageMessage(long id) {
         return (getWritableDatabase().delete(
                 ImageMessages.TABLE,
@@ -318,10 +809,48 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         values.put(ImageMessages.Column.SIZE.toString(), size);
         values.put(ImageMessages.Column.DOWNLOADED.toString(), downloaded.getTime());
 
-        return (getWritableDatabase().insert(ImageMessages.TABLE, null, values)
+        // replaces the row of a previous download of the same url
+        return (getWritableDatabase().replace(ImageMessages.TABLE, null, values)
                 != -1);
     }
 
+    /**
+     * Updates the validators of the image message for {@code url}, and
+     * until when it may be used without revalidating it. Validators which
+     * are {@code null} are left as they were.
+     */
+    boolean updateImageMessage(
+            String url,
+            @Nullable String etag,
+            @Nullable String lastModified,
+            Date expires) {
+        final ContentValues values = new ContentValues(3);
+        if (etag != null) {
+            values.put(ImageMessages.Column.ETAG.toString(), etag);
+        }
+        if (lastModified != null) {
+            values.put(ImageMessages.Column.LAST_MODIFIED.toString(), lastModified);
+        }
+        values.put(ImageMessages.Column.EXPIRES.toString(), expires.getTime());
+
+        return (getWritableDatabase().update(
+                ImageMessages.TABLE,
+                values,
+                ImageMessages.Column.URL + " = ?",
+                new String[]{url})
+                == 1);
+    }
+
+    private static String otherScheme(String url) {
+        if (url.startsWith("http://")) {
+            return "https" + url.substring("http".length(), url.length());
+        } else if (url.startsWith("https://")) {
+            return "http" + url.substring("https".length(), url.length());
+        } else {
+            return url;
+        }
+    }
+
     @Nullable
     JSONObject getAction(long campaignId) {
         try (final Cursor cursor = getReadableDatabase().query(
@@ -435,6 +964,106 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         getWritableDatabase().delete(ETCExecutions.TABLE, null, null);
     }
 
+    /**
+     * Immutable snapshot of the running totals of the event rows.
+     */
+    static final class EventsTotals {
+
+        private final long[] count;
+        private final long[] bytes;
+        private final long oldest;
+
+        EventsTotals(long[] count, long[] bytes, long oldest) {
+            this.count = count;
+            this.bytes = bytes;
+            this.oldest = oldest;
+        }
+
+        long getCount(Location location) {
+            return count[location.ordinal()];
+        }
+
+        long getBytes(Location location) {
+            return bytes[location.ordinal()];
+        }
+
+        /**
+         * @return the time, or {@code -1} if there are no stored events
+         */
+        long getOldest() {
+            return oldest;
+        }
+    }
+
+    private static final class Tally {
+
+        final long[] count = new long[Location.values().length];
+        final long[] bytes = new long[Location.values().length];
+        final long[] priorityBytes = new long[EventPriority.values().length];
+
+        /**
+         * {@code null} when it needs to be looked up.
+         */
+        @Nullable
+        Long oldest;
+        boolean loaded;
+
+        void add(Location location, EventPriority priority, long size, long time) {
+            if (total(count) == 0) oldest = time;
+
+            count[location.ordinal()]++;
+            bytes[location.ordinal()] += size;
+            priorityBytes[priority.ordinal()] += size;
+        }
+
+        /**
+         * Moves the {@code other} rows to {@code location}, which leaves
+         * their priorities and times as they were.
+         */
+        void relocate(Tally other, Location location) {
+            for (int i = 0; i < count.length; i++) {
+                count[i] = Math.max(0, count[i] - other.count[i]);
+                bytes[i] = Math.max(0, bytes[i] - other.bytes[i]);
+            }
+
+            count[location.ordinal()] += total(other.count);
+            bytes[location.ordinal()] += total(other.bytes);
+        }
+
+        void subtract(Tally other) {
+            for (int i = 0; i < count.length; i++) {
+                count[i] = Math.max(0, count[i] - other.count[i]);
+                bytes[i] = Math.max(0, bytes[i] - other.bytes[i]);
+            }
+            for (int i = 0; i < priorityBytes.length; i++) {
+                priorityBytes[i] = Math.max(0, priorityBytes[i] - other.priorityBytes[i]);
+            }
+
+            if (total(other.count) > 0) oldest = null;
+        }
+
+        void set(Tally other) {
+            System.arraycopy(other.count, 0, count, 0, count.length);
+            System.arraycopy(other.bytes, 0, bytes, 0, bytes.length);
+            System.arraycopy(other.priorityBytes, 0, priorityBytes, 0, priorityBytes.length);
+            oldest = null;
+        }
+
+        void reset() {
+            Arrays.fill(count, 0);
+            Arrays.fill(bytes, 0);
+            Arrays.fill(priorityBytes, 0);
+            oldest = -1L;
+            loaded = true;
+        }
+
+        static long total(long[] values) {
+            long total = 0;
+            for (final long value : values) total += value;
+            return total;
+        }
+    }
+
     static final class Events {
 
         static final String TABLE = "Events";
@@ -450,7 +1079,9 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             NAME,
             LOCATION,
             HASH,
-            SIZE;
+            SIZE,
+            PRIORITY,
+            LENGTH;
 
             private final String value;
 
@@ -515,7 +1146,10 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             LOCATION,
             NAME,
             SIZE,
-            DOWNLOADED;
+            DOWNLOADED,
+            ETAG,
+            LAST_MODIFIED,
+            EXPIRES;
 
             private final String value;
 
@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk;
+
+import android.support.annotation.Nullable;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact tagged binary encoding for stored events, which gets transcoded
+ * back into JSON when the events are uploaded.
+ * <p>
+ * Well-known keys and values are interned into a fixed dictionary, and
+ * any other string which repeats within an event is written as a reference
+ * to its first occurrence. Number literals are kept as they were so that
+ * the transcoded JSON is equivalent to the original.
+ */
+final class EventCodec {
+
+    /**
+     * First byte of an encoded event, which can never start a JSON event.
+     */
+    static final int MAGIC = 0xDD;
+    private static final int VERSION = 1;
+    private static final int MAX_DEPTH = 64;
+
+    private static final int NULL = 0x00;
+    private static final int FALSE = 0x01;
+    private static final int TRUE = 0x02;
+    private static final int NUMBER = 0x03;
+    private static final int INTEGER = 0x04;
+    private static final int STRING = 0x05;
+    private static final int INTERNED = 0x06;
+    private static final int REPEATED = 0x07;
+    private static final int OBJECT = 0x08;
+    private static final int ARRAY = 0x09;
+    private static final int END = 0x0A;
+
+    /**
+     * Append-only, as the indices are persisted.
+     */
+    private static final String[] DICTIONARY = {
+            "eventName",
+            "eventTimestamp",
+            "eventUUID",
+            "sessionID",
+            "userID",
+            "eventParams",
+            "platform",
+            "sdkVersion",
+            "ANDROID",
+            "AMAZON",
+            "gameStarted",
+            "gameEnded",
+            "newPlayer",
+            "clientDevice",
+            "transaction",
+            "notificationOpened",
+            "notificationServices",
+            "imageMessageAction",
+            "engageResponse",
+            "clientVersion",
+            "userCountry",
+            "userLanguage",
+            "userXP",
+            "deviceName",
+            "deviceType",
+            "hardwareVersion",
+            "manufacturer",
+            "operatingSystem",
+            "operatingSystemVersion",
+            "timezoneOffset",
+            "pushNotificationToken",
+            "androidRegistrationID",
+            "transactionName",
+            "transactionType",
+            "transactionID",
+            "transactionServer",
+            "transactionReceipt",
+            "transactionReceiptSignature",
+            "productID",
+            "productsReceived",
+            "productsSpent",
+            "realCurrency",
+            "realCurrencyType",
+            "realCurrencyAmount",
+            "virtualCurrencies",
+            "virtualCurrency",
+            "virtualCurrencyName",
+            "virtualCurrencyType",
+            "virtualCurrencyAmount",
+            "items",
+            "item",
+            "itemName",
+            "itemType",
+            "itemAmount",
+            "PURCHASE",
+            "SALE",
+            "TRADE",
+            "GRIND",
+            "PREMIUM",
+            "notificationId",
+            "notificationName",
+            "notificationLaunch",
+            "campaignId",
+            "cohortId",
+            "communicationSender",
+            "communicationState",
+            "responseEngagementID",
+            "responseEngagementName",
+            "responseVariantName",
+            "responseDecisionpointName",
+            "responseTransactionID",
+            "ddnaSampleRate",
+            "aggregateCount",
+            "aggregateSum",
+            "aggregateMin",
+            "aggregateMax",
+            "aggregateHistogram"};
+
+    private static final Map<String, Integer> INDICES;
+
+    static {
+        final Map<String, Integer> indices = new HashMap<>(DICTIONARY.length);
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            indices.put(DICTIONARY[i], i);
+        }
+
+        INDICES = indices;
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private EventCodec() {}
+
+    /**
+     * Encodes the JSON {@code event}.
+     *
+     * @throws JSONException if the {@code event} is not valid JSON
+     */
+    static byte[] encode(String event) throws JSONException {
+        final ByteArrayOutputStream out =
+                new ByteArrayOutputStream(event.length() / 2);
+        out.write(MAGIC);
+        out.write(VERSION);
+
+        final JsonScanner scanner = new JsonScanner(event);
+        new Encoder(event, scanner, out).value(0);
+        if (!scanner.atEnd()) throw scanner.error("Trailing content");
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks whether the stored content has been encoded, rather than
+     * stored as JSON.
+     */
+    static boolean isEncoded(int first) {
+        return first == MAGIC;
+    }
+
+    /**
+     * Transcodes an encoded event from {@code in} into JSON, without
+     * materialising the intermediate representation.
+     *
+     * @param length    the number of bytes available from {@code in}, which
+     *                  bounds any lengths read from the content
+     *
+     * @throws IOException if the content is not a valid encoded event
+     */
+    static void decode(InputStream in, long length, StringBuilder json)
+            throws IOException {
+
+        final Decoder decoder = new Decoder(in, length, json);
+        if (decoder.read() != MAGIC) throw new IOException("Not an encoded event");
+        final int version = decoder.read();
+        if (version != VERSION) throw new IOException("Unsupported version " + version);
+
+        decoder.value(decoder.read(), 0);
+    }
+
+    private static final class Encoder {
+
+        private final String json;
+        private final JsonScanner scanner;
+        private final ByteArrayOutputStream out;
+        private final Map<String, Integer> repeated = new HashMap<>();
+
+        Encoder(String json, JsonScanner scanner, ByteArrayOutputStream out) {
+            this.json = json;
+            this.scanner = scanner;
+            this.out = out;
+        }
+
+        void value(int depth) throws JSONException {
+            if (depth > MAX_DEPTH) throw scanner.error("Nesting too deep");
+
+            switch (scanner.peek()) {
+                case OBJECT:
+                    scanner.consume('{');
+                    out.write(OBJECT);
+                    if (!scanner.consumeIf('}')) {
+                        do {
+                            string(scanner.readString());
+                            scanner.consume(':');
+                            value(depth + 1);
+                        } while (scanner.consumeIf(','));
+                        scanner.consume('}');
+                    }
+                    out.write(END);
+                    break;
+
+                case ARRAY:
+                    scanner.consume('[');
+                    out.write(ARRAY);
+                    if (!scanner.consumeIf(']')) {
+                        do {
+                            value(depth + 1);
+                        } while (scanner.consumeIf(','));
+                        scanner.consume(']');
+                    }
+                    out.write(END);
+                    break;
+
+                case STRING:
+                    string(scanner.readString());
+                    break;
+
+                case NUMBER:
+                    final int start = scanner.position();
+                    scanner.skipValue();
+                    number(json.substring(start, scanner.position()));
+                    break;
+
+                case BOOLEAN:
+                    final boolean value = json.startsWith("true", scanner.position());
+                    scanner.skipValue();
+                    out.write(value ? TRUE : FALSE);
+                    break;
+
+                case NULL:
+                    scanner.skipValue();
+                    out.write(NULL);
+                    break;
+            }
+        }
+
+        private void string(String value) {
+            final Integer interned = INDICES.get(value);
+            if (interned != null) {
+                out.write(INTERNED);
+                writeVarint(out, interned);
+                return;
+            }
+
+            final Integer previous = repeated.get(value);
+            if (previous != null) {
+                out.write(REPEATED);
+                writeVarint(out, previous);
+                return;
+            }
+
+            repeated.put(value, repeated.size());
+
+            final byte[] bytes = value.getBytes(UTF8);
+            out.write(STRING);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private void number(String literal) {
+            // integers get packed as long as they round trip exactly
+            final Long value = parseLong(literal);
+            if (value != null && value.toString().equals(literal)) {
+                out.write(INTEGER);
+                writeVarint(out, (value << 1) ^ (value >> 63));
+            } else {
+                final byte[] bytes = literal.getBytes(UTF8);
+                out.write(NUMBER);
+                writeVarint(out, bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+    }
+
+    /**
+     * Treats the content as untrusted, as it may have been corrupted in
+     * storage, so any lengths and indices are checked before being used.
+     */
+    private static final class Decoder {
+
+        private final InputStream in;
+        private final StringBuilder json;
+        private final List<String> repeated = new ArrayList<>();
+
+        private long remaining;
+
+        Decoder(InputStream in, long length, StringBuilder json) {
+            this.in = in;
+            this.json = json;
+
+            remaining = length;
+        }
+
+        void value(int tag, int depth) throws IOException {
+            if (depth > MAX_DEPTH) throw new IOException("Nesting too deep");
+
+            switch (tag) {
+                case NULL:
+                    json.append("null");
+                    break;
+
+                case FALSE:
+                    json.append("false");
+                    break;
+
+                case TRUE:
+                    json.append("true");
+                    break;
+
+                case NUMBER:
+                    json.append(new String(readBytes(), UTF8));
+                    break;
+
+                case INTEGER:
+                    final long zigzag = readVarint();
+                    json.append((zigzag >>> 1) ^ -(zigzag & 1));
+                    break;
+
+                case STRING:
+                case INTERNED:
+                case REPEATED:
+                    json.append(JSONObject.quote(string(tag)));
+                    break;
+
+                case OBJECT:
+                    json.append('{');
+                    int next = read();
+                    for (boolean first = true; next != END; first = false) {
+                        if (!first) json.append(',');
+                        json.append(JSONObject.quote(string(next))).append(':');
+                        value(read(), depth + 1);
+                        next = read();
+                    }
+                    json.append('}');
+                    break;
+
+                case ARRAY:
+                    json.append('[');
+                    next = read();
+                    for (boolean first = true; next != END; first = false) {
+                        if (!first) json.append(',');
+                        value(next, depth + 1);
+                        next = read();
+                    }
+                    json.append(']');
+                    break;
+
+                default:
+                    throw new IOException("Unexpected tag " + tag);
+            }
+        }
+
+        private String string(int tag) throws IOException {
+            switch (tag) {
+                case STRING:
+                    final String value = new String(readBytes(), UTF8);
+                    repeated.add(value);
+                    return value;
+
+                case INTERNED:
+                    final long interned = readVarint();
+                    if (interned < 0 || interned >= DICTIONARY.length) {
+                        throw new IOException("Unknown interned string " + interned);
+                    }
+                    return DICTIONARY[(int) interned];
+
+                case REPEATED:
+                    final long index = readVarint();
+                    if (index < 0 || index >= repeated.size()) {
+                        throw new IOException("Unknown repeated string " + index);
+                    }
+                    return repeated.get((int) index);
+
+                default:
+                    throw new IOException("Expected string but found tag " + tag);
+            }
+        }
+
+        int read() throws IOException {
+            if (remaining <= 0) throw new EOFException();
+
+            final int value = in.read();
+            if (value < 0) throw new EOFException();
+            remaining--;
+            return value;
+        }
+
+        private byte[] readBytes() throws IOException {
+            final long length = readVarint();
+            if (length < 0 || length > remaining) {
+                throw new IOException("Length " + length + " exceeds the content");
+            }
+
+            final byte[] bytes = new byte[(int) length];
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int count = in.read(bytes, offset, bytes.length - offset);
+                if (count < 0) throw new EOFException();
+                offset += count;
+            }
+            remaining -= length;
+            return bytes;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+
+    @Nullable
+    private static Long parseLong(String literal) {
+        try {
+            return Long.parseLong(literal);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
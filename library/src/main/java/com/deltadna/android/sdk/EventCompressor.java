@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses stored events with deflate, primed with a preset dictionary
+ * of the content which is common to most events so that even small events
+ * compress well on their own.
+ */
+final class EventCompressor {
+
+    /**
+     * First byte of a compressed event, which can start neither a JSON nor
+     * an {@link EventCodec} encoded event.
+     */
+    static final int MAGIC = 0xDC;
+
+    /**
+     * The most common content goes last, as it can be referenced with the
+     * shortest distances. Must never change, as it is needed to decompress
+     * events which have already been stored.
+     */
+    private static final byte[] DICTIONARY = (
+            "\"productsReceived\":{\"items\":[{\"item\":{\"itemName\":\"\",\"itemType\":\"\",\"itemAmount\":"
+            + "\"productsSpent\":{\"virtualCurrencies\":[{\"virtualCurrency\":{\"virtualCurrencyName\":\"\","
+            + "\"virtualCurrencyType\":\"\",\"virtualCurrencyAmount\":"
+            + "\"realCurrency\":{\"realCurrencyType\":\"\",\"realCurrencyAmount\":"
+            + "\"transactionName\":\"\",\"transactionType\":\"PURCHASE\","
+            + "\"gameStarted\",\"gameEnded\",\"newPlayer\",\"clientDevice\",\"transaction\","
+            + "\"clientVersion\":\"\",\"userCountry\":\"\",\"userLanguage\":\"\","
+            + "\"ddnaSampleRate\":true,false,null,"
+            + "{\"eventName\":\"\",\"eventTimestamp\":\"2019-01-01 00:00:00.000\","
+            + "\"eventUUID\":\"\",\"sessionID\":\"\",\"userID\":\"\","
+            + "\"eventParams\":{\"platform\":\"ANDROID\",\"sdkVersion\":\"Android SDK v4.")
+            .getBytes(Charset.forName("UTF-8"));
+
+    private EventCompressor() {}
+
+    /**
+     * Checks whether the stored content has been compressed.
+     */
+    static boolean isCompressed(int first) {
+        return first == MAGIC;
+    }
+
+    /**
+     * Compresses the {@code content}, prefixing it with {@link #MAGIC}.
+     */
+    static byte[] compress(byte[] content) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(content);
+            deflater.finish();
+
+            final ByteArrayOutputStream out =
+                    new ByteArrayOutputStream(content.length / 4 + 16);
+            out.write(MAGIC);
+
+            final byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses the content from {@code in}, including the
+     * {@link #MAGIC} prefix.
+     *
+     * @throws IOException if the content is not valid compressed content
+     */
+    static byte[] decompress(InputStream in) throws IOException {
+        if (in.read() != MAGIC) throw new IOException("Not a compressed event");
+
+        final Inflater inflater = new Inflater();
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] input = new byte[4096];
+            final byte[] buffer = new byte[4096];
+
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    final int count = in.read(input);
+                    if (count < 0) throw new IOException("Truncated compressed event");
+                    inflater.setInput(input, 0, count);
+                }
+
+                final int count = inflater.inflate(buffer);
+                if (count == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                } else {
+                    out.write(buffer, 0, count);
+                }
+            }
+
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -16,21 +16,26 @@
 
 package com.deltadna.android.sdk;
 
-import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import com.deltadna.android.sdk.helpers.ClientInfo;
 import com.deltadna.android.sdk.listeners.EngageListener;
 import com.deltadna.android.sdk.listeners.RequestListener;
-import com.deltadna.android.sdk.net.CancelableRequest;
 import com.deltadna.android.sdk.net.NetworkManager;
 import com.deltadna.android.sdk.net.Response;
 import com.deltadna.android.sdk.util.CloseableIterator;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -44,6 +49,15 @@ final class EventHandler {
             + ' '
             + EventHandler.class.getSimpleName();
     
+    /**
+     * In milliseconds.
+     */
+    private static final long PERSIST_TIMEOUT = 5000;
+    /**
+     * In seconds.
+     */
+    private static final int SWEEP_INTERVAL = 10 * 60;
+    
     private final ScheduledExecutorService executor =
             new ScheduledThreadPoolExecutor(1, r -> new Thread(
                     r,
@@ -52,20 +66,37 @@ final class EventHandler {
     private final EventStore events;
     private final EngageStore engagements;
     private final NetworkManager network;
+    private final Listener listener;
     
     @Nullable
     private ScheduledFuture<?> uploadTask;
     @Nullable
+    private ScheduledFuture<?> sweepTask;
+    @Nullable
     private Future<?> upload;
     
+    private final AtomicBoolean uploading = new AtomicBoolean();
+    
+    private final Map<String, List<Waiter<?>>> inFlight = new HashMap<>();
+    
     EventHandler(
             EventStore events,
             EngageStore engagements,
             NetworkManager network) {
         
+        this(events, engagements, network, count -> {});
+    }
+    
+    EventHandler(
+            EventStore events,
+            EngageStore engagements,
+            NetworkManager network,
+            Listener listener) {
+        
         this.events = events;
         this.engagements = engagements;
         this.network = network;
+        this.listener = listener;
     }
     
     /**
@@ -83,6 +114,11 @@ final class EventHandler {
                 startDelay,
                 repeatRate,
                 TimeUnit.SECONDS);
+        sweepTask = executor.scheduleWithFixedDelay(
+                new Sweep(),
+                startDelay,
+                SWEEP_INTERVAL,
+                TimeUnit.SECONDS);
     }
     
     /**
@@ -120,14 +156,29 @@ final class EventHandler {
      * to be sent at a later time.
      */
     void handleEvent(JSONObject event) {
-        events.add(event.toString());
+        handleEvent(event.toString());
+    }
+    
+    /**
+     * Handles a collect {@code event} which has already been serialised.
+     */
+    void handleEvent(String event) {
+        events.add(event);
+    }
+    
+    /**
+     * Handles a collect {@code event} which has already been serialised,
+     * storing it with the {@code priority}.
+     */
+    void handleEvent(String event, EventPriority priority) {
+        events.add(event, priority);
     }
     
     /**
      * Handles an engage {@code event}.
      */
 
-    public class HandleEngagementTask<E extends Engagement> extends AsyncTask<Void , Void, Void> {
+    public class HandleEngagementTask<E extends Engagement> implements Runnable {
 
         final E engagement;
         final EngageListener<E> listener;
@@ -136,6 +187,11 @@ final class EventHandler {
         final int engageApiVersion;
         String sdkVersion;
         String platform;
+        /**
+         * Set once the request has completed, after which the waiters have
+         * been notified and must not be failed.
+         */
+        private final AtomicBoolean completed = new AtomicBoolean();
 
         public HandleEngagementTask(
                                     final E engagement,
@@ -156,7 +212,20 @@ final class EventHandler {
 
 
         @Override
-        protected Void doInBackground(Void... voids) {
+        public void run() {
+            try {
+                engage();
+            } catch (RuntimeException e) {
+                if (completed.get()) {
+                    Log.w(TAG, "Failed after completing engage request for " + engagement, e);
+                } else {
+                    Log.w(TAG, "Failed sending engage request for " + engagement, e);
+                    fail(engagement, listener, e);
+                }
+            }
+        }
+        
+        private void engage() {
             final JSONObject event;
             try {
                 event = new JSONObject()
@@ -183,65 +252,32 @@ final class EventHandler {
             network.engage(event, new RequestListener<JSONObject>() {
                 @Override
                 public void onCompleted(Response<JSONObject> result) {
-                    engagement.setResponse(result);
-                    if (engagement.isSuccessful()) {
-                        engagements.put(engagement);
-                    } else if (engagement.isCacheCandidate() ){
-                        Log.w(TAG, String.format(
-                                Locale.US,
-                                "Not caching %s due to failure, checking cache",
-                                engagement));
-
-                        final JSONObject cached = engagements.get(engagement);
-                        if (cached != null) {
-                            try {
-                                engagement.setResponse(new Response<>(
-                                        engagement.getStatusCode(),
-                                        true,
-                                        null,
-                                        cached.put("isCachedResponse", true),
-                                        engagement.getError()));
-
-                                Log.d(  TAG,
-                                        "Using cached response " + engagement.getJson());
-                            } catch (JSONException ignored) {}
-                        }
-                    } else {
-                        Log.w(TAG, String.format(
-                                Locale.US,
-                                "Not caching %s due to failure, and not checking cache due to client error response",
-                                engagement));
-
+                    completed.set(true);
+                    final List<Waiter<?>> waiters = complete(engagement, listener);
+                    for (int i = 0; i < waiters.size(); i++) {
+                        // each listener gets its own copy of the response
+                        waiters.get(i).onCompleted(
+                                (i == 0) ? result : copy(result),
+                                i == 0);
                     }
-                    listener.onCompleted(engagement);
                 }
 
                 @Override
                 public void onError(Throwable t) {
-                    final JSONObject cached = engagements.get(engagement);
-                    if (cached != null) {
-                        try {
-                            engagement.setResponse(new Response<>(
-                                    200,
-                                    true,
-                                    null,
-                                    cached.put("isCachedResponse", true),
-                                    null));
-
-                            Log.d(TAG, "Using cached response " + engagement.getJson());
-
-                            listener.onCompleted(engagement);
-                        } catch (JSONException e) {
-                            listener.onError(e);
-                        }
-                    } else {
-                        listener.onError(t);
+                    completed.set(true);
+                    for (final Waiter<?> waiter : complete(engagement, listener)) {
+                        waiter.onError(t);
                     }
                 }
             }, "config".equalsIgnoreCase(engagement.name) && "internal".equalsIgnoreCase(engagement.flavour));
-            return null;
         }
     }
+    
+    /**
+     * Handles an engage request for the {@code engagement}, which will be
+     * coalesced with an identical request already in flight so that a
+     * single response gets fanned out to all of the listeners.
+     */
     <E extends Engagement> void handleEngagement(
             final E engagement,
             final EngageListener<E> listener,
@@ -250,10 +286,175 @@ final class EventHandler {
             final int engageApiVersion,
             String sdkVersion,
             String platform) {
-            new HandleEngagementTask<E>(engagement, listener, userId, sessionId, engageApiVersion, sdkVersion, platform).execute();
+        
+        final String key = key(engagement);
+        synchronized (inFlight) {
+            final List<Waiter<?>> waiters = inFlight.get(key);
+            if (waiters != null) {
+                Log.d(TAG, "Coalescing with in flight request for " + engagement);
+                waiters.add(new Waiter<>(engagement, listener));
+                return;
+            }
+            
+            inFlight.put(key, new ArrayList<>(Collections.<Waiter<?>>singletonList(
+                    new Waiter<>(engagement, listener))));
+        }
+        
+        // submitted straight to the engage lane, as sending does not block
+        new HandleEngagementTask<E>(engagement, listener, userId, sessionId, engageApiVersion, sdkVersion, platform).run();
+    }
+    
+    /**
+     * Notifies all of the waiters for the {@code engagement} of the request
+     * having failed before it could be sent, so that the request does not
+     * stay in flight.
+     */
+    private void fail(
+            Engagement engagement,
+            EngageListener<?> listener,
+            Throwable t) {
+        
+        for (final Waiter<?> waiter : complete(engagement, listener)) {
+            waiter.onError(t);
+        }
+    }
+    
+    /**
+     * Removes the waiters for the request which has completed for the
+     * {@code engagement}.
+     */
+    private List<Waiter<?>> complete(
+            Engagement engagement,
+            EngageListener<?> listener) {
+        
+        final List<Waiter<?>> waiters;
+        synchronized (inFlight) {
+            waiters = inFlight.remove(key(engagement));
+        }
+        
+        // the task may have been executed directly
+        return (waiters != null)
+                ? waiters
+                : Collections.<Waiter<?>>singletonList(new Waiter<>(
+                        engagement,
+                        (EngageListener) listener));
+    }
+    
+    private static String key(Engagement engagement) {
+        return engagement.name
+                + '\u0000' + engagement.flavour
+                + '\u0000' + engagement.params.json;
+    }
+    
+    private static Response<JSONObject> copy(Response<JSONObject> response) {
+        if (response.body == null) return response;
+        
+        try {
+            return new Response<>(
+                    response.code,
+                    response.cached,
+                    response.bytes,
+                    new JSONObject(response.body.toString()),
+                    response.error);
+        } catch (JSONException e) {
+            return response;
+        }
     }
+    
+    /**
+     * Engagement waiting on the response to an engage request, together
+     * with its listener.
+     */
+    private final class Waiter<E extends Engagement> {
+        
+        private final E engagement;
+        private final EngageListener<E> listener;
         
+        Waiter(E engagement, EngageListener<E> listener) {
+            this.engagement = engagement;
+            this.listener = listener;
+        }
+        
+        /**
+         * Notifies the listener of the {@code result}, without a failing
+         * listener affecting those of the other waiters.
+         */
+        void onCompleted(Response<JSONObject> result, boolean cache) {
+            try {
+                notifyCompleted(result, cache);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed notifying listener for " + engagement, e);
+            }
+        }
+        
+        /**
+         * Notifies the listener of the failure {@code t}, without a failing
+         * listener affecting those of the other waiters.
+         */
+        void onError(Throwable t) {
+            try {
+                notifyError(t);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed notifying listener for " + engagement, e);
+            }
+        }
+        
+        private void notifyCompleted(Response<JSONObject> result, boolean cache) {
+            engagement.setResponse(result);
+            if (engagement.isSuccessful()) {
+                if (cache) engagements.put(engagement);
+            } else if (engagement.isCacheCandidate() ){
+                Log.w(TAG, String.format(
+                        Locale.US,
+                        "Not caching %s due to failure, checking cache",
+                        engagement));
+
+                final JSONObject cached = engagements.get(engagement);
+                if (cached != null) {
+                    try {
+                        engagement.setResponse(new Response<>(
+                                engagement.getStatusCode(),
+                                true,
+                                null,
+                                cached.put("isCachedResponse", true),
+                                engagement.getError()));
+
+                        Log.d(  TAG,
+                                "Using cached response " + engagement.getJson());
+                    } catch (JSONException ignored) {}
+                }
+            } else {
+                Log.w(TAG, String.format(
+                        Locale.US,
+                        "Not caching %s due to failure, and not checking cache due to client error response",
+                        engagement));
+
+            }
+            listener.onCompleted(engagement);
+        }
+        
+        private void notifyError(Throwable t) {
+            final JSONObject cached = engagements.get(engagement);
+            if (cached != null) {
+                try {
+                    engagement.setResponse(new Response<>(
+                            200,
+                            true,
+                            null,
+                            cached.put("isCachedResponse", true),
+                            null));
+
+                    Log.d(TAG, "Using cached response " + engagement.getJson());
 
+                    listener.onCompleted(engagement);
+                } catch (JSONException e) {
+                    listener.onError(e);
+                }
+            } else {
+                listener.onError(t);
+            }
+        }
+    }
     
     private void cancelUploadTask() {
         if (uploadTask != null) {
@@ -265,45 +466,56 @@ final class EventHandler {
             
             uploadTask = null;
         }
+        if (sweepTask != null) {
+            sweepTask.cancel(false);
+            sweepTask = null;
+        }
     }
     
+    /**
+     * Builds a batch from the stored events and hands it over to the
+     * network, without waiting for the upload to complete so that the
+     * thread is not held up while the request is in flight or parked.
+     */
     private final class Upload implements Runnable {
         
         @Override
         public void run() {
+            if (!uploading.compareAndSet(false, true)) {
+                Log.d(TAG, "Event upload already in flight");
+                return;
+            }
+            
             Log.v(TAG, "Starting event upload");
-            new UploadAsyncTask().execute();
-        }
-    }
-
-    private class UploadAsyncTask extends AsyncTask<Void, Void, Void>{
-
-        @Override
-        protected Void doInBackground(Void... voids) {
-
+            if (!events.awaitPersisted(PERSIST_TIMEOUT)) {
+                Log.w(TAG, "Timed out waiting for recorded events to be stored");
+            }
+            
+            final long started = SystemClock.elapsedRealtime();
             final CloseableIterator<EventStoreItem> items = events.items();
             final AtomicReference<CloseableIterator.Mode> clearEvents =
                     new AtomicReference<>(CloseableIterator.Mode.ALL);
-
+            boolean sent = false;
+            
             try {
                 if (!items.hasNext()) {
                     Log.d(TAG, "No stored events to upload");
-
+                    
                     clearEvents.set(CloseableIterator.Mode.NONE);
-                    return null;
+                    return;
                 }
-
+                
                 final StringBuilder builder = new StringBuilder("{\"eventList\":[");
                 int count = 0;
                 while (items.hasNext()) {
                     final EventStoreItem event = items.next();
-
+                    
                     if (event.available()) {
                         final String content = event.get();
                         if (content != null) {
                             builder.append(content);
                             builder.append(',');
-
+                            
                             count++;
                         } else {
                             Log.w(TAG, "Failed retrieving event, skipping");
@@ -318,20 +530,22 @@ final class EventHandler {
                     builder.deleteCharAt(builder.length() - 1);
                 }
                 builder.append("]}");
-
+                
                 final JSONObject payload;
                 try {
                     payload = new JSONObject(builder.toString());
                 } catch (JSONException e) {
                     Log.w(TAG, e);
-
+                    
                     clearEvents.set(CloseableIterator.Mode.NONE);
-                    return null;
+                    return;
                 }
-
+                events.recordBatchBuildTime(SystemClock.elapsedRealtime() - started);
+                // the store should not be held up while the request is parked
+                items.release();
+                
                 Log.d(TAG, "Uploading " + count + " events");
-                final CountDownLatch latch = new CountDownLatch(1);
-                final CancelableRequest request = network.collect(
+                network.collect(
                         payload,
                         new RequestListener<Void>() {
                             @Override
@@ -345,34 +559,61 @@ final class EventHandler {
                                         clearEvents.set(CloseableIterator.Mode.ALL);
                                     }
                                 }
-
-                                latch.countDown();
+                                
+                                finish(items, clearEvents.get());
                             }
-
+                            
                             @Override
                             public void onError(Throwable t) {
                                 Log.w(TAG,
                                         "Failed to upload events, will retry later",
                                         t);
-
-                                clearEvents.set(CloseableIterator.Mode.NONE);
-                                latch.countDown();
+                                
+                                finish(items, CloseableIterator.Mode.NONE);
                             }
                         });
-
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Log.w(TAG, "Cancelling event upload", e);
-
-                    clearEvents.set(CloseableIterator.Mode.NONE);
-                    request.cancel();
+                sent = true;
+            } finally {
+                if (!sent) {
+                    finish(items, clearEvents.get());
                 }
+            }
+        }
+        
+        private void finish(
+                CloseableIterator<EventStoreItem> items,
+                CloseableIterator.Mode mode) {
+            
+            try {
+                items.close(mode);
             } finally {
                 Log.v(TAG, "Finished event upload");
-                items.close(clearEvents.get());
+                uploading.set(false);
+            }
+        }
+    }
+    
+    /**
+     * Deletes the expired events from the store in the background.
+     */
+    private final class Sweep implements Runnable {
+        
+        @Override
+        public void run() {
+            final int count = events.expire();
+            if (count > 0) {
+                listener.onExpired(count);
             }
-            return null;
         }
     }
+    
+    interface Listener {
+        
+        /**
+         * Will be called when stored events have expired.
+         *
+         * @param count the number of expired events
+         */
+        void onExpired(int count);
+    }
 }
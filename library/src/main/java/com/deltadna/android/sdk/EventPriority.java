@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk;
+
+/**
+ * Priority of an event in the event store, which decides the order in which
+ * events get uploaded and which events make way when the store gets full.
+ * <p>
+ * Each priority may only use up to a share of the store, so that lower
+ * priority events cannot crowd out higher priority ones, with the rest of
+ * the store being reserved for critical events.
+ *
+ * @see com.deltadna.android.sdk.helpers.Settings#setEventPriority(String, EventPriority)
+ */
+public enum EventPriority {
+
+    /**
+     * For events which can be lost, such as debugging events.
+     */
+    LOW(0, 0.2f),
+    /**
+     * The default for events.
+     */
+    NORMAL(1, 0.8f),
+    /**
+     * For events which should never be lost, such as {@link Transaction}s.
+     */
+    CRITICAL(2, 1f);
+
+    /**
+     * Value persisted in the store.
+     */
+    final int value;
+    /**
+     * Share of the store which events of this priority may use.
+     */
+    final float quota;
+
+    EventPriority(int value, float quota) {
+        this.value = value;
+        this.quota = quota;
+    }
+
+    static EventPriority of(int value) {
+        for (final EventPriority priority : values()) {
+            if (priority.value == value) return priority;
+        }
+        return NORMAL;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk;
+
+import android.support.annotation.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Validator for the parameters of events, compiled from a schema in the
+ * form of
+ * <pre>{@code
+ * {
+ *     "eventName": {
+ *         "paramName": "string",
+ *         "otherParamName": {"type": "integer", "required": true}
+ *     }
+ * }
+ * }</pre>
+ * where the types can be one of {@code string}, {@code timestamp},
+ * {@code integer}, {@code float}, {@code boolean}, {@code object}, or
+ * {@code array}.
+ * <p>
+ * Events which are not in the schema are not validated, and the parameters
+ * which the SDK adds to every event never need to be declared.
+ */
+final class EventSchema {
+
+    private static final Set<String> SDK_PARAMS = new HashSet<>(Arrays.asList(
+            "platform",
+            "sdkVersion",
+            "ddnaSampleRate"));
+
+    private final Map<String, Map<String, Param>> events;
+
+    private EventSchema(Map<String, Map<String, Param>> events) {
+        this.events = events;
+    }
+
+    /**
+     * Checks whether the schema has a definition for the event.
+     */
+    boolean covers(String name) {
+        return events.containsKey(name);
+    }
+
+    /**
+     * Validates the parameters of an event.
+     *
+     * @param name      the name of the event
+     * @param params    the kinds of the parameters, keyed by name
+     *
+     * @return the description of the first violation, or {@code null} if
+     * the event is valid
+     */
+    @Nullable
+    String validate(String name, Map<String, JsonScanner.Kind> params) {
+        final Map<String, Param> expected = events.get(name);
+        if (expected == null) return null;
+
+        for (final Map.Entry<String, JsonScanner.Kind> param : params.entrySet()) {
+            final Param definition = expected.get(param.getKey());
+            if (definition == null && SDK_PARAMS.contains(param.getKey())) {
+                continue;
+            } else if (definition == null) {
+                return "Unexpected parameter " + param.getKey();
+            } else if (param.getValue() != definition.kind) {
+                return String.format(
+                        Locale.US,
+                        "Parameter %s should be %s but was %s",
+                        param.getKey(),
+                        definition.kind,
+                        param.getValue());
+            }
+        }
+
+        for (final Map.Entry<String, Param> param : expected.entrySet()) {
+            if (param.getValue().required && !params.containsKey(param.getKey())) {
+                return "Missing parameter " + param.getKey();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds out the kinds of the top level values of {@code params}.
+     */
+    static Map<String, JsonScanner.Kind> kinds(JSONObject params) {
+        final Map<String, JsonScanner.Kind> kinds = new HashMap<>(params.length());
+        final Iterator<String> keys = params.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            final Object value = params.opt(key);
+
+            final JsonScanner.Kind kind;
+            if (value instanceof String) {
+                kind = JsonScanner.Kind.STRING;
+            } else if (value instanceof Number) {
+                kind = JsonScanner.Kind.NUMBER;
+            } else if (value instanceof Boolean) {
+                kind = JsonScanner.Kind.BOOLEAN;
+            } else if (value instanceof JSONObject) {
+                kind = JsonScanner.Kind.OBJECT;
+            } else if (value instanceof JSONArray) {
+                kind = JsonScanner.Kind.ARRAY;
+            } else {
+                kind = JsonScanner.Kind.NULL;
+            }
+
+            kinds.put(key, kind);
+        }
+
+        return kinds;
+    }
+
+    /**
+     * Compiles the {@code schema}.
+     *
+     * @throws JSONException if the schema is not valid
+     */
+    static EventSchema compile(JSONObject schema) throws JSONException {
+        final Map<String, Map<String, Param>> events =
+                new HashMap<>(schema.length());
+
+        final Iterator<String> names = schema.keys();
+        while (names.hasNext()) {
+            final String name = names.next();
+            final JSONObject params = schema.getJSONObject(name);
+
+            final Map<String, Param> compiled = new HashMap<>(params.length());
+            final Iterator<String> keys = params.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                final Object definition = params.get(key);
+
+                if (definition instanceof JSONObject) {
+                    compiled.put(key, new Param(
+                            kind(((JSONObject) definition).getString("type")),
+                            ((JSONObject) definition).optBoolean("required")));
+                } else {
+                    compiled.put(key, new Param(
+                            kind(params.getString(key)),
+                            false));
+                }
+            }
+
+            events.put(name, compiled);
+        }
+
+        return new EventSchema(Collections.unmodifiableMap(events));
+    }
+
+    private static JsonScanner.Kind kind(String type) throws JSONException {
+        switch (type.toLowerCase(Locale.US)) {
+            case "string":
+            case "timestamp":
+                return JsonScanner.Kind.STRING;
+            case "integer":
+            case "float":
+                return JsonScanner.Kind.NUMBER;
+            case "boolean":
+                return JsonScanner.Kind.BOOLEAN;
+            case "object":
+                return JsonScanner.Kind.OBJECT;
+            case "array":
+                return JsonScanner.Kind.ARRAY;
+            default:
+                throw new JSONException("Unknown type " + type);
+        }
+    }
+
+    private static final class Param {
+
+        final JsonScanner.Kind kind;
+        final boolean required;
+
+        Param(JsonScanner.Kind kind, boolean required) {
+            this.kind = kind;
+            this.required = required;
+        }
+    }
+}
@@ -24,16 +24,38 @@ import android.util.Log;
 import com.deltadna.android.sdk.DatabaseHelper.Events;
 import com.deltadna.android.sdk.helpers.Settings;
 import com.deltadna.android.sdk.util.CloseableIterator;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
 
 class EventStore extends BroadcastReceiver {
 
@@ -44,12 +66,28 @@ class EventStore extends BroadcastReceiver {
     private static final Charset UTF8 = Charset.forName("UTF-8");
     static final int EVENTS_LIMIT = 1024 * 1024;
     private static final int STORE_LIMIT = 5 * EVENTS_LIMIT;
+    private static final int EVICTION_CHUNK = EVENTS_LIMIT / 4;
+    private static final String SPILL_NAME = "events.spill";
+    private static final String QUARANTINE = "quarantine" + File.separator;
+    private static final int QUARANTINE_LIMIT = 10;
+    private static final int RECONCILIATION_SLICE = 50;
+    private static final int TIER_SLICE = 20;
+    private static final String TOMBSTONE = "tombstone-";
+    private static final String PENDING_WIPES_NAME = "events.wipe";
+    private static final String PENDING_CLEAR_NAME = "events.clear";
+    private static final int WIPE_SLICE = 100;
+    private static final int MIGRATION_BATCH = 100;
+    private static final int BATCH_TIMINGS = 64;
 
     private static final IntentFilter FILTER;
 
     static {
         final IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
         filter.addDataScheme("file");
 
         FILTER = filter;
@@ -62,8 +100,47 @@ class EventStore extends BroadcastReceiver {
     private final Settings settings;
     private final Preferences prefs;
 
+    private final BlockingDeque<Pending> queue;
+    private final File spill;
+    private final Object spillLock = new Object();
+    /**
+     * Kept open for appending to {@link #spill} until it gets drained or
+     * cleared, guarded by {@link #spillLock}.
+     */
+    @Nullable
+    private DataOutputStream spillOut;
+    /**
+     * Number of events in the ingestion queue by priority value, so that
+     * finding an event to drop does not have to search the whole queue.
+     */
+    private final AtomicIntegerArray queued =
+            new AtomicIntegerArray(EventPriority.values().length);
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong quarantined = new AtomicLong();
+    private final AtomicLong adopted = new AtomicLong();
+    private final AtomicLong orphanedFiles = new AtomicLong();
+    private final AtomicLong orphanedRows = new AtomicLong();
+    private final AtomicLong tooLarge = new AtomicLong();
+    private final AtomicLong storeFull = new AtomicLong();
+
+    private final long[] batchTimings = new long[BATCH_TIMINGS];
+    private long batches;
+    private volatile long averageBatchTime;
+    private volatile long p95BatchTime;
+
     @Nullable
-    private final MessageDigest sha1;
+    private volatile Reconciliation reconciliation;
+    private volatile boolean wiping;
+    private final AtomicBoolean clearing = new AtomicBoolean();
+    private final File pendingClear;
+    private volatile boolean externalAvailable;
+    private final AtomicInteger openIterators = new AtomicInteger();
+    private final File pendingWipes;
 
     EventStore(
             Context context,
@@ -76,106 +153,535 @@ class EventStore extends BroadcastReceiver {
         this.settings = settings;
         this.prefs = prefs;
 
-        MessageDigest digest = null;
-        try {
-            digest = MessageDigest.getInstance("SHA1");
-        } catch (NoSuchAlgorithmException e) {
-            Log.w(TAG, "Hashing will be disabled", e);
-        } finally {
-            sha1 = digest;
-        }
+        queue = new LinkedBlockingDeque<>(settings.getEventQueueCapacity());
+        spill = new File(Location.INTERNAL.storage(context, ""), SPILL_NAME);
+        pendingWipes = new File(Location.INTERNAL.storage(context, ""), PENDING_WIPES_NAME);
+        pendingClear = new File(Location.INTERNAL.storage(context, ""), PENDING_CLEAR_NAME);
 
         context.registerReceiver(this, FILTER);
 
         prepare();
+
+        final Thread worker = new Thread(
+                new Worker(),
+                EventStore.class.getSimpleName());
+        worker.setDaemon(true);
+        worker.start();
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
         final String action = intent.getAction();
-        if (action != null && action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
+        if (action == null) {
+            Log.w(TAG, "Unexpected broadcast without action");
+        } else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
             Log.d(TAG, "Received media mounted broadcast");
             prepare();
         } else {
-            Log.w(TAG, "Unexpected broadcast action: " + action);
+            Log.d(TAG, "Received media unavailable broadcast: " + action);
+            externalAvailable = false;
         }
     }
 
     /**
-     * Adds content to the store in a non-blocking manner.
+     * Checks whether {@code location} is available, using the cached state
+     * of external storage rather than querying it every time.
+     */
+    private boolean available(Location location) {
+        return location == Location.INTERNAL || externalAvailable;
+    }
+
+    /**
+     * Adds content to the store with {@link EventPriority#NORMAL} priority.
      *
      * @param content the content to be saved
      */
-    synchronized void add(String content) {
+    void add(String content) {
+        add(content, EventPriority.NORMAL);
+    }
+
+    /**
+     * Adds content to the store in a non-blocking manner, unless the
+     * {@link Settings.OverflowPolicy#BLOCK} policy is in use and the
+     * ingestion queue is full.
+     *
+     * @param content   the content to be saved
+     * @param priority  the priority of the content
+     */
+    void add(String content, EventPriority priority) {
         Log.v(TAG, "Adding " + content);
 
         final byte[] bytes = content.getBytes(UTF8);
         if (bytes.length > EVENTS_LIMIT) {
             Log.w(TAG, "Skipping " + content + " due to bulk events limit");
+            tooLarge.incrementAndGet();
             return;
-        } else {
-            new CheckEventsLimitTask(db, bytes, STORE_LIMIT, content).execute();
         }
 
+        final Pending item = new Pending(
+                bytes,
+                System.currentTimeMillis(),
+                priority,
+                generation.get());
+        boolean added = false;
+        switch (settings.getEventQueueOverflowPolicy()) {
+            case DROP_OLDEST_LOW_PRIORITY:
+                while (!(added = queue.offerLast(item))) {
+                    final Pending victim = lowestPriority(priority);
+                    if (victim == null) {
+                        drop();
+                        break;
+                    } else if (queue.remove(victim)) {
+                        taken(victim);
+                        drop();
+                    }
+                }
+                break;
+
+            case DROP_NEWEST:
+                added = queue.offerLast(item);
+                if (!added) drop();
+                break;
+
+            case BLOCK:
+                try {
+                    added = queue.offerLast(
+                            item,
+                            settings.getEventQueueBlockTimeout(),
+                            TimeUnit.MILLISECONDS);
+                    if (!added) drop();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    drop();
+                }
+                break;
+
+            case SPILL_TO_DISK:
+                added = queue.offerLast(item);
+                if (!added) spill(item);
+                break;
+        }
+
+        if (added) queued.incrementAndGet(priority.value);
+    }
+
+    /**
+     * Accounts for an {@code item} having been taken out of the queue.
+     */
+    private void taken(Pending item) {
+        if (item.barrier == null) queued.decrementAndGet(item.priority.value);
+    }
+
+    /**
+     * Waits until the events which have been added so far, apart from
+     * those spilled to disk, have been written to the store.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     *
+     * @return {@code true} if the events have been written before the
+     * timeout elapsed
+     */
+    boolean awaitPersisted(long timeout) {
+        final CountDownLatch barrier = new CountDownLatch(1);
+        try {
+            return queue.offerLast(
+                    new Pending(barrier),
+                    timeout,
+                    TimeUnit.MILLISECONDS)
+                    && barrier.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Gets the number of events which have been dropped due to the
+     * ingestion queue being full.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the number of events which have been spilled to disk due to the
+     * ingestion queue being full.
+     */
+    long getSpilledCount() {
+        return spilled.get();
+    }
+
+    /**
+     * Gets the number of stored events which have been deleted due to
+     * their time to live having passed.
+     */
+    long getExpiredCount() {
+        return expired.get();
     }
 
-    private class CheckEventsLimitTask extends AsyncTask<Void, Void, Boolean> {
+    /**
+     * Gets the number of stored events which have been quarantined due to
+     * being corrupted.
+     */
+    long getQuarantinedCount() {
+        return quarantined.get();
+    }
 
-        private DatabaseHelper db;
-        private byte[] bytes;
-        private int storeLimit;
-        private String content;
+    /**
+     * Gets the number of event files without a row which have been added
+     * back into the store.
+     */
+    long getAdoptedCount() {
+        return adopted.get();
+    }
 
-        public CheckEventsLimitTask(DatabaseHelper db, byte[] bytes, int storeLimit, String content) {
+    /**
+     * Gets the number of event files without a row which have been deleted
+     * as they could not be read.
+     */
+    long getOrphanedFilesCount() {
+        return orphanedFiles.get();
+    }
 
-            this.db = db;
-            this.bytes = bytes;
-            this.storeLimit = storeLimit;
-            this.content = content;
+    /**
+     * Gets the number of event rows without a file which have been
+     * removed.
+     */
+    long getOrphanedRowsCount() {
+        return orphanedRows.get();
+    }
+
+    /**
+     * Records the time taken to build an upload batch from the store.
+     *
+     * @param millis the time in milliseconds
+     */
+    void recordBatchBuildTime(long millis) {
+        synchronized (batchTimings) {
+            batchTimings[(int) (batches++ % BATCH_TIMINGS)] = millis;
+
+            final long[] recent = Arrays.copyOf(
+                    batchTimings,
+                    (int) Math.min(batches, BATCH_TIMINGS));
+            long total = 0;
+            for (final long timing : recent) total += timing;
+            Arrays.sort(recent);
+
+            averageBatchTime = total / recent.length;
+            p95BatchTime = recent[(int) Math.ceil(recent.length * 0.95) - 1];
         }
+    }
 
-        @Override
-        protected Boolean doInBackground(Void... voids) {
-            return db.getEventsSize() + bytes.length < storeLimit;
+    /**
+     * Gets the statistics of the store, from counters which are kept up to
+     * date as events are stored and removed rather than by scanning.
+     * <p>
+     * The totals are read from the snapshot published after each change,
+     * so this never waits on the worker.
+     */
+    EventStoreStats getStats() {
+        // a requested clear empties the store, even if not yet carried out
+        final boolean cleared = clearing.get();
+        final DatabaseHelper.EventsTotals totals = db.getEventsTotals();
+        final long oldest = cleared ? -1 : totals.getOldest();
+        final long count;
+        synchronized (batchTimings) {
+            count = batches;
         }
 
-        @Override
-        protected void onPostExecute(Boolean isEnoughSpace) {
-            if (isEnoughSpace) {
-                new SaveTask(bytes).execute();
+        return new EventStoreStats(
+                cleared ? 0 : totals.getCount(Location.INTERNAL)
+                        + totals.getCount(Location.EXTERNAL),
+                cleared ? 0 : totals.getBytes(Location.INTERNAL),
+                cleared ? 0 : totals.getBytes(Location.EXTERNAL),
+                (oldest == -1) ? 0 : Math.max(0, System.currentTimeMillis() - oldest),
+                tooLarge.get(),
+                storeFull.get(),
+                dropped.get(),
+                evicted.get(),
+                expired.get(),
+                quarantined.get(),
+                count,
+                averageBatchTime,
+                p95BatchTime);
+    }
+
+    synchronized CloseableIterator<EventStoreItem> items() {
+        completeClear();
+        return new EventIterator(expiryCutoff());
+    }
+
+    /**
+     * Deletes the stored events whose time to live has passed.
+     *
+     * @return the number of deleted events
+     */
+    synchronized int expire() {
+        final long cutoff = expiryCutoff();
+        if (cutoff == Long.MIN_VALUE) return 0;
+
+        final List<Long> ids = new ArrayList<>();
+        final long size = removeRows(
+                db.getEventRowsForEviction(
+                        EventPriority.CRITICAL,
+                        cutoff,
+                        false),
+                Long.MAX_VALUE,
+                ids);
+
+        if (!ids.isEmpty()) {
+            expired.addAndGet(ids.size());
+            Log.d(TAG, String.format(
+                    Locale.US,
+                    "Expired %d events of %d bytes",
+                    ids.size(),
+                    size));
+        }
+
+        return ids.size();
+    }
+
+    /**
+     * Gets the time before which stored events have expired, or
+     * {@link Long#MIN_VALUE} if events do not expire.
+     */
+    private long expiryCutoff() {
+        final int ttl = settings.getEventTimeToLive();
+        return (ttl > 0)
+                ? System.currentTimeMillis() - ttl * 1000L
+                : Long.MIN_VALUE;
+    }
+
+    /**
+     * Clears the store without waiting on the worker, which removes the
+     * stored events before storing any of the events added after.
+     */
+    void clear() {
+        // recorded so that the events will not come back after a restart
+        try {
+            if (!pendingClear.createNewFile()) {
+                Log.v(TAG, "Clearing already pending");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed creating " + pendingClear, e);
+        }
+
+        // set before the generation changes so the worker sees it first
+        clearing.set(true);
+        generation.incrementAndGet();
+        final List<Pending> cleared = new ArrayList<>(queue.size());
+        queue.drainTo(cleared);
+        for (final Pending item : cleared) {
+            taken(item);
+            if (item.barrier != null) item.barrier.countDown();
+        }
+        synchronized (spillLock) {
+            closeSpill();
+            if (spill.exists() && !spill.delete()) {
+                Log.w(TAG, "Failed to clear " + spill);
+            }
+        }
+
+        wake();
+    }
+
+    /**
+     * Removes the stored events if a clear has been requested, which is
+     * done before storing any events and before reading the events.
+     *
+     * @return {@code true} if the store has been cleared
+     */
+    private synchronized boolean completeClear() {
+        if (!clearing.compareAndSet(true, false)) return false;
+
+        // the files are moved out of the way before the rows are removed
+        reconciliation = null;
+        final List<Location> unavailable = new ArrayList<>(1);
+        for (final Location location : Location.values()) {
+            if (available(location)) {
+                tombstone(location);
             } else {
-                Log.w(TAG, "Skipping " + content + " due to full event store");
-                return;
+                Log.w(TAG, location + " not available for clearing until mounted");
+                unavailable.add(location);
             }
+        }
+        setPendingWipes(unavailable);
 
-            new SaveTask(bytes).execute();
+        db.removeEventRows();
+
+        // unless another clear has been requested in the meantime
+        if (!clearing.get() && pendingClear.exists() && !pendingClear.delete()) {
+            Log.w(TAG, "Failed deleting " + pendingClear);
         }
+
+        wiping = true;
+        return true;
     }
 
+    /**
+     * Moves the event files of {@code location} aside in one go, to be
+     * deleted in the background, and starts afresh with an empty
+     * directory.
+     */
+    private void tombstone(Location location) {
+        for (final String name : new String[] {DIRECTORY, QUARANTINE}) {
+            final File dir = location.storage(context, name);
+            if (!dir.exists()) continue;
+
+            final File tombstone = new File(
+                    dir.getParentFile(),
+                    TOMBSTONE + dir.getName() + '-' + UUID.randomUUID());
+            if (!dir.renameTo(tombstone)) {
+                Log.w(TAG, "Failed moving " + dir + ", deleting in place");
+                final File[] files = dir.listFiles();
+                if (files != null) {
+                    for (final File file : files) {
+                        if (!file.delete()) {
+                            Log.w(TAG, "Failed to clear " + file);
+                        }
+                    }
+                }
+            }
+        }
 
-    synchronized CloseableIterator<EventStoreItem> items() {
-        return new EventIterator(db, context);
+        final File dir = location.storage(context, DIRECTORY);
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed creating " + dir);
+        }
     }
 
-    synchronized void clear() {
-        db.removeEventRows();
+    /**
+     * Persists the locations which could not be cleared as they were not
+     * available, so that their files will not come back once they are.
+     */
+    private void setPendingWipes(List<Location> locations) {
+        if (locations.isEmpty()) {
+            if (pendingWipes.exists() && !pendingWipes.delete()) {
+                Log.w(TAG, "Failed deleting " + pendingWipes);
+            }
+            return;
+        }
+
+        final StringBuilder names = new StringBuilder();
+        for (final Location location : locations) {
+            names.append(location.name()).append('\n');
+        }
+
+        final File temp = new File(
+                pendingWipes.getParentFile(),
+                pendingWipes.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(names.toString().getBytes(UTF8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed writing " + temp, e);
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing stream for " + temp, e);
+                }
+            }
+        }
+        if (!temp.renameTo(pendingWipes)) {
+            Log.w(TAG, "Failed renaming " + temp);
+        }
+    }
+
+    private List<Location> getPendingWipes() {
+        final List<Location> locations = new ArrayList<>(1);
+        if (!pendingWipes.exists()) return locations;
+
+        try {
+            for (final String name : new String(readFully(pendingWipes), UTF8).split("\n")) {
+                if (!name.isEmpty()) locations.add(Location.valueOf(name));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed reading " + pendingWipes, e);
+        }
+        return locations;
+    }
+
+    /**
+     * Deletes a bounded number of files from the tombstones left behind
+     * by clearing the store.
+     *
+     * @return {@code true} if there is more to be deleted
+     */
+    private boolean wipe() {
+        if (!wiping) return false;
+
         for (final Location location : Location.values()) {
-            if (location.available()) {
-                final File dir = location.storage(context, DIRECTORY);
-                for (final File file : dir.listFiles()) {
+            if (!available(location)) continue;
+
+            final File[] tombstones = location.storage(context, "").listFiles(
+                    (dir, name) -> name.startsWith(TOMBSTONE));
+            if (tombstones == null || tombstones.length == 0) continue;
+
+            final File tombstone = tombstones[0];
+            final String[] names = tombstone.list();
+            if (names != null) {
+                for (int i = 0; i < Math.min(names.length, WIPE_SLICE); i++) {
+                    final File file = new File(tombstone, names[i]);
                     if (!file.delete()) {
-                        Log.w(TAG, "Failed to clear " + file);
+                        Log.w(TAG, "Failed deleting " + file);
                     }
                 }
-            } else {
-                Log.w(TAG, location + " not available for clearing");
             }
+            if ((names == null || names.length <= WIPE_SLICE) && !tombstone.delete()) {
+                Log.w(TAG, "Failed deleting " + tombstone);
+                // give up on it rather than trying forever
+                continue;
+            }
+
+            return true;
         }
+
+        Log.d(TAG, "Finished wiping tombstones");
+        wiping = false;
+        return false;
+    }
+
+    /**
+     * Gets the worker going if it is waiting for events.
+     */
+    private void wake() {
+        // an empty barrier is otherwise ignored
+        queue.offerFirst(new Pending(new CountDownLatch(1)));
     }
 
-    private void prepare() {
+    private synchronized void prepare() {
+        externalAvailable = Location.EXTERNAL.available();
+
+        // a clear which was not carried out before the app was stopped
+        if (pendingClear.exists()) clearing.set(true);
+
+        // finish off clearing locations which were not available before
+        final List<Location> pending = getPendingWipes();
+        if (!pending.isEmpty()) {
+            final List<Location> remaining = new ArrayList<>(pending.size());
+            for (final Location location : pending) {
+                if (available(location)) {
+                    Log.d(TAG, "Clearing " + location + " now that it is available");
+                    tombstone(location);
+                    db.removeEventRows(location);
+                } else {
+                    remaining.add(location);
+                }
+            }
+            setPendingWipes(remaining);
+        }
+
+        // the storage may have changed underneath us
+        reconciliation = new Reconciliation();
+        wiping = true;
+
         for (final Location location : Location.values()) {
-            if (location.available()) {
+            if (available(location)) {
                 final File dir = location.storage(context, DIRECTORY);
                 if (!dir.exists()) {
                     if (!dir.mkdirs()) {
@@ -190,25 +696,33 @@ class EventStore extends BroadcastReceiver {
         }
 
         new MigrateLegacyStore(prefs).execute();
+        wake();
     }
 
-    @Nullable
-    private String md5(byte[] content) {
-        if (sha1 == null) return null;
-
-        final StringBuilder hex = new StringBuilder();
-        for (final byte aByte : sha1.digest(content)) {
-            hex.append(String.format("%02x", aByte));
-        }
-        return hex.toString();
+    private static String checksum(byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return String.format(Locale.US, "%08x", crc.getValue());
     }
 
+    /**
+     * Moves the events from the legacy store into this store, streaming the
+     * records and inserting them in batches so that the memory used does
+     * not depend on the size of the legacy store.
+     * <p>
+     * The position in the legacy files is committed straight after each
+     * batch gets stored, so that an interrupted migration resumes where it
+     * left off without reading the stored batches again. The events get
+     * random names, like events added to this store.
+     */
     private final class MigrateLegacyStore extends AsyncTask<Void, Void, Void> {
 
+        private static final String KEY_FILE = "DDSDK_EVENT_MIGRATION_FILE";
+        private static final String KEY_OFFSET = "DDSDK_EVENT_MIGRATION_OFFSET";
+
         private final Preferences prefs;
 
         private final File directory;
-        private final LegacyEventStore store;
 
         MigrateLegacyStore(Preferences prefs) {
             this.prefs = prefs;
@@ -216,11 +730,6 @@ class EventStore extends BroadcastReceiver {
             directory = new File(
                     context.getExternalFilesDir(null),
                     "/ddsdk/events/");
-            store = new LegacyEventStore(
-                    directory.getPath(),
-                    prefs,
-                    false,
-                    true);
         }
 
         @Override
@@ -229,17 +738,38 @@ class EventStore extends BroadcastReceiver {
             try {
                 if (!directory.exists()) {
                     return null;
+                }
+
+                final String resumed = prefs.getPrefs().getString(KEY_FILE, null);
+                final long offset = prefs.getPrefs().getLong(KEY_OFFSET, 0);
+                if (resumed != null) {
+                    Log.d(TAG, String.format(
+                            Locale.US,
+                            "Resuming legacy store migration from %s at %d",
+                            resumed,
+                            offset));
                 } else {
                     Log.d(TAG, "Migrating legacy store");
                 }
 
                 // migrate
-                store.swap();
-                for (final String item : store.read()) {
-                    add(item);
+                final List<File> files = LegacyEventStore.files(
+                        directory.getPath(),
+                        prefs);
+                int start = 0;
+                for (int i = 0; i < files.size(); i++) {
+                    if (files.get(i).getName().equals(resumed)) {
+                        start = i;
+                        break;
+                    }
+                }
+                for (int i = start; i < files.size(); i++) {
+                    final File file = files.get(i);
+                    if (!migrate(file, (file.getName().equals(resumed)) ? offset : 0)) {
+                        Log.w(TAG, "Legacy store migration interrupted in " + file);
+                        return null;
+                    }
                 }
-                store.clearOutfile();
-                store.clear();
 
                 // clean files
                 for (final File file : directory.listFiles()) {
@@ -257,6 +787,8 @@ class EventStore extends BroadcastReceiver {
                 final SharedPreferences.Editor editor = prefs.getPrefs().edit();
                 editor.remove("DDSDK_EVENT_IN_FILE");
                 editor.remove("DDSDK_EVENT_OUT_FILE");
+                editor.remove(KEY_FILE);
+                editor.remove(KEY_OFFSET);
                 editor.apply();
 
                 return null;
@@ -264,103 +796,970 @@ class EventStore extends BroadcastReceiver {
                 LEGACY_MIGRATION_LOCK.unlock();
             }
         }
-    }
-
-    private final class SaveTask extends AsyncTask<Void, Void, Void> {
-
-        private final byte[] content;
-        private final long time;
-
-        SaveTask(byte[] content) {
-            this.content = content;
-            time = System.currentTimeMillis();
-        }
 
-        @Override
-        protected Void doInBackground(Void... params) {
-            final String name = UUID.randomUUID().toString();
-            final Location location;
-            if (settings.isUseInternalStorageForEvents()) {
-                location = Location.INTERNAL;
-            } else if (Location.EXTERNAL.available()) {
-                location = Location.EXTERNAL;
-            } else {
-                Log.w(TAG, String.format(
-                        Locale.US,
-                        "%s not available, falling back to %s",
-                        Location.EXTERNAL,
-                        Location.INTERNAL));
-                location = Location.INTERNAL;
-            }
-            final String hash = md5(content);
-
-            final File file = new File(
-                    location.storage(context, DIRECTORY),
-                    name);
-            FileOutputStream out = null;
+        /**
+         * Migrates the records of {@code file} from {@code offset}.
+         *
+         * @return {@code true} if all of the records have been migrated
+         */
+        private boolean migrate(File file, long offset) {
+            LegacyEventStore.Records records = null;
             try {
-                out = new FileOutputStream(file);
-                out.write(content);
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "Failed opening stream for " + file, e);
-                return null;
+                records = new LegacyEventStore.Records(file, offset);
+
+                final List<String> batch = new ArrayList<>(MIGRATION_BATCH);
+                while (true) {
+                    final String record = records.next();
+                    if (record != null) batch.add(record);
+
+                    if (    batch.size() == MIGRATION_BATCH
+                            || (record == null && !batch.isEmpty())) {
+                        if (!insert(file, batch)) return false;
+
+                        /*
+                         * Committed straight after the rows so that the
+                         * batch will not be read again, as only a crash in
+                         * between could have it stored twice.
+                         */
+                        if (!prefs.getPrefs().edit()
+                                .putString(KEY_FILE, file.getName())
+                                .putLong(KEY_OFFSET, records.position())
+                                .commit()) {
+                            Log.w(TAG, "Failed recording legacy store migration progress");
+                        }
+                        batch.clear();
+                    }
+
+                    if (record == null) return true;
+                }
             } catch (IOException e) {
-                Log.e(TAG, "Failed writing to stream for " + file, e);
-                //noinspection ResultOfMethodCallIgnored
-                file.delete();
-                return null;
+                Log.w(TAG, "Failed reading legacy " + file, e);
+                // nothing more can be read from a damaged file
+                return true;
             } finally {
-                if (out != null) {
+                if (records != null) {
                     try {
-                        out.close();
+                        records.close();
                     } catch (IOException e) {
                         Log.w(TAG, "Failed closing stream for " + file, e);
                     }
                 }
             }
+        }
 
-            if (!db.insertEventRow(time, location, name, hash, file.length())) {
-                Log.w(TAG, "Failed inserting " + new String(content));
-                //noinspection ResultOfMethodCallIgnored
-                file.delete();
-            } else {
-                Log.v(TAG, "Inserted " + new String(content));
+        /**
+         * Stores a batch of records, inserting their rows in a single
+         * transaction. Holds the store lock so that reconciliation cannot
+         * adopt the files before their rows get inserted.
+         */
+        private boolean insert(File file, List<String> records) {
+            synchronized (EventStore.this) {
+                final long time = System.currentTimeMillis();
+                final long limit = (long) (STORE_LIMIT * EventPriority.NORMAL.quota);
+                long size = db.getEventsSize(EventPriority.NORMAL);
+
+                final List<ContentValues> rows = new ArrayList<>(records.size());
+                final List<File> written = new ArrayList<>(records.size());
+                for (int i = 0; i < records.size(); i++) {
+                    final byte[] bytes = records.get(i).getBytes(UTF8);
+                    if (bytes.length > EVENTS_LIMIT) {
+                        Log.w(TAG, "Skipping legacy event due to bulk events limit");
+                        tooLarge.incrementAndGet();
+                        continue;
+                    }
+
+                    final String name = UUID.randomUUID().toString()
+                            + '.' + EventPriority.NORMAL.value;
+                    final byte[] content = encode(bytes);
+                    if (size + content.length > limit) {
+                        Log.w(TAG, "Skipping legacy event due to full event store");
+                        storeFull.incrementAndGet();
+                        continue;
+                    }
+
+                    final File target = new File(
+                            Location.INTERNAL.storage(context, DIRECTORY),
+                            name);
+                    if (!write(target, content)) continue;
+
+                    written.add(target);
+                    size += content.length;
+                    rows.add(DatabaseHelper.eventRow(
+                            time,
+                            Location.INTERNAL,
+                            name,
+                            checksum(content),
+                            content.length,
+                            EventPriority.NORMAL,
+                            bytes.length));
+                }
+
+                if (!db.insertEventRows(rows)) {
+                    Log.w(TAG, "Failed inserting legacy events from " + file);
+                    for (final File target : written) {
+                        //noinspection ResultOfMethodCallIgnored
+                        target.delete();
+                    }
+                    return false;
+                }
+
+                Log.v(TAG, "Migrated " + rows.size() + " legacy events");
+                return true;
             }
+        }
+    }
 
-            return null;
+    /**
+     * Finds the oldest queued event of the lowest priority, as long as the
+     * priority is not higher than {@code priority}. Barriers are never
+     * picked, as releasing them early would report events as persisted
+     * before they are.
+     */
+    @Nullable
+    private Pending lowestPriority(EventPriority priority) {
+        for (int value = EventPriority.LOW.value; value <= priority.value; value++) {
+            if (queued.get(value) <= 0) continue;
+
+            // oldest first, so only as far as the first one of the priority
+            for (final Pending item : queue) {
+                if (item.barrier == null && item.priority.value == value) {
+                    return item;
+                }
+            }
         }
+        return null;
     }
 
-    private static final class EventIterator implements
-            CloseableIterator<EventStoreItem> {
+    /**
+     * Gets the number of stored events which have been evicted to make
+     * space for new events.
+     */
+    long getEvictedCount() {
+        return evicted.get();
+    }
 
-        private final DatabaseHelper db;
-        private final Context context;
+    /**
+     * Gets the size of the stored events which have been evicted to make
+     * space for new events.
+     */
+    long getEvictedBytes() {
+        return evictedBytes.get();
+    }
 
-        private final Cursor cursor;
+    private void drop() {
+        final long count = dropped.incrementAndGet();
+        Log.w(TAG, "Dropped event due to full ingestion queue, " + count + " so far");
+    }
 
-        EventIterator(DatabaseHelper db, Context context) {
-            this.db = db;
-            this.context = context;
+    private void spill(Pending item) {
+        synchronized (spillLock) {
+            try {
+                if (spillOut == null) {
+                    final File dir = spill.getParentFile();
+                    if (!dir.exists() && !dir.mkdirs()) {
+                        Log.w(TAG, "Failed creating " + dir);
+                    }
 
-            cursor = db.getEventRows();
-        }
+                    spillOut = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(spill, true)));
+                }
 
-        @Override
-        public boolean hasNext() {
-            return (cursor.getCount() > 0 && !cursor.isLast());
-        }
+                spillOut.writeLong(item.time);
+                spillOut.writeByte(item.priority.value);
+                spillOut.writeInt(item.content.length);
+                spillOut.write(item.content);
+                // out of the process straight away so it survives it dying
+                spillOut.flush();
 
-        @Override
-        public EventStoreItem next() {
-            if (!cursor.moveToNext()) throw new NoSuchElementException();
+                spilled.incrementAndGet();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed spilling event to " + spill, e);
+                drop();
+                closeSpill();
+            }
+        }
+    }
 
-            final Location location = getCurrentLocation();
+    /**
+     * Closes the stream appending to the spill file, if open, so that the
+     * file can be moved or deleted. Must hold {@link #spillLock}.
+     */
+    private void closeSpill() {
+        if (spillOut != null) {
+            try {
+                spillOut.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed closing stream for " + spill, e);
+            }
+            spillOut = null;
+        }
+    }
 
-            return new EventStoreItem() {
-                @Override
-                public boolean available() {
-                    return location.available();
+    /**
+     * Moves the events which have been spilled to disk into the store.
+     *
+     * @return {@code true} if any events have been moved
+     */
+    private boolean drainSpill() {
+        final File draining = new File(
+                spill.getParentFile(),
+                spill.getName() + ".draining");
+        // how far the drain has got, so that it can carry on from there
+        final File checkpoint = new File(
+                spill.getParentFile(),
+                spill.getName() + ".offset");
+        final int current = generation.get();
+
+        synchronized (spillLock) {
+            // a previous drain may have been interrupted by the process dying
+            if (!draining.exists()) {
+                if (!spill.exists()) return false;
+                closeSpill();
+                if (checkpoint.exists() && !checkpoint.delete()) {
+                    Log.w(TAG, "Failed deleting " + checkpoint);
+                    return false;
+                }
+                if (!spill.renameTo(draining)) {
+                    Log.w(TAG, "Failed renaming " + spill);
+                    return false;
+                }
+            }
+        }
+
+        DataInputStream in = null;
+        RandomAccessFile offset = null;
+        try {
+            offset = new RandomAccessFile(checkpoint, "rw");
+            long position = (offset.length() >= 8) ? offset.readLong() : 0;
+            if (position > 0) {
+                Log.d(TAG, "Resuming drain of " + draining + " from " + position);
+            }
+
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(draining)));
+            for (long skipped = 0; skipped < position; ) {
+                final long n = in.skip(position - skipped);
+                if (n <= 0) {
+                    throw new EOFException("Drained beyond the end of " + draining);
+                }
+                skipped += n;
+            }
+            while (true) {
+                final long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                final EventPriority priority = EventPriority.of(in.readByte());
+                final byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+
+                persist(new Pending(content, time, priority, current));
+
+                // at most the last event gets stored again after a crash
+                position += 8 + 1 + 4 + content.length;
+                offset.seek(0);
+                offset.writeLong(position);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed reading spilled events from " + draining, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing stream for " + draining, e);
+                }
+            }
+            if (offset != null) {
+                try {
+                    offset.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing " + checkpoint, e);
+                }
+            }
+        }
+
+        if (!draining.delete()) {
+            Log.w(TAG, "Failed deleting " + draining);
+        } else if (!checkpoint.delete()) {
+            Log.w(TAG, "Failed deleting " + checkpoint);
+        }
+
+        return true;
+    }
+
+    private synchronized void persist(Pending item) {
+        if (item.barrier != null) {
+            item.barrier.countDown();
+            return;
+        } else if (item.generation != generation.get()) {
+            // the store has been cleared since the event was added
+            return;
+        }
+
+        // events added after a clear must not be removed by it
+        completeClear();
+
+        final byte[] content = encode(item.content);
+        final long size = content.length;
+        // events of the same priority make way within its quota
+        final long excess = db.getEventsSize(item.priority)
+                + size
+                - (long) (STORE_LIMIT * item.priority.quota);
+        if (excess > 0 && evict(item.priority, true, excess) < excess) {
+            Log.w(TAG, String.format(
+                    Locale.US,
+                    "Skipping %s due to full %s quota",
+                    new String(item.content, UTF8),
+                    item.priority));
+            storeFull.incrementAndGet();
+            return;
+        }
+
+        final long overflow = db.getEventsSize() + size - STORE_LIMIT;
+        if (overflow > 0 && evict(item.priority, false, overflow) < overflow) {
+            Log.w(TAG, "Skipping " + new String(item.content, UTF8) + " due to full event store");
+            storeFull.incrementAndGet();
+            return;
+        }
+
+        save(content, item.time, item.priority, item.content.length);
+    }
+
+    /**
+     * Encodes the {@code content} for storage in the configured format,
+     * compressing it if enabled.
+     */
+    private byte[] encode(byte[] content) {
+        byte[] encoded = content;
+        if (settings.getEventStoreFormat() == Settings.StoreFormat.BINARY) {
+            try {
+                encoded = EventCodec.encode(new String(content, UTF8));
+            } catch (JSONException e) {
+                Log.w(TAG, "Failed encoding event, storing as JSON", e);
+            }
+        }
+
+        if (settings.isCompressStoredEvents()) {
+            final byte[] compressed = EventCompressor.compress(encoded);
+            if (compressed.length < encoded.length) {
+                encoded = compressed;
+            }
+        }
+
+        return encoded;
+    }
+
+    /**
+     * Evicts stored events according to the eviction policy, to make space
+     * for an event with {@code priority}. Events with a higher priority are
+     * never evicted.
+     * <p>
+     * Critical events are never refused or made to evict each other while
+     * events of a lower priority remain, regardless of the policy.
+     * <p>
+     * At least {@link #EVICTION_CHUNK} bytes get evicted at a time so that
+     * the cost of eviction is spread over a number of events.
+     *
+     * @param only      whether only events with {@code priority} should be
+     *                  evicted, to make space within its quota
+     * @param needed    the number of bytes which need to be freed up
+     *
+     * @return the number of bytes which have been freed up
+     */
+    private long evict(EventPriority priority, boolean only, long needed) {
+        final Settings.EvictionPolicy policy = settings.getEventStoreEvictionPolicy();
+
+        long freed = 0;
+        boolean same = only;
+        if (priority == EventPriority.CRITICAL && !only) {
+            freed = evict(
+                    db.getEventRowsForEviction(
+                            EventPriority.LOW,
+                            EventPriority.NORMAL,
+                            Long.MAX_VALUE,
+                            policy == Settings.EvictionPolicy.DROP_LOWEST_PRIORITY),
+                    needed,
+                    policy);
+            if (freed >= needed) return freed;
+
+            // only other critical events are left to make way
+            same = true;
+        }
+
+        final Cursor cursor;
+        switch (policy) {
+            case DROP_OLDEST:
+                cursor = db.getEventRowsForEviction(
+                        priority,
+                        Long.MAX_VALUE,
+                        false,
+                        same);
+                break;
+
+            case DROP_LOWEST_PRIORITY:
+                cursor = db.getEventRowsForEviction(
+                        priority,
+                        Long.MAX_VALUE,
+                        true,
+                        same);
+                break;
+
+            case DROP_OLDER_THAN:
+                cursor = db.getEventRowsForEviction(
+                        priority,
+                        System.currentTimeMillis()
+                                - settings.getEventStoreEvictionAge() * 1000L,
+                        false,
+                        same);
+                break;
+
+            case DROP_NEWEST:
+            default:
+                return freed;
+        }
+
+        return freed + evict(cursor, needed - freed, policy);
+    }
+
+    /**
+     * Evicts the rows from the {@code cursor} until {@code needed} bytes,
+     * or at least {@link #EVICTION_CHUNK}, have been freed up.
+     *
+     * @return the number of bytes which have been freed up
+     */
+    private long evict(
+            Cursor cursor,
+            long needed,
+            Settings.EvictionPolicy policy) {
+
+        final List<Long> ids = new ArrayList<>();
+        final long freed = removeRows(
+                cursor,
+                Math.max(needed, EVICTION_CHUNK),
+                ids);
+
+        if (!ids.isEmpty()) {
+            evicted.addAndGet(ids.size());
+            evictedBytes.addAndGet(freed);
+
+            Log.d(TAG, String.format(
+                    Locale.US,
+                    "Evicted %d events of %d bytes with %s policy",
+                    ids.size(),
+                    freed,
+                    policy));
+        }
+
+        return freed;
+    }
+
+    /**
+     * Removes the rows from the {@code cursor}, together with their files,
+     * until {@code target} bytes have been freed up. The rows get removed
+     * from the database in one go at the end.
+     *
+     * @param ids   populated with the ids of the removed rows
+     *
+     * @return the number of bytes which have been freed up
+     */
+    private long removeRows(Cursor cursor, long target, List<Long> ids) {
+        long freed = 0;
+        try {
+            while (freed < target && cursor.moveToNext()) {
+                ids.add(cursor.getLong(cursor.getColumnIndex(
+                        Events.Column.ID.toString())));
+                freed += cursor.getLong(cursor.getColumnIndex(
+                        Events.Column.SIZE.toString()));
+
+                final File file = new File(
+                        Location.valueOf(cursor.getString(cursor.getColumnIndex(
+                                Events.Column.LOCATION.toString())))
+                                .storage(context, DIRECTORY),
+                        cursor.getString(cursor.getColumnIndex(
+                                Events.Column.NAME.toString())));
+                if (!file.delete()) {
+                    Log.w(TAG, "Failed deleting " + file);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        db.removeEventRows(ids);
+        return freed;
+    }
+
+    private void save(
+            byte[] content,
+            long time,
+            EventPriority priority,
+            long length) {
+
+        // the priority is kept in the name in case the row gets lost
+        final String name = UUID.randomUUID().toString() + '.' + priority.value;
+        // always internal first, moved to external later by tiering
+        final Location location = Location.INTERNAL;
+        final String hash = checksum(content);
+
+        final File file = new File(
+                location.storage(context, DIRECTORY),
+                name);
+        if (!write(file, content)) return;
+
+        if (!db.insertEventRow(
+                time,
+                location,
+                name,
+                hash,
+                file.length(),
+                priority,
+                length)) {
+            Log.w(TAG, "Failed inserting " + name);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        } else {
+            Log.v(TAG, "Inserted " + name);
+        }
+    }
+
+    private static boolean write(File file, byte[] content) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(content);
+            return true;
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Failed opening stream for " + file, e);
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed writing to stream for " + file, e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing stream for " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a slice of the reconciliation between the event files and the
+     * rows, if there is one in progress.
+     *
+     * @return {@code true} if there is more reconciliation to be done
+     */
+    private synchronized boolean reconcile() {
+        final Reconciliation current = reconciliation;
+        if (current == null) return false;
+
+        if (current.slice()) {
+            return true;
+        } else {
+            reconciliation = null;
+            return false;
+        }
+    }
+
+    /**
+     * Moves the oldest events from internal to external storage when the
+     * internal storage used by events is above the limit, unless events
+     * should stay on internal storage or there are events being read.
+     *
+     * @return {@code true} if there are more events to be moved
+     */
+    private synchronized boolean tier() {
+        if (    settings.isUseInternalStorageForEvents()
+                || !externalAvailable
+                || openIterators.get() > 0) {
+            return false;
+        }
+
+        final long excess = db.getEventsSize(Location.INTERNAL)
+                - settings.getEventStoreInternalLimit();
+        if (excess <= 0) return false;
+
+        long moved = 0;
+        final Cursor cursor = db.getEventRowsIn(Location.INTERNAL, TIER_SLICE);
+        try {
+            while (moved < excess && cursor.moveToNext()) {
+                if (!move(
+                        cursor.getLong(cursor.getColumnIndex(
+                                Events.Column.ID.toString())),
+                        cursor.getString(cursor.getColumnIndex(
+                                Events.Column.NAME.toString())))) {
+                    return false;
+                }
+
+                moved += cursor.getLong(cursor.getColumnIndex(
+                        Events.Column.SIZE.toString()));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Log.v(TAG, "Moved " + moved + " bytes of events to " + Location.EXTERNAL);
+        return moved < excess;
+    }
+
+    /**
+     * Moves an event from internal to external storage. The copy is made
+     * before the row gets updated, and the original is deleted last, so
+     * that reconciliation can tidy up whichever file is left over if the
+     * process dies in between.
+     */
+    private boolean move(long id, String name) {
+        final File from = new File(Location.INTERNAL.storage(context, DIRECTORY), name);
+        final File to = new File(Location.EXTERNAL.storage(context, DIRECTORY), name);
+
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(from);
+            out = new FileOutputStream(to);
+
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed moving " + from + " to " + to, e);
+            //noinspection ResultOfMethodCallIgnored
+            to.delete();
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing stream for " + from, e);
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing stream for " + to, e);
+                }
+            }
+        }
+
+        if (!db.updateEventRowLocation(id, Location.EXTERNAL)) {
+            Log.w(TAG, "Failed updating location of " + name);
+            //noinspection ResultOfMethodCallIgnored
+            to.delete();
+            return false;
+        }
+        if (!from.delete()) {
+            Log.w(TAG, "Failed deleting " + from);
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds event files without a row and rows without a file, which can
+     * be left behind when the process dies part way through saving or
+     * removing an event. Runs in bounded slices so that the worker can get
+     * back to persisting events in between.
+     */
+    private final class Reconciliation {
+
+        private final Deque<File> files = new ArrayDeque<>();
+
+        private boolean listed;
+        private long lastId = -1;
+        private boolean rowsDone;
+
+        private int adoptedInPass;
+        private int orphanedFilesInPass;
+        private int orphanedRowsInPass;
+
+        /**
+         * @return {@code true} if there is more to be done
+         */
+        boolean slice() {
+            if (!listed) {
+                for (final Location location : Location.values()) {
+                    if (!available(location)) continue;
+
+                    final File[] found = location.storage(context, DIRECTORY).listFiles();
+                    if (found != null) files.addAll(Arrays.asList(found));
+                }
+                listed = true;
+                return true;
+            }
+
+            int budget = RECONCILIATION_SLICE;
+            while (budget > 0 && !files.isEmpty()) {
+                checkFile(files.poll());
+                budget--;
+            }
+            if (budget == 0) return true;
+
+            if (!rowsDone) {
+                final Cursor cursor = db.getEventRowsAfter(lastId, budget);
+                try {
+                    rowsDone = cursor.getCount() < budget;
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(cursor.getColumnIndex(
+                                Events.Column.ID.toString()));
+                        checkRow(cursor);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (!rowsDone) return true;
+            }
+
+            if (adoptedInPass + orphanedFilesInPass + orphanedRowsInPass > 0) {
+                Log.i(TAG, String.format(
+                        Locale.US,
+                        "Reconciled event store, adopted %d files, deleted %d files, removed %d rows",
+                        adoptedInPass,
+                        orphanedFilesInPass,
+                        orphanedRowsInPass));
+            }
+            return false;
+        }
+
+        private void checkFile(File file) {
+            if (!file.isFile()) return;
+
+            final Location location = Location.INTERNAL.storage(context, DIRECTORY)
+                    .equals(file.getParentFile())
+                    ? Location.INTERNAL
+                    : Location.EXTERNAL;
+
+            final Location recorded = db.getEventRowLocation(file.getName());
+            if (recorded == location) {
+                return;
+            } else if (recorded != null) {
+                // left over from moving the event between locations
+                if (file.delete()) {
+                    Log.d(TAG, "Deleted stale copy " + file);
+                    orphanedFiles.incrementAndGet();
+                    orphanedFilesInPass++;
+                }
+                return;
+            }
+
+            try {
+                final byte[] content = readFully(file);
+                final StringBuilder builder = new StringBuilder();
+                decode(new ByteArrayInputStream(content), content.length, builder);
+
+                if (db.insertEventRow(
+                        file.lastModified(),
+                        location,
+                        file.getName(),
+                        checksum(content),
+                        content.length,
+                        priority(file.getName()),
+                        builder.toString().getBytes(UTF8).length)) {
+                    Log.d(TAG, "Adopted orphaned " + file);
+                    adopted.incrementAndGet();
+                    adoptedInPass++;
+                    return;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed reading orphaned " + file, e);
+            }
+
+            if (file.delete()) {
+                Log.d(TAG, "Deleted orphaned " + file);
+                orphanedFiles.incrementAndGet();
+                orphanedFilesInPass++;
+            } else {
+                Log.w(TAG, "Failed deleting orphaned " + file);
+            }
+        }
+
+        /**
+         * Recovers the priority from the {@code name} of an event file,
+         * which files saved by earlier versions do not have.
+         */
+        private EventPriority priority(String name) {
+            final int dot = name.lastIndexOf('.');
+            if (dot == -1) return EventPriority.NORMAL;
+
+            try {
+                return EventPriority.of(Integer.parseInt(name.substring(dot + 1)));
+            } catch (NumberFormatException e) {
+                return EventPriority.NORMAL;
+            }
+        }
+
+        private void checkRow(Cursor cursor) {
+            final Location location = Location.valueOf(cursor.getString(
+                    cursor.getColumnIndex(Events.Column.LOCATION.toString())));
+            if (!available(location)) return;
+
+            final File file = new File(
+                    location.storage(context, DIRECTORY),
+                    cursor.getString(cursor.getColumnIndex(
+                            Events.Column.NAME.toString())));
+            if (!file.exists() && db.removeEventRow(cursor.getLong(
+                    cursor.getColumnIndex(Events.Column.ID.toString())))) {
+                Log.d(TAG, "Removed row for missing " + file);
+                orphanedRows.incrementAndGet();
+                orphanedRowsInPass++;
+            }
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final byte[] content = new byte[(int) file.length()];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    /**
+     * Moves events from the ingestion queue, and from the spill file once
+     * the queue has been emptied, into the store.
+     */
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                // loads the totals here rather than on the first caller
+                db.getEventsTotals();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed loading event totals", e);
+            }
+
+            while (true) {
+                try {
+                    if (completeClear()) continue;
+
+                    Pending item = queue.pollFirst();
+                    if (item == null) {
+                        if (drainSpill()) continue;
+                        if (reconcile()) continue;
+                        if (wipe()) continue;
+                        if (tier()) continue;
+
+                        item = queue.takeFirst();
+                    }
+
+                    taken(item);
+                    persist(item);
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Worker interrupted", e);
+                    return;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed persisting event", e);
+                }
+            }
+        }
+    }
+
+    private static final class Pending {
+
+        final byte[] content;
+        final long time;
+        final EventPriority priority;
+        final int generation;
+
+        @Nullable
+        final CountDownLatch barrier;
+
+        Pending(
+                byte[] content,
+                long time,
+                EventPriority priority,
+                int generation) {
+
+            this.content = content;
+            this.time = time;
+            this.priority = priority;
+            this.generation = generation;
+
+            barrier = null;
+        }
+
+        Pending(CountDownLatch barrier) {
+            this.barrier = barrier;
+
+            content = new byte[0];
+            time = 0;
+            priority = EventPriority.LOW;
+            generation = -1;
+        }
+    }
+
+    private final class EventIterator implements
+            CloseableIterator<EventStoreItem> {
+
+        private final Cursor cursor;
+        /**
+         * Files of the events found to be corrupted, keyed by row id.
+         */
+        private final Map<Long, File> corrupted = new HashMap<>();
+        /**
+         * Names of the events which fit into the batch, keyed by row id in
+         * the order they were read, as taken when releasing the cursor.
+         */
+        private final Map<Long, String> batch = new LinkedHashMap<>();
+
+        /**
+         * Uncompressed size of the events returned so far.
+         */
+        private long total;
+        /**
+         * Number of events returned before the current one.
+         */
+        private int before;
+        private boolean released;
+        private boolean closed;
+
+        EventIterator(long notBefore) {
+            cursor = db.getEventRows(notBefore);
+            openIterators.incrementAndGet();
+        }
+
+        @Override
+        public boolean hasNext() {
+            final int position = cursor.getPosition();
+            try {
+                return cursor.moveToPosition(position + 1)
+                        && total + getCurrentLength() <= EVENTS_LIMIT;
+            } finally {
+                cursor.moveToPosition(position);
+            }
+        }
+
+        @Override
+        public EventStoreItem next() {
+            if (!hasNext()) throw new NoSuchElementException();
+
+            cursor.moveToNext();
+            total += getCurrentLength();
+
+            final long id = getCurrentId();
+            final Location location = getCurrentLocation();
+            final String name = getCurrentName();
+            final String hash = getCurrentHash();
+
+            return new EventStoreItem() {
+                @Override
+                public boolean available() {
+                    return EventStore.this.available(location);
                 }
 
                 @Override
@@ -368,27 +1767,45 @@ class EventStore extends BroadcastReceiver {
                 public String get() {
                     final File file = new File(
                             location.storage(context, DIRECTORY),
-                            getCurrentName());
+                            name);
                     final StringBuilder builder = new StringBuilder();
-                    BufferedReader reader = null;
+                    final Verifier verifier = Verifier.of(hash);
+                    InputStream in = null;
                     try {
-                        reader = new BufferedReader(new InputStreamReader(
-                                new FileInputStream(file)));
-
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            builder.append(line);
+                        // hash computed on the way through the decoding
+                        in = new BufferedInputStream((verifier != null)
+                                ? verifier.wrap(new FileInputStream(file))
+                                : new FileInputStream(file));
+
+                        decode(in, file.length(), builder);
+
+                        if (verifier != null) {
+                            // anything the decoding did not need still counts
+                            final byte[] rest = new byte[512];
+                            //noinspection StatementWithEmptyBody
+                            while (in.read(rest) != -1) {}
+
+                            if (!verifier.matches()) {
+                                Log.w(TAG, "Hash mismatch for " + file);
+                                corrupted.put(id, file);
+                                return null;
+                            }
+                        } else {
+                            // nothing to verify against so it has to parse
+                            new JSONObject(builder.toString());
                         }
                     } catch (FileNotFoundException e) {
                         Log.e(TAG, "Failed opening stream for " + file, e);
+                        corrupted.put(id, file);
                         return null;
-                    } catch (IOException e) {
+                    } catch (IOException | JSONException | RuntimeException e) {
                         Log.e(TAG, "Failed reading stream for " + file, e);
+                        corrupted.put(id, file);
                         return null;
                     } finally {
-                        if (reader != null) {
+                        if (in != null) {
                             try {
-                                reader.close();
+                                in.close();
                             } catch (IOException e) {
                                 Log.w(TAG, "Failed closing stream for " + file, e);
                             }
@@ -405,31 +1822,131 @@ class EventStore extends BroadcastReceiver {
             throw new UnsupportedOperationException();
         }
 
+        /**
+         * Takes down the events which fit into the batch and closes the
+         * cursor, so that the store is not held up while the batch is
+         * being uploaded.
+         */
         @Override
-        public void close(Mode mode) {
+        public void release() {
+            if (released) return;
+            released = true;
+
             try {
-                switch (mode) {
-                    case ALL:
-                        cursor.moveToFirst();
-                        while (!cursor.isAfterLast()) {
-                            removeRow();
-                            cursor.moveToNext();
-                        }
+                before = Math.max(cursor.getPosition(), 0);
+
+                long size = 0;
+                cursor.moveToFirst();
+                while (!cursor.isAfterLast()
+                        && (size += getCurrentLength()) <= EVENTS_LIMIT) {
+                    batch.put(getCurrentId(), getCurrentName());
+                    cursor.moveToNext();
+                }
+            } finally {
+                cursor.close();
+                openIterators.decrementAndGet();
+            }
+        }
 
+        @Override
+        public void close(Mode mode) {
+            if (closed) return;
+            closed = true;
+
+            release();
+
+            // events may have been tiered since the cursor was released
+            synchronized (EventStore.this) {
+                // whatever happened to the upload these should not be retried
+                for (final Map.Entry<Long, File> entry : corrupted.entrySet()) {
+                    final File file = locate(entry.getValue().getName());
+                    quarantine(
+                            entry.getKey(),
+                            (file != null) ? file : entry.getValue());
+                }
+
+                int position = 0;
+                for (final Map.Entry<Long, String> entry : batch.entrySet()) {
+                    if (mode == Mode.NONE
+                            || (mode == Mode.UP_TO_CURRENT && position >= before)) {
                         break;
+                    }
+                    position++;
 
-                    case UP_TO_CURRENT:
-                        final int position = cursor.getPosition();
-                        cursor.moveToFirst();
-                        while (cursor.getPosition() < position) {
-                            removeRow();
-                            cursor.moveToNext();
-                        }
+                    if (!corrupted.containsKey(entry.getKey())) {
+                        removeRow(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
 
-                        break;
+        /**
+         * Gets the file of the event with {@code name} where it is stored
+         * now, or {@code null} if it is no longer stored.
+         */
+        @Nullable
+        private File locate(String name) {
+            final Location location = db.getEventRowLocation(name);
+            return (location != null)
+                    ? new File(location.storage(context, DIRECTORY), name)
+                    : null;
+        }
+
+        private void removeRow(long id, String name) {
+            // file goes first so that a file can never be left without a row
+            final File file = locate(name);
+            if (file != null && !file.delete()) {
+                Log.w(TAG, "Failed deleting " + file);
+            }
+
+            if (!db.removeEventRow(id)) {
+                Log.w(TAG, "Failed to remove event row");
+            }
+        }
+
+        /**
+         * Removes the row of a corrupted event, moving its file aside for
+         * inspection while keeping only the most recent ones.
+         */
+        private void quarantine(long id, File file) {
+            quarantined.incrementAndGet();
+
+            // file goes first so that a file can never be left without a row
+            if (file.exists()) {
+                final File dir = new File(file.getParentFile().getParentFile(), QUARANTINE);
+                if (!dir.exists() && !dir.mkdirs()) {
+                    Log.w(TAG, "Failed creating " + dir);
+                }
+                if (file.renameTo(new File(dir, file.getName()))) {
+                    Log.w(TAG, "Quarantined " + file + " in " + dir);
+                    trim(dir);
+                } else {
+                    Log.w(TAG, "Failed quarantining " + file);
+                    if (!file.delete()) {
+                        Log.w(TAG, "Failed deleting " + file);
+                    }
+                }
+            }
+
+            if (!db.removeEventRow(id)) {
+                Log.w(TAG, "Failed to remove event row");
+            }
+        }
+
+        /**
+         * Keeps only the most recent files in the quarantine {@code dir}.
+         */
+        private void trim(File dir) {
+            final File[] files = dir.listFiles();
+            if (files != null && files.length > QUARANTINE_LIMIT) {
+                Arrays.sort(files, (a, b) -> Long.compare(
+                        a.lastModified(),
+                        b.lastModified()));
+                for (int i = 0; i < files.length - QUARANTINE_LIMIT; i++) {
+                    if (!files[i].delete()) {
+                        Log.w(TAG, "Failed deleting " + files[i]);
+                    }
                 }
-            } finally {
-                cursor.close();
             }
         }
 
@@ -438,6 +1955,12 @@ class EventStore extends BroadcastReceiver {
                     cursor.getColumnIndex(Events.Column.ID.toString()));
         }
 
+        @Nullable
+        private String getCurrentHash() {
+            return cursor.getString(
+                    cursor.getColumnIndex(Events.Column.HASH.toString()));
+        }
+
         private Location getCurrentLocation() {
             return Location.valueOf(cursor.getString(
                     cursor.getColumnIndex(Events.Column.LOCATION.toString())));
@@ -448,17 +1971,127 @@ class EventStore extends BroadcastReceiver {
                     cursor.getColumnIndex(Events.Column.NAME.toString()));
         }
 
-        private void removeRow() {
-            if (!db.removeEventRow(getCurrentId())) {
-                Log.w(TAG, "Failed to remove event row");
+        private long getCurrentLength() {
+            return cursor.getLong(
+                    cursor.getColumnIndex(Events.Column.LENGTH.toString()));
+        }
+    }
+
+    /**
+     * Verifies stored content against the hash it was stored with, which
+     * is a CRC32 for events stored by this version of the store and a SHA1
+     * for events stored by earlier versions.
+     */
+    private abstract static class Verifier {
+
+        private final String hash;
+
+        Verifier(String hash) {
+            this.hash = hash;
+        }
+
+        /**
+         * Wraps {@code in} so that the hash gets computed as it is read.
+         */
+        abstract InputStream wrap(InputStream in);
+
+        abstract String computed();
+
+        boolean matches() {
+            return hash.equalsIgnoreCase(computed());
+        }
+
+        /**
+         * Creates the verifier for the stored {@code hash}, or {@code null}
+         * if there is nothing to verify against.
+         */
+        @Nullable
+        static Verifier of(@Nullable String hash) {
+            if (hash == null) {
+                return null;
+            } else if (hash.length() == 8) {
+                final Checksum checksum = new CRC32();
+                return new Verifier(hash) {
+                    @Override
+                    InputStream wrap(InputStream in) {
+                        return new CheckedInputStream(in, checksum);
+                    }
+
+                    @Override
+                    String computed() {
+                        return String.format(Locale.US, "%08x", checksum.getValue());
+                    }
+                };
+            } else if (hash.length() == 40) {
+                final MessageDigest digest;
+                try {
+                    digest = MessageDigest.getInstance("SHA1");
+                } catch (NoSuchAlgorithmException e) {
+                    Log.w(TAG, "Events stored with SHA1 cannot be verified", e);
+                    return null;
+                }
+
+                return new Verifier(hash) {
+                    @Override
+                    InputStream wrap(InputStream in) {
+                        return new DigestInputStream(in, digest);
+                    }
+
+                    @Override
+                    String computed() {
+                        final StringBuilder hex = new StringBuilder(40);
+                        for (final byte b : digest.digest()) {
+                            hex.append(String.format(Locale.US, "%02x", b));
+                        }
+                        return hex.toString();
+                    }
+                };
+            } else {
+                return null;
             }
+        }
+    }
 
-            final File file = new File(
-                    getCurrentLocation().storage(context, DIRECTORY),
-                    getCurrentName());
-            if (!file.delete()) {
-                Log.w(TAG, "Failed deleting " + file);
+    /**
+     * Decodes stored content from {@code in} into JSON, whichever format
+     * it has been stored in.
+     *
+     * @param in        a stream which supports marking
+     * @param length    the number of bytes in {@code in}
+     * @param builder   the builder to append the JSON to
+     */
+    private static void decode(InputStream in, long length, StringBuilder builder)
+            throws IOException {
+
+        InputStream content = in;
+        if (EventCompressor.isCompressed(peek(content))) {
+            final byte[] decompressed = EventCompressor.decompress(content);
+            content = new ByteArrayInputStream(decompressed);
+            length = decompressed.length;
+        }
+
+        if (EventCodec.isEncoded(peek(content))) {
+            EventCodec.decode(content, length, builder);
+        } else {
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(content, UTF8));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                builder.append(line);
             }
         }
     }
+
+    /**
+     * Reads the first byte from {@code in} without consuming it.
+     */
+    private static int peek(InputStream in) throws IOException {
+        in.mark(1);
+        try {
+            return in.read();
+        } finally {
+            in.reset();
+        }
+    }
 }
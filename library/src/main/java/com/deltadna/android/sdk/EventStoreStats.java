@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk;
+
+import com.deltadna.android.sdk.helpers.Objects;
+
+/**
+ * Snapshot of the statistics of the event store.
+ * <p>
+ * The statistics are kept up to date as events get stored and removed, so
+ * getting a snapshot is cheap enough to be done frequently, for example
+ * from a debug overlay.
+ *
+ * @see DDNA#getEventStoreStats()
+ */
+public final class EventStoreStats {
+
+    static final EventStoreStats EMPTY = new EventStoreStats(
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    private final long pendingEvents;
+    private final long internalBytes;
+    private final long externalBytes;
+    private final long oldestEventAge;
+    private final long droppedTooLarge;
+    private final long droppedStoreFull;
+    private final long droppedQueueFull;
+    private final long evicted;
+    private final long expired;
+    private final long quarantined;
+    private final long batches;
+    private final long averageBatchBuildTime;
+    private final long p95BatchBuildTime;
+
+    EventStoreStats(
+            long pendingEvents,
+            long internalBytes,
+            long externalBytes,
+            long oldestEventAge,
+            long droppedTooLarge,
+            long droppedStoreFull,
+            long droppedQueueFull,
+            long evicted,
+            long expired,
+            long quarantined,
+            long batches,
+            long averageBatchBuildTime,
+            long p95BatchBuildTime) {
+
+        this.pendingEvents = pendingEvents;
+        this.internalBytes = internalBytes;
+        this.externalBytes = externalBytes;
+        this.oldestEventAge = oldestEventAge;
+        this.droppedTooLarge = droppedTooLarge;
+        this.droppedStoreFull = droppedStoreFull;
+        this.droppedQueueFull = droppedQueueFull;
+        this.evicted = evicted;
+        this.expired = expired;
+        this.quarantined = quarantined;
+        this.batches = batches;
+        this.averageBatchBuildTime = averageBatchBuildTime;
+        this.p95BatchBuildTime = p95BatchBuildTime;
+    }
+
+    /**
+     * Gets the number of stored events waiting to be uploaded.
+     */
+    public long getPendingEvents() {
+        return pendingEvents;
+    }
+
+    /**
+     * Gets the size of the stored events waiting to be uploaded.
+     *
+     * @return the size in bytes
+     */
+    public long getPendingBytes() {
+        return internalBytes + externalBytes;
+    }
+
+    /**
+     * Gets the size of the stored events on internal storage.
+     *
+     * @return the size in bytes
+     */
+    public long getInternalBytes() {
+        return internalBytes;
+    }
+
+    /**
+     * Gets the size of the stored events on external storage.
+     *
+     * @return the size in bytes
+     */
+    public long getExternalBytes() {
+        return externalBytes;
+    }
+
+    /**
+     * Gets how long the oldest stored event has been waiting.
+     *
+     * @return the age in milliseconds, or {@code 0} if there are no stored
+     * events
+     */
+    public long getOldestEventAge() {
+        return oldestEventAge;
+    }
+
+    /**
+     * Gets the number of events which have been dropped due to being
+     * larger than a bulk upload allows.
+     */
+    public long getDroppedTooLarge() {
+        return droppedTooLarge;
+    }
+
+    /**
+     * Gets the number of events which have been dropped due to the store,
+     * or the share of the store for their priority, being full.
+     */
+    public long getDroppedStoreFull() {
+        return droppedStoreFull;
+    }
+
+    /**
+     * Gets the number of events which have been dropped due to the queue
+     * in front of the store being full.
+     */
+    public long getDroppedQueueFull() {
+        return droppedQueueFull;
+    }
+
+    /**
+     * Gets the number of stored events which have been evicted to make
+     * space for newer events.
+     */
+    public long getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * Gets the number of stored events which have been deleted due to
+     * their time to live having passed.
+     */
+    public long getExpired() {
+        return expired;
+    }
+
+    /**
+     * Gets the number of stored events which have been quarantined due to
+     * being corrupted.
+     */
+    public long getQuarantined() {
+        return quarantined;
+    }
+
+    /**
+     * Gets the number of upload batches which have been built.
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Gets the average time taken to build an upload batch, over the
+     * recent batches.
+     *
+     * @return the time in milliseconds
+     */
+    public long getAverageBatchBuildTime() {
+        return averageBatchBuildTime;
+    }
+
+    /**
+     * Gets the 95th percentile of the time taken to build an upload batch,
+     * over the recent batches.
+     *
+     * @return the time in milliseconds
+     */
+    public long getP95BatchBuildTime() {
+        return p95BatchBuildTime;
+    }
+
+    @Override
+    public String toString() {
+        return new Objects.ToStringHelper(this)
+                .add("pendingEvents", pendingEvents)
+                .add("internalBytes", internalBytes)
+                .add("externalBytes", externalBytes)
+                .add("oldestEventAge", oldestEventAge)
+                .add("droppedTooLarge", droppedTooLarge)
+                .add("droppedStoreFull", droppedStoreFull)
+                .add("droppedQueueFull", droppedQueueFull)
+                .add("evicted", evicted)
+                .add("expired", expired)
+                .add("quarantined", quarantined)
+                .add("batches", batches)
+                .add("averageBatchBuildTime", averageBatchBuildTime)
+                .add("p95BatchBuildTime", p95BatchBuildTime)
+                .toString();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.deltadna.android.sdk.helpers.Settings;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides whether events get recorded based on the sample rates and rate
+ * limits set up for their names, either through the {@link Settings} or
+ * from the session configuration.
+ * <p>
+ * Called before any work is done to serialise an event, so that dropped
+ * events cost as little as possible.
+ */
+final class EventThrottler {
+
+    private static final String TAG = BuildConfig.LOG_TAG
+            + ' '
+            + EventThrottler.class.getSimpleName();
+
+    /**
+     * Returned from {@link #admit(String)} for events which should be
+     * dropped.
+     */
+    static final double DROP = 0;
+    /**
+     * Returned from {@link #admit(String)} for events which should be
+     * recorded as they are.
+     */
+    static final double KEEP = 1;
+
+    private final Settings settings;
+    private final Random random;
+
+    private final Map<String, Bucket> buckets = new HashMap<>();
+
+    private Map<String, Double> sampleRates = Collections.emptyMap();
+    private Map<String, Settings.RateLimit> rateLimits = Collections.emptyMap();
+
+    EventThrottler(Settings settings) {
+        this(settings, new Random());
+    }
+
+    EventThrottler(Settings settings, Random random) {
+        this.settings = settings;
+        this.random = random;
+    }
+
+    /**
+     * Decides whether an event with the {@code name} should be recorded.
+     *
+     * @return {@link #DROP} if the event should be dropped, {@link #KEEP} if
+     * it should be recorded as it is, otherwise the sample rate which should
+     * be recorded with the event
+     */
+    synchronized double admit(String name) {
+        // sampled out events must not use up the tokens of recorded events
+        final Double rate = sampleRates.containsKey(name)
+                ? sampleRates.get(name)
+                : settings.getEventSampleRates().get(name);
+        final double result;
+        if (rate == null || rate >= 1) {
+            result = KEEP;
+        } else if (rate <= 0 || random.nextDouble() >= rate) {
+            return DROP;
+        } else {
+            result = rate;
+        }
+
+        final Settings.RateLimit limit = rateLimits.containsKey(name)
+                ? rateLimits.get(name)
+                : settings.getEventRateLimits().get(name);
+        if (limit != null) {
+            Bucket bucket = buckets.get(name);
+            if (bucket == null || bucket.limit != limit) {
+                bucket = new Bucket(limit);
+                buckets.put(name, bucket);
+            }
+
+            if (!bucket.take()) return DROP;
+        }
+
+        return result;
+    }
+
+    /**
+     * Applies the overrides from the parameters of the session
+     * configuration, replacing any previously applied overrides.
+     */
+    synchronized void configure(
+            @Nullable JSONObject sampling,
+            @Nullable JSONObject limits) {
+
+        if (sampling != null) {
+            final Map<String, Double> rates = new HashMap<>(sampling.length());
+            final Iterator<String> names = sampling.keys();
+            while (names.hasNext()) {
+                final String name = names.next();
+                try {
+                    final double rate = sampling.getDouble(name);
+                    if (rate >= 0 && rate <= 1) {
+                        rates.put(name, rate);
+                    } else {
+                        Log.w(TAG, "Ignoring out of range sample rate for " + name);
+                    }
+                } catch (JSONException e) {
+                    Log.w(TAG, "Failed deserialising sample rate for " + name, e);
+                }
+            }
+
+            sampleRates = Collections.unmodifiableMap(rates);
+        }
+
+        if (limits != null) {
+            final Map<String, Settings.RateLimit> rates =
+                    new HashMap<>(limits.length());
+            final Iterator<String> names = limits.keys();
+            while (names.hasNext()) {
+                final String name = names.next();
+                try {
+                    final JSONObject limit = limits.getJSONObject(name);
+                    rates.put(name, new Settings.RateLimit(
+                            limit.getDouble("perSecond"),
+                            limit.getInt("burst")));
+                } catch (JSONException | IllegalArgumentException e) {
+                    Log.w(TAG, "Failed deserialising rate limit for " + name, e);
+                }
+            }
+
+            rateLimits = Collections.unmodifiableMap(rates);
+            buckets.clear();
+        }
+    }
+
+    private static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private static final class Bucket {
+
+        final Settings.RateLimit limit;
+
+        private double tokens;
+        private long refilled;
+
+        Bucket(Settings.RateLimit limit) {
+            this.limit = limit;
+
+            tokens = limit.getBurst();
+            refilled = now();
+        }
+
+        boolean take() {
+            final long time = now();
+            tokens = Math.min(
+                    limit.getBurst(),
+                    tokens + (time - refilled) * limit.getPerSecond() / 1000);
+            refilled = time;
+
+            if (tokens >= 1) {
+                tokens--;
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+}
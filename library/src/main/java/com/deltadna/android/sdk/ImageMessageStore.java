@@ -16,6 +16,7 @@
 
 package com.deltadna.android.sdk;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
@@ -28,6 +29,7 @@ import android.util.Log;
 
 import com.deltadna.android.sdk.helpers.Settings;
 import com.deltadna.android.sdk.listeners.RequestListener;
+import com.deltadna.android.sdk.net.Download;
 import com.deltadna.android.sdk.net.NetworkManager;
 import com.deltadna.android.sdk.net.Response;
 
@@ -45,9 +47,12 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
 
+import static com.deltadna.android.sdk.DatabaseHelper.ImageMessages.Column.ETAG;
 import static com.deltadna.android.sdk.DatabaseHelper.ImageMessages.Column.ID;
+import static com.deltadna.android.sdk.DatabaseHelper.ImageMessages.Column.LAST_MODIFIED;
 import static com.deltadna.android.sdk.DatabaseHelper.ImageMessages.Column.LOCATION;
 import static com.deltadna.android.sdk.DatabaseHelper.ImageMessages.Column.NAME;
+import static com.deltadna.android.sdk.DatabaseHelper.ImageMessages.Column.URL;
 
 class ImageMessageStore {
     
@@ -145,7 +150,10 @@ class ImageMessageStore {
                     settings.isUseInternalStorageForImageMessages() || !Location.EXTERNAL.available()
                             ? Location.INTERNAL
                             : Location.EXTERNAL,
-                    Uri.parse(url).getLastPathSegment());
+                    Uri.parse(url).getLastPathSegment(),
+                    null);
+        } else {
+            file = revalidate(url, file);
         }
         
         return file;
@@ -204,20 +212,60 @@ class ImageMessageStore {
         return this;
     }
     
+    /**
+     * Revalidates the cached {@code file} for {@code url} with a
+     * conditional request if it is no longer fresh, falling back to the
+     * cached file if that fails.
+     */
+    @WorkerThread
+    private File revalidate(String url, File file) {
+        final ContentValues stale = database.getStaleImageMessage(url, new Date());
+        if (stale == null) return file;
+        
+        try {
+            return fetch(
+                    stale.getAsString(URL.toString()),
+                    Location.valueOf(stale.getAsString(LOCATION.toString())),
+                    file.getName(),
+                    stale);
+        } catch (FetchingException e) {
+            Log.w(TAG, "Failed revalidating " + url + ", using " + file, e);
+            return file;
+        }
+    }
+    
+    /**
+     * Fetches {@code url}, conditionally if {@code validators} of a
+     * previous download have been provided.
+     */
     @WorkerThread
     private File fetch(
             final String url,
             final Location location,
-            final String name) throws FetchingException {
+            final String name,
+            @Nullable ContentValues validators) throws FetchingException {
         
         final CountDownLatch latch = new CountDownLatch(1);
         
         final File file = new File(location.cache(context, SUBDIRECTORY), name);
         final AtomicReference<FetchingException> error = new AtomicReference<>();
-        final RequestListener<File> listener = new RequestListener<File>() {
+        final RequestListener<Download> listener = new RequestListener<Download>() {
             @Override
-            public void onCompleted(Response<File> response) {
-                if (response.isSuccessful()) {
+            public void onCompleted(Response<Download> response) {
+                final Download download = response.body;
+                final Date now = new Date();
+                
+                if (download != null && download.isNotModified()) {
+                    Log.v(TAG, String.format(
+                            "%s has not been modified since %s was fetched",
+                            url,
+                            file));
+                    database.updateImageMessage(
+                            url,
+                            download.getETag(),
+                            download.getLastModified(),
+                            expires(download, now));
+                } else if (response.isSuccessful()) {
                     Log.v(TAG, String.format(
                             "Successfully fetched %s to %s",
                             url,
@@ -227,7 +275,14 @@ class ImageMessageStore {
                             location,
                             name,
                             file.length(),
-                            new Date());
+                            now);
+                    if (download != null) {
+                        database.updateImageMessage(
+                                url,
+                                download.getETag(),
+                                download.getLastModified(),
+                                expires(download, now));
+                    }
                 } else {
                     Log.w(TAG, String.format(
                             Locale.ENGLISH,
@@ -256,7 +311,16 @@ class ImageMessageStore {
         };
         
         Log.v(TAG, String.format(Locale.ENGLISH, "Fetching %s to %s", url, file));
-        network.fetch(url, file, listener);
+        if (validators == null) {
+            network.fetch(url, file, listener);
+        } else {
+            network.fetch(
+                    url,
+                    file,
+                    validators.getAsString(ETAG.toString()),
+                    validators.getAsString(LAST_MODIFIED.toString()),
+                    listener);
+        }
         try {
             latch.await();
         } catch (InterruptedException e) {
@@ -279,6 +343,16 @@ class ImageMessageStore {
         }
     }
     
+    /**
+     * Works out until when the {@code download} may be used without
+     * revalidating it, which is straight away unless a max age was set.
+     */
+    private static Date expires(Download download, Date now) {
+        return (download.getMaxAge() > 0)
+                ? new Date(now.getTime() + download.getMaxAge() * 1000)
+                : now;
+    }
+    
     interface Callback<V> {
         
         void onCompleted(V value);
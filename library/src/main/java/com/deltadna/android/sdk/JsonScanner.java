@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk;
+
+import org.json.JSONException;
+
+import java.util.Locale;
+
+/**
+ * Minimal forward-only scanner over JSON text, which validates the structure
+ * as it goes along without building up an object model.
+ * <p>
+ * Used for ingesting events which have already been serialised, where
+ * parsing the whole content into a {@link org.json.JSONObject} would be
+ * wasteful.
+ */
+final class JsonScanner {
+
+    enum Kind { OBJECT, ARRAY, STRING, NUMBER, BOOLEAN, NULL }
+
+    private static final int MAX_DEPTH = 64;
+
+    private final String json;
+    private final int end;
+
+    private int position;
+
+    JsonScanner(String json) {
+        this(json, 0, json.length());
+    }
+
+    JsonScanner(String json, int start, int end) {
+        this.json = json;
+        this.end = end;
+
+        position = start;
+    }
+
+    int position() {
+        return position;
+    }
+
+    boolean atEnd() {
+        skipWhitespace();
+        return position >= end;
+    }
+
+    /**
+     * Peeks at the kind of the next value, without consuming it.
+     */
+    Kind peek() throws JSONException {
+        skipWhitespace();
+        if (position >= end) throw error("Unexpected end of input");
+
+        final char c = json.charAt(position);
+        switch (c) {
+            case '{': return Kind.OBJECT;
+            case '[': return Kind.ARRAY;
+            case '"': return Kind.STRING;
+            case 't':
+            case 'f': return Kind.BOOLEAN;
+            case 'n': return Kind.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return Kind.NUMBER;
+                } else {
+                    throw error("Unexpected character '" + c + "'");
+                }
+        }
+    }
+
+    /**
+     * Consumes the {@code expected} character, skipping any leading
+     * whitespace.
+     */
+    void consume(char expected) throws JSONException {
+        skipWhitespace();
+        if (position >= end || json.charAt(position) != expected) {
+            throw error("Expected '" + expected + "'");
+        }
+        position++;
+    }
+
+    /**
+     * Consumes the {@code expected} character if it is next.
+     *
+     * @return {@code true} if the character was consumed
+     */
+    boolean consumeIf(char expected) {
+        skipWhitespace();
+        if (position < end && json.charAt(position) == expected) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads a string value, resolving any escape sequences.
+     */
+    String readString() throws JSONException {
+        consume('"');
+
+        StringBuilder builder = null;
+        int from = position;
+        while (position < end) {
+            final char c = json.charAt(position);
+            if (c == '"') {
+                final String value = (builder == null)
+                        ? json.substring(from, position)
+                        : builder.append(json, from, position).toString();
+                position++;
+                return value;
+            } else if (c == '\\') {
+                if (builder == null) builder = new StringBuilder();
+                builder.append(json, from, position);
+                builder.append(readEscape());
+                from = position;
+            } else if (c < 0x20) {
+                throw error("Unescaped control character");
+            } else {
+                position++;
+            }
+        }
+
+        throw error("Unterminated string");
+    }
+
+    /**
+     * Skips over the next value while validating it.
+     *
+     * @return the kind of the skipped value
+     */
+    Kind skipValue() throws JSONException {
+        return skipValue(0);
+    }
+
+    JSONException error(String message) {
+        return new JSONException(String.format(
+                Locale.US,
+                "%s at %d",
+                message,
+                position));
+    }
+
+    private Kind skipValue(int depth) throws JSONException {
+        if (depth > MAX_DEPTH) throw error("Nesting too deep");
+
+        final Kind kind = peek();
+        switch (kind) {
+            case OBJECT:
+                position++;
+                if (!consumeIf('}')) {
+                    do {
+                        skipString();
+                        consume(':');
+                        skipValue(depth + 1);
+                    } while (consumeIf(','));
+                    consume('}');
+                }
+                break;
+
+            case ARRAY:
+                position++;
+                if (!consumeIf(']')) {
+                    do {
+                        skipValue(depth + 1);
+                    } while (consumeIf(','));
+                    consume(']');
+                }
+                break;
+
+            case STRING:
+                skipString();
+                break;
+
+            case NUMBER:
+                skipNumber();
+                break;
+
+            case BOOLEAN:
+                if (!skipLiteral("true")) {
+                    if (!skipLiteral("false")) throw error("Invalid literal");
+                }
+                break;
+
+            case NULL:
+                if (!skipLiteral("null")) throw error("Invalid literal");
+                break;
+        }
+
+        return kind;
+    }
+
+    private void skipString() throws JSONException {
+        consume('"');
+
+        while (position < end) {
+            final char c = json.charAt(position);
+            if (c == '"') {
+                position++;
+                return;
+            } else if (c == '\\') {
+                readEscape();
+            } else if (c < 0x20) {
+                throw error("Unescaped control character");
+            } else {
+                position++;
+            }
+        }
+
+        throw error("Unterminated string");
+    }
+
+    private char readEscape() throws JSONException {
+        position++; // backslash
+        if (position >= end) throw error("Unterminated escape sequence");
+
+        final char c = json.charAt(position++);
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'u':
+                if (position + 4 > end) throw error("Invalid unicode escape");
+                try {
+                    final char value = (char) Integer.parseInt(
+                            json.substring(position, position + 4),
+                            16);
+                    position += 4;
+                    return value;
+                } catch (NumberFormatException e) {
+                    throw error("Invalid unicode escape");
+                }
+            default:
+                throw error("Invalid escape sequence");
+        }
+    }
+
+    private void skipNumber() throws JSONException {
+        final int start = position;
+
+        if (json.charAt(position) == '-') position++;
+        if (skipDigits() == 0) throw error("Invalid number");
+        if (position < end && json.charAt(position) == '.') {
+            position++;
+            if (skipDigits() == 0) throw error("Invalid number");
+        }
+        if (position < end
+                && (json.charAt(position) == 'e' || json.charAt(position) == 'E')) {
+            position++;
+            if (position < end
+                    && (json.charAt(position) == '+' || json.charAt(position) == '-')) {
+                position++;
+            }
+            if (skipDigits() == 0) throw error("Invalid number");
+        }
+
+        if (position == start) throw error("Invalid number");
+    }
+
+    private int skipDigits() {
+        final int start = position;
+        while (position < end) {
+            final char c = json.charAt(position);
+            if (c >= '0' && c <= '9') {
+                position++;
+            } else {
+                break;
+            }
+        }
+        return position - start;
+    }
+
+    private boolean skipLiteral(String literal) {
+        if (json.startsWith(literal, position)
+                && position + literal.length() <= end) {
+            position += literal.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (position < end) {
+            final char c = json.charAt(position);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                position++;
+            } else {
+                break;
+            }
+        }
+    }
+}
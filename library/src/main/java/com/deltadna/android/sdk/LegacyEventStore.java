@@ -17,13 +17,19 @@
 package com.deltadna.android.sdk;
 
 import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
 
 import com.deltadna.android.sdk.helpers.Utils;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -247,6 +253,102 @@ class LegacyEventStore {
         tempFile.delete();
         tempFile = null;
     }
+    /**
+     * Lists the existing files of the store at {@code path} without
+     * modifying them, with the out buffer first as it holds the older
+     * events.
+     *
+     * @param path  the path of the store
+     * @param prefs the preferences holding the names of the buffers
+     *
+     * @return the files of the store
+     */
+    static List<File> files(String path, Preferences prefs) {
+        final List<File> files = new ArrayList<File>(2);
+        for (final String name : new String[] {
+                prefs.getPrefs().getString(PF_KEY_OUT_FILE, FILE_B),
+                prefs.getPrefs().getString(PF_KEY_IN_FILE, FILE_A)}) {
+            // support legacy pp that could have full path
+            final File file = new File(path, new File(name).getName());
+            if (file.exists() && !files.contains(file)) {
+                files.add(file);
+            }
+        }
+
+        return files;
+    }
+    /**
+     * Streams the records of a store file one at a time, instead of
+     * reading all of them into memory.
+     */
+    static final class Records implements Closeable {
+
+        private final InputStream in;
+        private long position;
+
+        /**
+         * @param file      the file to read
+         * @param offset    the position of the first record to read
+         *
+         * @throws IOException if the file cannot be opened
+         */
+        Records(File file, long offset) throws IOException {
+            in = new BufferedInputStream(new FileInputStream(file));
+
+            while (position < offset) {
+                final long skipped = in.skip(offset - position);
+                if (skipped <= 0) break;
+                position += skipped;
+            }
+        }
+
+        /**
+         * Gets the position of the next record in the file.
+         */
+        long position() {
+            return position;
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @return the record, or {@code null} if there are no more
+         * complete records
+         *
+         * @throws IOException if the file could not be read
+         */
+        @Nullable
+        String next() throws IOException {
+            final byte[] length = new byte[4];
+            if (!read(length)) return null;
+
+            final int size = Utils.toInt32(length);
+            if (size < 0 || size > MAX_FILE_SIZE) {
+                throw new IOException("Invalid record length " + size);
+            }
+
+            final byte[] record = new byte[size];
+            if (!read(record)) return null;
+
+            position += length.length + record.length;
+            return new String(record, "UTF-8");
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean read(byte[] buffer) throws IOException {
+            int offset = 0;
+            while (offset < buffer.length) {
+                final int count = in.read(buffer, offset, buffer.length - offset);
+                if (count < 0) return false;
+                offset += count;
+            }
+            return true;
+        }
+    }
     /**
      * Message logging call.
      *
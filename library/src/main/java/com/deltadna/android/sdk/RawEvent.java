@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk;
+
+import android.support.annotation.Nullable;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An event which has already been serialised into JSON, for example by an
+ * engine bridge, and which gets validated and completed with the standard
+ * fields without being parsed into a {@link JSONObject}.
+ */
+final class RawEvent {
+
+    private static final String EVENT_NAME = "eventName";
+    private static final String EVENT_PARAMS = "eventParams";
+
+    final String name;
+
+    /**
+     * Kinds of the top level values of {@code eventParams}, keyed by
+     * parameter name.
+     */
+    final Map<String, JsonScanner.Kind> params;
+
+    private final String json;
+    private final int end;
+    private final Set<String> keys;
+
+    private final int objectStart;
+    private final int paramsStart;
+    private final int paramsEnd;
+
+    private final Map<String, String> fields = new LinkedHashMap<>();
+    private final Map<String, Object> extraParams = new LinkedHashMap<>();
+    /**
+     * Keys of the parameters in {@code eventParams} which have been
+     * replaced by added parameters.
+     */
+    private final Set<String> replaced = new HashSet<>();
+
+    private RawEvent(
+            String json,
+            int end,
+            Set<String> keys,
+            String name,
+            Map<String, JsonScanner.Kind> params,
+            int objectStart,
+            int paramsStart,
+            int paramsEnd) {
+
+        this.json = json;
+        this.end = end;
+        this.keys = keys;
+        this.name = name;
+        this.params = params;
+        this.objectStart = objectStart;
+        this.paramsStart = paramsStart;
+        this.paramsEnd = paramsEnd;
+    }
+
+    /**
+     * Adds a top level field to the event, unless the event already has
+     * one with the same key or the {@code value} is null.
+     */
+    RawEvent putFieldIfAbsent(String key, @Nullable String value) {
+        if (value != null && !keys.contains(key)) fields.put(key, value);
+        return this;
+    }
+
+    /**
+     * Sets a parameter on the event, replacing any parameter the event
+     * already has with the same key, unless the {@code value} is null.
+     */
+    RawEvent putParam(String key, @Nullable Object value) {
+        if (value != null) {
+            extraParams.put(key, value);
+            if (params.containsKey(key)) replaced.add(key);
+        }
+        return this;
+    }
+
+    /**
+     * Parses only the {@code eventParams} of the event into
+     * {@link Params}, for when the event needs to be evaluated.
+     */
+    Params toParams() {
+        final Params result = new Params();
+        if (paramsStart != -1) {
+            try {
+                final JSONObject json = new JSONObject(
+                        this.json.substring(paramsStart, paramsEnd));
+                final Iterator<String> keys = json.keys();
+                while (keys.hasNext()) {
+                    final String key = keys.next();
+                    result.put(key, json.get(key));
+                }
+            } catch (JSONException e) {
+                // should never happen as the content has been validated
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Serialises the event, including any fields and parameters which
+     * have been added.
+     */
+    String serialise() {
+        final StringBuilder builder = new StringBuilder(
+                (end - objectStart) + 64 * (fields.size() + extraParams.size()));
+
+        builder.append('{');
+        for (final Map.Entry<String, String> field : fields.entrySet()) {
+            builder.append(JSONObject.quote(field.getKey()))
+                    .append(':')
+                    .append(JSONObject.quote(field.getValue()))
+                    .append(',');
+        }
+
+        if (paramsStart == -1) {
+            builder.append('"').append(EVENT_PARAMS).append("\":{");
+            appendExtraParams(builder);
+            builder.append("},");
+            builder.append(json, objectStart + 1, end);
+        } else if (replaced.isEmpty()) {
+            builder.append(json, objectStart + 1, paramsStart + 1);
+            appendExtraParams(builder);
+            if (!extraParams.isEmpty() && !params.isEmpty()) {
+                builder.append(',');
+            }
+            builder.append(json, paramsStart + 1, end);
+        } else {
+            builder.append(json, objectStart + 1, paramsStart + 1);
+            appendExtraParams(builder);
+            appendRemainingParams(builder);
+            builder.append('}');
+            builder.append(json, paramsEnd, end);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Appends the parameters from {@code eventParams} which have not been
+     * replaced, after the added ones. The parameters get scanned again as
+     * only their keys are kept from the first time around.
+     */
+    private void appendRemainingParams(StringBuilder builder) {
+        final JsonScanner scanner = new JsonScanner(json, paramsStart, paramsEnd);
+        try {
+            scanner.consume('{');
+            if (!scanner.consumeIf('}')) {
+                do {
+                    final int start = scanner.position();
+                    final String key = scanner.readString();
+                    scanner.consume(':');
+                    scanner.skipValue();
+
+                    if (!replaced.contains(key)) {
+                        builder.append(',').append(json, start, scanner.position());
+                    }
+                } while (scanner.consumeIf(','));
+            }
+        } catch (JSONException e) {
+            // should never happen as the content has been validated
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void appendExtraParams(StringBuilder builder) {
+        boolean first = true;
+        for (final Map.Entry<String, Object> param : extraParams.entrySet()) {
+            if (!first) builder.append(',');
+            first = false;
+
+            builder.append(JSONObject.quote(param.getKey())).append(':');
+            if (param.getValue() instanceof String) {
+                builder.append(JSONObject.quote((String) param.getValue()));
+            } else {
+                builder.append(param.getValue());
+            }
+        }
+    }
+
+    /**
+     * Parses a single event.
+     *
+     * @throws JSONException if the event is not valid
+     */
+    static RawEvent parse(String json) throws JSONException {
+        final JsonScanner scanner = new JsonScanner(json);
+        final RawEvent event = read(json, scanner);
+        if (!scanner.atEnd()) throw scanner.error("Unexpected content");
+
+        return validate(event);
+    }
+
+    /**
+     * Parses either a single event object or an array of event objects,
+     * skipping over the events which fail validation.
+     *
+     * @param failures  collects the reasons for events which were skipped,
+     *                  may be {@code null}
+     *
+     * @throws JSONException if the overall structure is not valid
+     */
+    static List<RawEvent> parseAll(
+            String json,
+            @Nullable List<JSONException> failures) throws JSONException {
+
+        final JsonScanner scanner = new JsonScanner(json);
+        final List<RawEvent> events = new ArrayList<>();
+
+        if (scanner.peek() == JsonScanner.Kind.OBJECT) {
+            events.add(parse(json));
+            return events;
+        }
+
+        scanner.consume('[');
+        if (!scanner.consumeIf(']')) {
+            do {
+                try {
+                    events.add(validate(read(json, scanner)));
+                } catch (InvalidEventException e) {
+                    if (failures != null) failures.add(e);
+                }
+            } while (scanner.consumeIf(','));
+            scanner.consume(']');
+        }
+        if (!scanner.atEnd()) throw scanner.error("Unexpected content");
+
+        return events;
+    }
+
+    private static RawEvent validate(RawEvent event) throws JSONException {
+        if (event.name == null || event.name.isEmpty()) {
+            throw new InvalidEventException(
+                    EVENT_NAME + " is missing, empty, or not a string");
+        } else if (event.params == null) {
+            throw new InvalidEventException(EVENT_PARAMS + " is not an object");
+        }
+
+        return event;
+    }
+
+    /**
+     * Reads an event object from the current position of the
+     * {@code scanner}, consuming all of it.
+     */
+    private static RawEvent read(String json, JsonScanner scanner)
+            throws JSONException {
+
+        if (scanner.peek() != JsonScanner.Kind.OBJECT) {
+            throw scanner.error("Event is not an object");
+        }
+
+        final int objectStart = scanner.position();
+        scanner.consume('{');
+
+        String name = null;
+        Map<String, JsonScanner.Kind> params = new HashMap<>();
+        int paramsStart = -1;
+        int paramsEnd = -1;
+        final Set<String> keys = new HashSet<>();
+
+        if (!scanner.consumeIf('}')) {
+            do {
+                final String key = scanner.readString();
+                scanner.consume(':');
+                keys.add(key);
+
+                if (EVENT_NAME.equals(key)
+                        && scanner.peek() == JsonScanner.Kind.STRING) {
+                    name = scanner.readString();
+                } else if (EVENT_PARAMS.equals(key)
+                        && scanner.peek() == JsonScanner.Kind.OBJECT) {
+                    paramsStart = scanner.position();
+                    params = scanParams(scanner);
+                    paramsEnd = scanner.position();
+                } else {
+                    if (EVENT_PARAMS.equals(key)) params = null;
+                    scanner.skipValue();
+                }
+            } while (scanner.consumeIf(','));
+            scanner.consume('}');
+        }
+
+        return new RawEvent(
+                json,
+                scanner.position(),
+                keys,
+                name,
+                params,
+                objectStart,
+                paramsStart,
+                paramsEnd);
+    }
+
+    private static Map<String, JsonScanner.Kind> scanParams(JsonScanner scanner)
+            throws JSONException {
+
+        final Map<String, JsonScanner.Kind> params = new HashMap<>();
+
+        scanner.consume('{');
+        if (!scanner.consumeIf('}')) {
+            do {
+                final String key = scanner.readString();
+                scanner.consume(':');
+                params.put(key, scanner.skipValue());
+            } while (scanner.consumeIf(','));
+            scanner.consume('}');
+        }
+
+        return params;
+    }
+
+    /**
+     * Thrown for events which are well formed JSON, but which are not
+     * valid as events.
+     */
+    static final class InvalidEventException extends JSONException {
+
+        InvalidEventException(String message) {
+            super(message);
+        }
+    }
+}
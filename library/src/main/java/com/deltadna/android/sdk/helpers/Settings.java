@@ -16,7 +16,16 @@
 
 package com.deltadna.android.sdk.helpers;
 
+import android.support.annotation.Nullable;
 import com.deltadna.android.sdk.EventActionHandler;
+import com.deltadna.android.sdk.EventPriority;
+import com.deltadna.android.sdk.net.HttpTransport;
+import com.deltadna.android.sdk.net.RequestMetrics;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * DeltaDNA runtime setting.
@@ -95,6 +104,51 @@ public class Settings{
 	private EventActionHandler.ImageMessageHandler defaultImageMessageHandler = null;
 	private	EventActionHandler.GameParametersHandler defaultGameParametersHandler = null;
 
+	private final Map<String, Double> eventSampleRates = new HashMap<>();
+	private final Map<String, Double> eventSampleRatesView =
+			Collections.unmodifiableMap(eventSampleRates);
+	private final Map<String, RateLimit> eventRateLimits = new HashMap<>();
+	private final Map<String, RateLimit> eventRateLimitsView =
+			Collections.unmodifiableMap(eventRateLimits);
+	/**
+	 * In seconds.
+	 */
+	private int aggregationWindow = 60;
+	/**
+	 * In seconds.
+	 */
+	private int aggregationCheckpointInterval = 10;
+
+	@Nullable
+	private JSONObject eventSchema;
+
+	private int eventQueueCapacity = 1000;
+	private OverflowPolicy eventQueueOverflowPolicy = OverflowPolicy.SPILL_TO_DISK;
+	/**
+	 * In milliseconds.
+	 */
+	private int eventQueueBlockTimeout = 100;
+
+	private final Map<String, EventPriority> eventPriorities = new HashMap<>();
+	private final Map<String, EventPriority> eventPrioritiesView =
+			Collections.unmodifiableMap(eventPriorities);
+	private EvictionPolicy eventStoreEvictionPolicy = EvictionPolicy.DROP_LOWEST_PRIORITY;
+	/**
+	 * In seconds.
+	 */
+	private int eventStoreEvictionAge = 7 * 24 * 60 * 60;
+	/**
+	 * In seconds.
+	 */
+	private int eventTimeToLive = 0;
+	private StoreFormat eventStoreFormat = StoreFormat.JSON;
+	private boolean compressStoredEvents = false;
+	private int eventStoreInternalLimit = 1024 * 1024;
+	@Nullable
+	private HttpTransport httpTransport;
+	@Nullable
+	private RequestMetrics.Listener requestMetricsListener;
+
 	/**
 	 * TRUE to send new player event on first run of application.
 	 *
@@ -494,4 +548,561 @@ public class Settings{
 		Preconditions.checkArg(httpRequestConfigMaxRetries >= 0, "value cannot be negative");
 		this.httpRequestConfigMaxRetries = httpRequestConfigMaxRetries;
 	}
+
+	/**
+	 * Gets the sample rates for events, keyed by event name.
+	 *
+	 * @return the read-only sample rates
+	 */
+	public Map<String, Double> getEventSampleRates() {
+		return eventSampleRatesView;
+	}
+
+	/**
+	 * Sets the sample rate for an event, which will result in only that
+	 * proportion of events with the {@code eventName} being recorded. Recorded
+	 * events will have the rate added as the {@code ddnaSampleRate}
+	 * parameter, so the parameter will need to be added to the event in the
+	 * Event Manager.
+	 * <p>
+	 * The rate may be overridden from the session configuration.
+	 *
+	 * @param eventName the name of the event
+	 * @param rate      the sample rate, between {@code 0} and {@code 1}
+	 *
+	 * @throws IllegalArgumentException if the {@code eventName} is null or
+	 *                                  empty, or the {@code rate} is out of
+	 *                                  range
+	 */
+	public void setEventSampleRate(String eventName, double rate) {
+		Preconditions.checkString(eventName, "eventName cannot be null or empty");
+		Preconditions.checkArg(
+				rate >= 0 && rate <= 1,
+				"rate must be between 0 and 1");
+
+		eventSampleRates.put(eventName, rate);
+	}
+
+	/**
+	 * Gets the rate limits for events, keyed by event name.
+	 *
+	 * @return the read-only rate limits
+	 */
+	public Map<String, RateLimit> getEventRateLimits() {
+		return eventRateLimitsView;
+	}
+
+	/**
+	 * Sets a rate limit for an event, which will result in events with the
+	 * {@code eventName} being dropped when they are recorded more
+	 * frequently than allowed.
+	 * <p>
+	 * The limit may be overridden from the session configuration.
+	 *
+	 * @param eventName the name of the event
+	 * @param perSecond the sustained number of events allowed per second
+	 * @param burst     the number of events allowed in a burst
+	 *
+	 * @throws IllegalArgumentException if the {@code eventName} is null or
+	 *                                  empty, or the values are not positive
+	 */
+	public void setEventRateLimit(
+			String eventName,
+			double perSecond,
+			int burst) {
+
+		Preconditions.checkString(eventName, "eventName cannot be null or empty");
+
+		eventRateLimits.put(eventName, new RateLimit(perSecond, burst));
+	}
+
+	/**
+	 * Removes any sample rate and rate limit for an event.
+	 *
+	 * @param eventName the name of the event
+	 */
+	public void clearEventLimits(String eventName) {
+		eventSampleRates.remove(eventName);
+		eventRateLimits.remove(eventName);
+	}
+
+	/**
+	 * Gets the length of the window over which values are aggregated
+	 * before a summary event is recorded.
+	 *
+	 * @return the window in seconds
+	 */
+	public int getAggregationWindow() {
+		return aggregationWindow;
+	}
+
+	/**
+	 * Sets the length of the window over which values are aggregated
+	 * before a summary event is recorded.
+	 *
+	 * @param seconds the window in seconds
+	 *
+	 * @throws IllegalArgumentException if the {@code seconds} is not positive
+	 */
+	public void setAggregationWindow(int seconds) {
+		Preconditions.checkArg(seconds > 0, "seconds must be positive");
+
+		aggregationWindow = seconds;
+	}
+
+	/**
+	 * Gets the interval at which aggregated values are saved to disk.
+	 *
+	 * @return the interval in seconds
+	 */
+	public int getAggregationCheckpointInterval() {
+		return aggregationCheckpointInterval;
+	}
+
+	/**
+	 * Sets the interval at which aggregated values are saved to disk, so
+	 * that they can be restored if the app gets killed. A value of
+	 * {@code 0} means values will only be saved at the end of a window.
+	 *
+	 * @param seconds the interval in seconds
+	 *
+	 * @throws IllegalArgumentException if the {@code seconds} is negative
+	 */
+	public void setAggregationCheckpointInterval(int seconds) {
+		Preconditions.checkArg(seconds >= 0, "seconds cannot be negative");
+
+		aggregationCheckpointInterval = seconds;
+	}
+
+	/**
+	 * Gets the event schema which events are validated against.
+	 *
+	 * @return the event schema, or {@code null} if not set
+	 */
+	@Nullable
+	public JSONObject getEventSchema() {
+		return eventSchema;
+	}
+
+	/**
+	 * Sets the event schema which events will be validated against before
+	 * they get stored, for example one bundled with the game. Events failing
+	 * the validation will be dropped, instead of being rejected by Collect.
+	 * <p>
+	 * The schema maps event names to their parameters, which map to either
+	 * the type of the parameter, or to an object with the {@code type} and
+	 * whether the parameter is {@code required}. The types can be one of
+	 * {@code string}, {@code timestamp}, {@code integer}, {@code float},
+	 * {@code boolean}, {@code object}, or {@code array}. Events which are
+	 * not in the schema will not be validated.
+	 * <p>
+	 * The schema may be overridden from the session configuration.
+	 *
+	 * @param schema the event schema, or {@code null} to disable validation
+	 */
+	public void setEventSchema(@Nullable JSONObject schema) {
+		eventSchema = schema;
+	}
+
+	/**
+	 * Gets the capacity of the queue which holds recorded events until they
+	 * are written to the event store.
+	 *
+	 * @return the capacity in number of events
+	 */
+	public int getEventQueueCapacity() {
+		return eventQueueCapacity;
+	}
+
+	/**
+	 * Sets the capacity of the queue which holds recorded events until they
+	 * are written to the event store. Needs to be set before the SDK is
+	 * initialised.
+	 *
+	 * @param capacity the capacity in number of events
+	 *
+	 * @throws IllegalArgumentException if the {@code capacity} is not
+	 *                                  positive
+	 */
+	public void setEventQueueCapacity(int capacity) {
+		Preconditions.checkArg(capacity > 0, "capacity must be positive");
+
+		eventQueueCapacity = capacity;
+	}
+
+	/**
+	 * Gets the policy for when events are recorded while the event queue
+	 * is full.
+	 *
+	 * @return the overflow policy
+	 */
+	public OverflowPolicy getEventQueueOverflowPolicy() {
+		return eventQueueOverflowPolicy;
+	}
+
+	/**
+	 * Sets the policy for when events are recorded while the event queue
+	 * is full.
+	 *
+	 * @param policy the overflow policy
+	 *
+	 * @throws IllegalArgumentException if the {@code policy} is null
+	 */
+	public void setEventQueueOverflowPolicy(OverflowPolicy policy) {
+		Preconditions.checkArg(policy != null, "policy cannot be null");
+
+		eventQueueOverflowPolicy = policy;
+	}
+
+	/**
+	 * Gets the time to wait for space in the event queue with the
+	 * {@link OverflowPolicy#BLOCK} policy.
+	 *
+	 * @return the timeout in milliseconds
+	 */
+	public int getEventQueueBlockTimeout() {
+		return eventQueueBlockTimeout;
+	}
+
+	/**
+	 * Sets the time to wait for space in the event queue with the
+	 * {@link OverflowPolicy#BLOCK} policy, after which the event will be
+	 * dropped.
+	 *
+	 * @param millis the timeout in milliseconds
+	 *
+	 * @throws IllegalArgumentException if the {@code millis} is negative
+	 */
+	public void setEventQueueBlockTimeout(int millis) {
+		Preconditions.checkArg(millis >= 0, "millis cannot be negative");
+
+		eventQueueBlockTimeout = millis;
+	}
+
+	/**
+	 * Gets the priorities for events, keyed by event name.
+	 *
+	 * @return the read-only priorities
+	 */
+	public Map<String, EventPriority> getEventPriorities() {
+		return eventPrioritiesView;
+	}
+
+	/**
+	 * Sets the priority for an event, which decides the order in which
+	 * events are uploaded and which events are evicted first when the event
+	 * store is full.
+	 * <p>
+	 * Transactions default to {@link EventPriority#CRITICAL} and other
+	 * events to {@link EventPriority#NORMAL}.
+	 *
+	 * @param eventName the name of the event
+	 * @param priority  the priority
+	 *
+	 * @throws IllegalArgumentException if the {@code eventName} is null or
+	 *                                  empty, or the {@code priority} is null
+	 */
+	public void setEventPriority(String eventName, EventPriority priority) {
+		Preconditions.checkString(eventName, "eventName cannot be null or empty");
+		Preconditions.checkArg(priority != null, "priority cannot be null");
+
+		eventPriorities.put(eventName, priority);
+	}
+
+	/**
+	 * Gets the policy for making space for new events when the event store
+	 * is full.
+	 *
+	 * @return the eviction policy
+	 */
+	public EvictionPolicy getEventStoreEvictionPolicy() {
+		return eventStoreEvictionPolicy;
+	}
+
+	/**
+	 * Sets the policy for making space for new events when the event store
+	 * is full. Events of a higher priority than the new event are never
+	 * evicted.
+	 *
+	 * @param policy the eviction policy
+	 *
+	 * @throws IllegalArgumentException if the {@code policy} is null
+	 */
+	public void setEventStoreEvictionPolicy(EvictionPolicy policy) {
+		Preconditions.checkArg(policy != null, "policy cannot be null");
+
+		eventStoreEvictionPolicy = policy;
+	}
+
+	/**
+	 * Gets the age after which stored events may be evicted with the
+	 * {@link EvictionPolicy#DROP_OLDER_THAN} policy.
+	 *
+	 * @return the age in seconds
+	 */
+	public int getEventStoreEvictionAge() {
+		return eventStoreEvictionAge;
+	}
+
+	/**
+	 * Sets the age after which stored events may be evicted with the
+	 * {@link EvictionPolicy#DROP_OLDER_THAN} policy.
+	 *
+	 * @param seconds the age in seconds
+	 *
+	 * @throws IllegalArgumentException if the {@code seconds} are negative
+	 */
+	public void setEventStoreEvictionAge(int seconds) {
+		Preconditions.checkArg(seconds >= 0, "seconds cannot be negative");
+
+		eventStoreEvictionAge = seconds;
+	}
+
+	/**
+	 * Gets the time for which events are kept in the event store before
+	 * they expire without being uploaded.
+	 *
+	 * @return the time to live in seconds, or {@code 0} if events do not
+	 * expire
+	 */
+	public int getEventTimeToLive() {
+		return eventTimeToLive;
+	}
+
+	/**
+	 * Sets the time for which events are kept in the event store before
+	 * they expire without being uploaded. Expired events are no longer
+	 * uploaded, and they get deleted in the background.
+	 *
+	 * @param seconds the time to live in seconds, or {@code 0} for events
+	 *                to never expire
+	 *
+	 * @throws IllegalArgumentException if the {@code seconds} are negative
+	 */
+	public void setEventTimeToLive(int seconds) {
+		Preconditions.checkArg(seconds >= 0, "seconds cannot be negative");
+
+		eventTimeToLive = seconds;
+	}
+
+	/**
+	 * Gets the format in which events are written to the event store.
+	 *
+	 * @return the store format
+	 */
+	public StoreFormat getEventStoreFormat() {
+		return eventStoreFormat;
+	}
+
+	/**
+	 * Sets the format in which events are written to the event store.
+	 * Events which have already been stored remain readable after the
+	 * format has been changed.
+	 *
+	 * @param format the store format
+	 *
+	 * @throws IllegalArgumentException if the {@code format} is null
+	 */
+	public void setEventStoreFormat(StoreFormat format) {
+		Preconditions.checkArg(format != null, "format cannot be null");
+
+		eventStoreFormat = format;
+	}
+
+	/**
+	 * Gets whether events are compressed in the event store.
+	 *
+	 * @return {@code true} if events are compressed
+	 */
+	public boolean isCompressStoredEvents() {
+		return compressStoredEvents;
+	}
+
+	/**
+	 * Sets whether events should be compressed in the event store, which
+	 * allows many more events to be kept while offline at a small cost in
+	 * processing. Events which have already been stored remain readable
+	 * after the setting has been changed.
+	 *
+	 * @param compress whether events should be compressed
+	 */
+	public void setCompressStoredEvents(boolean compress) {
+		compressStoredEvents = compress;
+	}
+
+	/**
+	 * Gets the amount of internal storage which stored events may use
+	 * before they start being moved to external storage.
+	 *
+	 * @return the limit in bytes
+	 */
+	public int getEventStoreInternalLimit() {
+		return eventStoreInternalLimit;
+	}
+
+	/**
+	 * Sets the amount of internal storage which stored events may use
+	 * before they start being moved to external storage in the background,
+	 * oldest first. Events are always written to internal storage first.
+	 * <p>
+	 * Has no effect if events should only use internal storage.
+	 *
+	 * @param bytes the limit in bytes
+	 *
+	 * @throws IllegalArgumentException if the {@code bytes} are negative
+	 *
+	 * @see #setUseInternalStorageForEvents(boolean)
+	 */
+	public void setEventStoreInternalLimit(int bytes) {
+		Preconditions.checkArg(bytes >= 0, "bytes cannot be negative");
+
+		eventStoreInternalLimit = bytes;
+	}
+
+	/**
+	 * Gets the transport used for the HTTP requests of the SDK.
+	 *
+	 * @return the transport, or {@code null} if the default is used
+	 */
+	@Nullable
+	public HttpTransport getHttpTransport() {
+		return httpTransport;
+	}
+
+	/**
+	 * Sets the transport used for the HTTP requests of the SDK, so that
+	 * the SDK can share the HTTP stack of the app. Needs to be set before
+	 * the SDK is initialised.
+	 *
+	 * @param transport the transport, or {@code null} for the default
+	 *                  which uses {@link java.net.HttpURLConnection}
+	 */
+	public void setHttpTransport(@Nullable HttpTransport transport) {
+		httpTransport = transport;
+	}
+
+	/**
+	 * Gets the listener for the metrics of the HTTP requests of the SDK.
+	 *
+	 * @return the listener, or {@code null} if not set
+	 */
+	@Nullable
+	public RequestMetrics.Listener getRequestMetricsListener() {
+		return requestMetricsListener;
+	}
+
+	/**
+	 * Sets a listener for the metrics of each HTTP request made by the
+	 * SDK, such as the time to first byte, which can be used to tune the
+	 * timeouts. Needs to be set before the SDK is initialised.
+	 *
+	 * @param listener the listener, or {@code null} to not be notified
+	 *
+	 * @see com.deltadna.android.sdk.DDNA#getNetworkStats()
+	 */
+	public void setRequestMetricsListener(@Nullable RequestMetrics.Listener listener) {
+		requestMetricsListener = listener;
+	}
+
+	/**
+	 * What to do with an event recorded while the event queue is full.
+	 */
+	public enum OverflowPolicy {
+
+		/**
+		 * Drops the oldest event of the lowest priority in the queue to make
+		 * space for the new event.
+		 */
+		DROP_OLDEST_LOW_PRIORITY,
+		/**
+		 * Drops the new event.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Blocks the recording thread until there is space in the queue, up
+		 * to the timeout set through {@link #setEventQueueBlockTimeout(int)},
+		 * after which the new event is dropped.
+		 */
+		BLOCK,
+		/**
+		 * Appends the new event to a file on internal storage, from where it
+		 * will be moved into the store once the queue has been emptied.
+		 */
+		SPILL_TO_DISK
+	}
+
+	/**
+	 * How to make space for a new event when the event store is full.
+	 */
+	public enum EvictionPolicy {
+
+		/**
+		 * Drops the new event, keeping the stored events, unless it is a
+		 * critical event and events of a lower priority can be evicted.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Evicts the oldest stored events.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Evicts the stored events of the lowest priority, oldest first.
+		 */
+		DROP_LOWEST_PRIORITY,
+		/**
+		 * Evicts the stored events older than the age set through
+		 * {@link #setEventStoreEvictionAge(int)}, dropping the new event if
+		 * that does not free up enough space.
+		 */
+		DROP_OLDER_THAN
+	}
+
+	/**
+	 * Format in which events are written to the event store.
+	 */
+	public enum StoreFormat {
+
+		/**
+		 * The events are stored as JSON text.
+		 */
+		JSON,
+		/**
+		 * The events are stored in a compact binary encoding, and get
+		 * converted to JSON when they are uploaded.
+		 */
+		BINARY
+	}
+
+	/**
+	 * Token bucket rate limit for an event.
+	 */
+	public static final class RateLimit {
+
+		private final double perSecond;
+		private final int burst;
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param perSecond the sustained number of events allowed per second
+		 * @param burst     the number of events allowed in a burst
+		 *
+		 * @throws IllegalArgumentException if the values are not positive
+		 */
+		public RateLimit(double perSecond, int burst) {
+			Preconditions.checkArg(perSecond > 0, "perSecond must be positive");
+			Preconditions.checkArg(burst > 0, "burst must be positive");
+
+			this.perSecond = perSecond;
+			this.burst = burst;
+		}
+
+		public double getPerSecond() {
+			return perSecond;
+		}
+
+		public int getBurst() {
+			return burst;
+		}
+	}
 }
@@ -43,4 +43,21 @@ public interface EventListener {
      * @param reason the reason for the failure
      */
     default void onImageCachingFailed(Throwable reason) {}
+    
+    /**
+     * Will be called in debug mode when an event fails validation against
+     * the event schema, before it gets dropped.
+     *
+     * @param eventName the name of the event
+     * @param reason    the reason for the failure
+     */
+    default void onEventInvalid(String eventName, String reason) {}
+    
+    /**
+     * Will be called when stored events have been deleted due to their
+     * time to live having passed.
+     *
+     * @param count the number of deleted events
+     */
+    default void onEventsExpired(int count) {}
 }
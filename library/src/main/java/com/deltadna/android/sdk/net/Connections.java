@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk.net;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens the connections for the {@link UrlConnectionTransport} so that they get
+ * kept alive and reused across requests to the same host.
+ * <p>
+ * The platform pools connections by host together with the socket factory
+ * and hostname verifier, so all connections need to be opened with the same
+ * instances for them to be reused, which also lets the TLS sessions cached
+ * by the socket factory be resumed. A connection only goes back to the pool
+ * once its response body has been read to the end and closed, and it must
+ * not be disconnected.
+ * <p>
+ * The socket factory is wrapped in order to tell whether a request made a
+ * new secure connection, or reused one from the pool.
+ */
+final class Connections {
+    
+    /**
+     * Uses the default socket factory and hostname verifier of the
+     * platform.
+     */
+    static final Connections DEFAULT = new Connections(null, null);
+    
+    /**
+     * Whether the current thread has created a socket since it started
+     * {@link #track()}ing.
+     */
+    private static final ThreadLocal<Boolean> CREATED = new ThreadLocal<>();
+    
+    @Nullable
+    private final SSLSocketFactory socketFactory;
+    @Nullable
+    private final HostnameVerifier hostnameVerifier;
+    
+    private SSLSocketFactory tracking;
+    
+    Connections(
+            @Nullable SSLSocketFactory socketFactory,
+            @Nullable HostnameVerifier hostnameVerifier) {
+        
+        this.socketFactory = socketFactory;
+        this.hostnameVerifier = hostnameVerifier;
+    }
+    
+    HttpURLConnection open(URL url) throws IOException {
+        final HttpURLConnection connection =
+                (HttpURLConnection) url.openConnection();
+        
+        if (connection instanceof HttpsURLConnection) {
+            final HttpsURLConnection secure = (HttpsURLConnection) connection;
+            secure.setSSLSocketFactory(tracking());
+            if (hostnameVerifier != null) {
+                secure.setHostnameVerifier(hostnameVerifier);
+            }
+        }
+        
+        return connection;
+    }
+    
+    /**
+     * Starts tracking whether the current thread makes a new secure
+     * connection.
+     */
+    void track() {
+        CREATED.set(false);
+    }
+    
+    /**
+     * Checks whether the current thread has made a new secure connection
+     * since it started {@link #track()}ing.
+     */
+    boolean created() {
+        return Boolean.TRUE.equals(CREATED.get());
+    }
+    
+    /**
+     * Wraps the socket factory lazily, as the default of the platform may
+     * be costly to set up.
+     */
+    private synchronized SSLSocketFactory tracking() {
+        if (tracking == null) {
+            tracking = new TrackingSocketFactory((socketFactory != null)
+                    ? socketFactory
+                    : HttpsURLConnection.getDefaultSSLSocketFactory());
+        }
+        
+        return tracking;
+    }
+    
+    private static final class TrackingSocketFactory extends SSLSocketFactory {
+        
+        private final SSLSocketFactory delegate;
+        
+        TrackingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+        
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+        
+        @Override
+        public Socket createSocket(
+                Socket s,
+                String host,
+                int port,
+                boolean autoClose) throws IOException {
+            
+            CREATED.set(true);
+            return delegate.createSocket(s, host, port, autoClose);
+        }
+        
+        @Override
+        public Socket createSocket() throws IOException {
+            CREATED.set(true);
+            return delegate.createSocket();
+        }
+        
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            CREATED.set(true);
+            return delegate.createSocket(host, port);
+        }
+        
+        @Override
+        public Socket createSocket(
+                String host,
+                int port,
+                InetAddress localHost,
+                int localPort) throws IOException {
+            
+            CREATED.set(true);
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+        
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            CREATED.set(true);
+            return delegate.createSocket(host, port);
+        }
+        
+        @Override
+        public Socket createSocket(
+                InetAddress address,
+                int port,
+                InetAddress localAddress,
+                int localPort) throws IOException {
+            
+            CREATED.set(true);
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
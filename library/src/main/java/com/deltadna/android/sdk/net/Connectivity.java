@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.deltadna.android.sdk.net;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Tells whether the device has a network connection which requests can be
+ * performed over, and when it gets one.
+ */
+interface Connectivity {
+    
+    /**
+     * Assumes the device to always be connected, for when the connectivity
+     * cannot be monitored.
+     */
+    Connectivity ALWAYS = new Connectivity() {
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+        
+        @Override
+        public void setListener(@Nullable Listener listener) {}
+    };
+    
+    boolean isConnected();
+    
+    void setListener(@Nullable Listener listener);
+    
+    interface Listener {
+        
+        /**
+         * Notifies that the device may have become connected, which can
+         * happen more than once for the same connection.
+         */
+        void onConnected();
+    }
+}
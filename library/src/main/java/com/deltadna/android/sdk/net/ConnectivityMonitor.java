@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.deltadna.android.sdk.net;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.deltadna.android.sdk.BuildConfig;
+
+/**
+ * Monitors the connectivity of the device through the
+ * {@link ConnectivityManager}.
+ * <p>
+ * From Marshmallow onwards the device is only considered to be connected
+ * once the platform has validated that the network can reach the internet,
+ * as opposed to being stuck behind a captive portal for example. Should
+ * the state of the network not be accessible then the device is assumed
+ * to be connected, so that requests get performed as before.
+ */
+final class ConnectivityMonitor extends BroadcastReceiver implements Connectivity {
+    
+    private static final String TAG = BuildConfig.LOG_TAG
+            + ' '
+            + ConnectivityMonitor.class.getSimpleName();
+    
+    @Nullable
+    private final ConnectivityManager manager;
+    
+    @Nullable
+    private volatile Listener listener;
+    
+    ConnectivityMonitor(Context context) {
+        manager = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        
+        try {
+            if (manager == null) {
+                Log.w(TAG, "Connectivity cannot be monitored");
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                // also notified once the network has been validated
+                manager.registerDefaultNetworkCallback(new Callback());
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                /*
+                 * The broadcast is sent before the network gets validated,
+                 * so validation has to be observed on the networks which
+                 * could become the default one.
+                 */
+                manager.registerNetworkCallback(
+                        new NetworkRequest.Builder()
+                                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                                .build(),
+                        new Callback());
+            } else {
+                context.registerReceiver(
+                        this,
+                        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Connectivity cannot be monitored", e);
+        }
+    }
+    
+    @Override
+    public boolean isConnected() {
+        if (manager == null) return true;
+        
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                final Network network = manager.getActiveNetwork();
+                final NetworkCapabilities capabilities = (network != null)
+                        ? manager.getNetworkCapabilities(network)
+                        : null;
+                if (capabilities != null) {
+                    return capabilities.hasCapability(
+                            NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+                }
+            }
+            
+            final NetworkInfo info = manager.getActiveNetworkInfo();
+            return (info != null && info.isConnected());
+        } catch (RuntimeException e) {
+            // includes the security exception when missing the permission
+            Log.w(TAG, "Connectivity cannot be checked", e);
+            return true;
+        }
+    }
+    
+    @Override
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+    
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (isConnected()) notifyConnected();
+    }
+    
+    private void notifyConnected() {
+        final Listener listener = this.listener;
+        if (listener != null) {
+            Log.v(TAG, "Connected");
+            listener.onConnected();
+        }
+    }
+    
+    @TargetApi(Build.VERSION_CODES.M)
+    private final class Callback extends ConnectivityManager.NetworkCallback {
+        
+        @Override
+        public void onCapabilitiesChanged(
+                Network network,
+                NetworkCapabilities capabilities) {
+            
+            // the validated network may not be the active one before N
+            if (    capabilities.hasCapability(
+                            NetworkCapabilities.NET_CAPABILITY_VALIDATED)
+                    && isConnected()) {
+                notifyConnected();
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.deltadna.android.sdk.net;
+
+import android.support.annotation.Nullable;
+
+import com.deltadna.android.sdk.helpers.Objects;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Result of downloading a file, including the validators which can be used
+ * for revalidating the file later on with a conditional request.
+ *
+ * @see NetworkManager#fetch(String, File, String, String, com.deltadna.android.sdk.listeners.RequestListener)
+ */
+public final class Download {
+    
+    private final File file;
+    private final boolean notModified;
+    @Nullable
+    private final String etag;
+    @Nullable
+    private final String lastModified;
+    private final long maxAge;
+    
+    Download(
+            File file,
+            boolean notModified,
+            @Nullable String etag,
+            @Nullable String lastModified,
+            long maxAge) {
+        
+        this.file = file;
+        this.notModified = notModified;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.maxAge = maxAge;
+    }
+    
+    /**
+     * Gets the downloaded file, which is the previously downloaded file
+     * if it has not been modified.
+     */
+    public File getFile() {
+        return file;
+    }
+    
+    /**
+     * Checks whether the server responded that the previously downloaded
+     * file has not been modified, in which case nothing has been
+     * downloaded.
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+    
+    @Nullable
+    public String getETag() {
+        return etag;
+    }
+    
+    @Nullable
+    public String getLastModified() {
+        return lastModified;
+    }
+    
+    /**
+     * Gets for how long the file can be used without revalidating it, as
+     * set by the {@code Cache-Control} header of the response.
+     *
+     * @return the time in seconds, or {@code -1} if not set
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+    
+    @Override
+    public String toString() {
+        return new Objects.ToStringHelper(this)
+                .add("file", file)
+                .add("notModified", notModified)
+                .add("etag", etag)
+                .add("lastModified", lastModified)
+                .add("maxAge", maxAge)
+                .toString();
+    }
+    
+    static Download of(File file, boolean notModified, HttpTransport.Response response) {
+        return new Download(
+                file,
+                notModified,
+                response.getHeader("ETag"),
+                response.getHeader("Last-Modified"),
+                maxAge(response.getHeader("Cache-Control")));
+    }
+    
+    /**
+     * Parses the max age out of a {@code Cache-Control} header, where
+     * directives which forbid using the file without revalidating it
+     * result in a max age of {@code 0}.
+     */
+    static long maxAge(@Nullable String cacheControl) {
+        if (cacheControl == null) return -1;
+        
+        long maxAge = -1;
+        for (final String directive : cacheControl.split(",")) {
+            final String value = directive.trim().toLowerCase(Locale.US);
+            if (value.equals("no-cache") || value.equals("no-store")) {
+                return 0;
+            } else if (value.startsWith("max-age=")) {
+                try {
+                    maxAge = Math.max(0, Long.parseLong(
+                            value.substring("max-age=".length()).replace("\"", "")));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        
+        return maxAge;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk.net;
+
+import android.support.annotation.Nullable;
+
+import com.deltadna.android.sdk.helpers.Objects;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Performs the HTTP exchanges for the requests made by the SDK.
+ * <p>
+ * By default the SDK uses {@link java.net.HttpURLConnection}, but an app
+ * which already has an HTTP stack, such as OkHttp, can provide its own
+ * implementation so that the SDK shares its connection pool, HTTP/2
+ * connections, and DNS cache.
+ * <p>
+ * Implementations will be called from the background threads of the SDK,
+ * possibly concurrently, and may block.
+ *
+ * @see com.deltadna.android.sdk.helpers.Settings#setHttpTransport(HttpTransport)
+ */
+public interface HttpTransport {
+    
+    /**
+     * Performs the {@code request}, returning once the status and headers
+     * of the response have been received.
+     *
+     * @throws IOException if the request could not be performed, in which
+     *                     case any resources should have been released
+     */
+    Response execute(Request request) throws IOException;
+    
+    /**
+     * HTTP request to be performed by a {@link HttpTransport}.
+     */
+    final class Request {
+        
+        private final URL url;
+        final RequestMethod method;
+        private final Map<String, String> headers;
+        @Nullable
+        final RequestBody body;
+        private final int connectionTimeout;
+        private final int readTimeout;
+        
+        Request(
+                URL url,
+                RequestMethod method,
+                Map<String, String> headers,
+                @Nullable RequestBody body,
+                int connectionTimeout,
+                int readTimeout) {
+            
+            this.url = url;
+            this.method = method;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body = body;
+            this.connectionTimeout = connectionTimeout;
+            this.readTimeout = readTimeout;
+        }
+        
+        public URL getUrl() {
+            return url;
+        }
+        
+        /**
+         * Gets the method, such as {@code GET} or {@code POST}.
+         */
+        public String getMethod() {
+            return method.name();
+        }
+        
+        /**
+         * Gets the headers, not including {@code Content-Type} which is
+         * provided through {@link #getContentType()}.
+         */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+        
+        @Nullable
+        public String getContentType() {
+            return (body != null) ? body.type : null;
+        }
+        
+        /**
+         * Gets the body, which should be sent with a fixed length.
+         *
+         * @return the body, or {@code null} if the request has none
+         */
+        @Nullable
+        public byte[] getBody() {
+            return (body != null) ? body.content : null;
+        }
+        
+        /**
+         * @return the timeout in milliseconds, {@code 0} meaning none
+         */
+        public int getConnectionTimeout() {
+            return connectionTimeout;
+        }
+        
+        /**
+         * @return the timeout in milliseconds, {@code 0} meaning none
+         */
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+        
+        @Override
+        public String toString() {
+            return new Objects.ToStringHelper(this)
+                    .add("url", url)
+                    .add("method", method)
+                    .add("headers", headers)
+                    .add("body", body)
+                    .toString();
+        }
+    }
+    
+    /**
+     * HTTP response from a {@link HttpTransport}, which is released by
+     * either {@link #close()} or {@link #disconnect()} once it is no longer
+     * needed.
+     */
+    interface Response {
+        
+        int getCode() throws IOException;
+        
+        /**
+         * @return the length of the body in bytes, or {@code -1} if not
+         * known
+         */
+        int getContentLength();
+        
+        @Nullable
+        String getHeader(String name);
+        
+        /**
+         * Gets the body, which will be closed by the caller once it has
+         * been read.
+         *
+         * @return the body, or {@code null} if the response has none
+         */
+        @Nullable
+        InputStream getBody() throws IOException;
+        
+        /**
+         * Gets the time taken to connect, which should be {@code 0} if an
+         * existing connection was reused.
+         *
+         * @return the time in milliseconds, or {@code -1} if not known
+         */
+        default long getConnectTime() {
+            return -1;
+        }
+        
+        /**
+         * Gets whether an existing connection was reused for the request.
+         *
+         * @return {@code true} if reused, {@code false} if not or not known
+         */
+        default boolean isConnectionReused() {
+            return false;
+        }
+        
+        /**
+         * Releases the response after its body has been read to the end,
+         * so the connection may be kept alive and reused.
+         */
+        void close();
+        
+        /**
+         * Releases the response after a failure, so the connection may be
+         * in an unknown state and should not be reused.
+         */
+        void disconnect();
+    }
+}
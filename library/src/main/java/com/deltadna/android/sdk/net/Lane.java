@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk.net;
+
+/**
+ * Lane on which network requests are performed, corresponding to the type
+ * of the endpoint.
+ * <p>
+ * Each lane has its own threads and concurrency, so that latency-critical
+ * requests never wait behind long running uploads or downloads.
+ */
+public enum Lane {
+    
+    /**
+     * Latency-critical engage requests, which the user may be waiting on.
+     */
+    ENGAGE(2, false),
+    /**
+     * Bulk event uploads, which can take long to complete.
+     */
+    COLLECT(1, true),
+    /**
+     * Background downloads of assets, such as for image messages.
+     */
+    FETCH(2, true);
+    
+    /**
+     * Number of requests which can be performed concurrently.
+     */
+    final int concurrency;
+    /**
+     * Whether requests can wait for the device to get connected, rather
+     * than failing straight away while it is offline.
+     */
+    final boolean deferrable;
+    
+    Lane(int concurrency, boolean deferrable) {
+        this.concurrency = concurrency;
+        this.deferrable = deferrable;
+    }
+}
@@ -23,29 +23,43 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.deltadna.android.sdk.BuildConfig;
+import com.deltadna.android.sdk.helpers.Objects;
 import com.deltadna.android.sdk.listeners.RequestListener;
 
+import java.net.ConnectException;
+import java.util.EnumMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.RunnableScheduledFuture;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles enqueuing of network requests on an {@link ExecutorService}
  * and calling back on the listeners (if supplied) either with the
  * success result or the failure cause.
+ * <p>
+ * Requests are performed on the executor of their {@link Lane}, so that
+ * latency-critical requests never wait behind long running uploads or
+ * downloads, and are retried on the same lane.
+ * <p>
+ * While the device is not connected deferrable requests get parked until
+ * it becomes connected, and other requests fail straight away instead of
+ * tying up a thread until their connection times out.
  */
 final class NetworkDispatcher {
     
@@ -57,11 +71,54 @@ final class NetworkDispatcher {
     private final Map<Request, Cancelable> requests =
             new ConcurrentHashMap<>(MAX_REQUESTS);
     
+    private static final int KEEP_ALIVE = 30;
+    
     private final Handler handler = new Handler(Looper.getMainLooper());
-    private final ScheduledExecutorService executor;
+    private final Map<Lane, NetworkExecutor> executors =
+            new EnumMap<>(Lane.class);
+    private final HttpTransport transport;
+    private final RequestTimings timings = new RequestTimings();
+    @Nullable
+    private final RequestMetrics.Listener metricsListener;
+    private final Connectivity connectivity;
+    /**
+     * Deferrable requests waiting for the device to get connected.
+     */
+    private final Queue<Request<?>> parked = new ConcurrentLinkedQueue<>();
     
     NetworkDispatcher() {
-        this.executor = new NetworkExecutor(MAX_REQUESTS);
+        this(UrlConnectionTransport.DEFAULT);
+    }
+    
+    NetworkDispatcher(HttpTransport transport) {
+        this(transport, null);
+    }
+    
+    NetworkDispatcher(
+            HttpTransport transport,
+            @Nullable RequestMetrics.Listener metricsListener) {
+        
+        this(transport, metricsListener, Connectivity.ALWAYS);
+    }
+    
+    NetworkDispatcher(
+            HttpTransport transport,
+            @Nullable RequestMetrics.Listener metricsListener,
+            Connectivity connectivity) {
+        
+        for (final Lane lane : Lane.values()) {
+            executors.put(lane, new NetworkExecutor(lane));
+        }
+        this.transport = transport;
+        this.metricsListener = metricsListener;
+        this.connectivity = connectivity;
+        
+        connectivity.setListener(new Connectivity.Listener() {
+            @Override
+            public void onConnected() {
+                resume();
+            }
+        });
     }
     
     CancelableRequest enqueue(
@@ -76,11 +133,24 @@ final class NetworkDispatcher {
             @Nullable ResponseBodyConverter<T> converter,
             @Nullable RequestListener<T> listener) {
         
-        Log.d(TAG, "Enqueuing " + request);
+        Log.d(TAG, "Enqueuing " + request + " on " + request.lane);
         
-        final Future<Response<T>> future = executor.submit(request
+        request.setTransport(transport)
                 .setConverter(converter)
-                .setRequestListener(listener));
+                .setRequestListener(listener);
+        
+        if (!connectivity.isConnected()) {
+            if (request.deferrable) {
+                final Cancelable cancelable = new Cancelable(new FutureTask<>(request));
+                park(request, cancelable);
+                return cancelable;
+            } else {
+                return fail(request, listener);
+            }
+        }
+        
+        request.setQueued(System.nanoTime());
+        final Future<Response<T>> future = executors.get(request.lane).submit(request);
         
         final Cancelable cancelable = new Cancelable(future);
         requests.put(request, cancelable);
@@ -88,10 +158,175 @@ final class NetworkDispatcher {
         return cancelable;
     }
     
+    /**
+     * Gets a snapshot of the statistics for the requests on {@code lane}.
+     */
+    LaneStats getStats(Lane lane) {
+        return executors.get(lane).stats();
+    }
+    
+    /**
+     * Gets the timings of the recent requests on each {@link Lane}.
+     */
+    NetworkStats getNetworkStats() {
+        return timings.getStats();
+    }
+    
+    /**
+     * Parks the {@code request} until the device gets connected, with the
+     * {@code cancelable} holding a placeholder task in the meantime.
+     */
+    private void park(final Request<?> request, Cancelable cancelable) {
+        Log.d(TAG, "Parking " + request + " until connected");
+        
+        request.setQueued(System.nanoTime());
+        requests.put(request, cancelable);
+        cancelable.setDropped(new Runnable() {
+            @Override
+            public void run() {
+                drop(request);
+            }
+        });
+        parked.add(request);
+        
+        // may have got connected while being parked
+        if (connectivity.isConnected()) resume();
+    }
+    
+    /**
+     * Submits the parked requests which have not been cancelled, for as
+     * long as the device stays connected.
+     */
+    private void resume() {
+        Request<?> request;
+        while (connectivity.isConnected() && (request = parked.poll()) != null) {
+            final Cancelable cancelable = requests.get(request);
+            if (cancelable == null) continue;
+            
+            synchronized (cancelable) {
+                if (cancelable.isCancelled()) {
+                    Log.d(TAG, "Cancelled " + request);
+                    requests.remove(request);
+                } else {
+                    Log.d(TAG, "Resuming " + request);
+                    cancelable.setTask(executors.get(request.lane).submit(request));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Drops a parked {@code request} which has been cancelled, notifying
+     * its listener as the request will never be performed.
+     */
+    private void drop(Request<?> request) {
+        Log.d(TAG, "Cancelled parked " + request);
+        
+        parked.remove(request);
+        requests.remove(request);
+        
+        final RequestListener<?> listener = request.listener;
+        if (listener != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onError(new CancellationException("Cancelled while parked"));
+                }
+            });
+        }
+    }
+    
+    private <T> CancelableRequest fail(
+            Request<T> request,
+            @Nullable final RequestListener<T> listener) {
+        
+        Log.d(TAG, "Failing " + request + " as not connected");
+        
+        executors.get(request.lane).failed.incrementAndGet();
+        if (listener != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onError(new ConnectException("Not connected"));
+                }
+            });
+        }
+        
+        return new Cancelable(new FutureTask<>(request));
+    }
+    
+    private void record(Request<?> request) {
+        final RequestMetrics metrics = request.metrics();
+        Log.v(TAG, "Performed request with " + metrics);
+        
+        timings.record(metrics);
+        if (metricsListener != null) {
+            try {
+                metricsListener.onRequestMetrics(metrics);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed notifying metrics listener", e);
+            }
+        }
+    }
+    
+    /**
+     * Snapshot of the statistics for a {@link Lane}.
+     */
+    static final class LaneStats {
+        
+        /**
+         * Requests waiting to be performed, including retries which have
+         * been scheduled.
+         */
+        final int queued;
+        /**
+         * Requests waiting for the device to get connected.
+         */
+        final int parked;
+        final int active;
+        final long completed;
+        final long failed;
+        final long retried;
+        
+        LaneStats(
+                int queued,
+                int parked,
+                int active,
+                long completed,
+                long failed,
+                long retried) {
+            
+            this.queued = queued;
+            this.parked = parked;
+            this.active = active;
+            this.completed = completed;
+            this.failed = failed;
+            this.retried = retried;
+        }
+        
+        @Override
+        public String toString() {
+            return new Objects.ToStringHelper(this)
+                    .add("queued", queued)
+                    .add("parked", parked)
+                    .add("active", active)
+                    .add("completed", completed)
+                    .add("failed", failed)
+                    .add("retried", retried)
+                    .toString();
+        }
+    }
+    
     private final class NetworkExecutor extends ScheduledThreadPoolExecutor {
         
-        NetworkExecutor(int maxRequests) {
-            super(  1,
+        private final Lane lane;
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong retried = new AtomicLong();
+        
+        NetworkExecutor(final Lane lane) {
+            // the pool never grows beyond the core size
+            super(  lane.concurrency,
                     new ThreadFactory() {
                         private final ThreadFactory inner =
                                 Executors.defaultThreadFactory();
@@ -100,12 +335,31 @@ final class NetworkDispatcher {
                         public Thread newThread(@NonNull Runnable r) {
                             final Thread thread = inner.newThread(r);
                             thread.setName(NetworkDispatcher.class.getSimpleName()
+                                    + "-" + lane.name().toLowerCase(Locale.US)
                                     + "-" + thread.getName());
                             return thread;
                         }
                     });
             
-            setMaximumPoolSize(maxRequests);
+            setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+            allowCoreThreadTimeOut(true);
+            
+            this.lane = lane;
+        }
+        
+        LaneStats stats() {
+            int waiting = 0;
+            for (final Request<?> request : parked) {
+                if (request.lane == lane) waiting++;
+            }
+            
+            return new LaneStats(
+                    getQueue().size(),
+                    waiting,
+                    getActiveCount(),
+                    completed.get(),
+                    failed.get(),
+                    retried.get());
         }
         
         @Override
@@ -153,6 +407,8 @@ final class NetworkDispatcher {
                         });
                     }
                     
+                    completed.incrementAndGet();
+                    record(future.request);
                     requests.remove(future.request);
                 } catch (InterruptedException e) {
                     // TODO is this appropriate?
@@ -160,22 +416,39 @@ final class NetworkDispatcher {
                 } catch (final ExecutionException e) {
                     Log.w(TAG, "Failed performing " + future.request, e);
                     
-                    if (future.request.shouldRetry()) {
+                    if (    future.request.shouldRetry()
+                            && future.request.deferrable
+                            && !connectivity.isConnected()) {
+                        Log.w(TAG, "Retrying " + future.request + " once connected");
+                        
+                        retried.incrementAndGet();
+                        final Cancelable cancelable = requests.get(future.request);
+                        cancelable.setTask(new FutureTask<>(future.request));
+                        park(future.request, cancelable);
+                    } else if (future.request.shouldRetry()) {
                         Log.w(TAG, "Retrying " + future.request);
                         
+                        retried.incrementAndGet();
+                        future.request.setQueued(System.nanoTime()
+                                + TimeUnit.MILLISECONDS.toNanos(future.request.retryDelay));
                         final Future newFuture = schedule(
                                 future.request,
                                 future.request.retryDelay,
                                 TimeUnit.MILLISECONDS);
                         requests.get(future.request).setTask(newFuture);
-                    } else if (future.listener != null) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                future.listener.onError(e.getCause());
-                            }
-                        });
-
+                    } else {
+                        failed.incrementAndGet();
+                        record(future.request);
+                        
+                        if (future.listener != null) {
+                            handler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    future.listener.onError(e.getCause());
+                                }
+                            });
+                        }
+                        
                         requests.remove(future.request);
                     }
                 } catch (CancellationException e) {
@@ -269,18 +542,39 @@ final class NetworkDispatcher {
     private static final class Cancelable implements CancelableRequest {
         
         private Future task;
+        /**
+         * Run when cancelled while the request is parked.
+         */
+        @Nullable
+        private Runnable dropped;
         
         Cancelable(Future task) {
             this.task = task;
         }
         
         @Override
-        public synchronized void cancel() {
-            task.cancel(false);
+        public void cancel() {
+            final Runnable parked;
+            synchronized (this) {
+                task.cancel(false);
+                parked = dropped;
+                dropped = null;
+            }
+            
+            if (parked != null) parked.run();
         }
         
         synchronized void setTask(Future task) {
             this.task = task;
+            dropped = null;
+        }
+        
+        synchronized void setDropped(Runnable dropped) {
+            this.dropped = dropped;
+        }
+        
+        synchronized boolean isCancelled() {
+            return task.isCancelled();
         }
     }
 }
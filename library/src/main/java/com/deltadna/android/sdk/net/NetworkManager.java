@@ -16,6 +16,7 @@
 
 package com.deltadna.android.sdk.net;
 
+import android.content.Context;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import com.deltadna.android.sdk.BuildConfig;
@@ -23,9 +24,14 @@ import com.deltadna.android.sdk.helpers.Settings;
 import com.deltadna.android.sdk.listeners.RequestListener;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Locale;
@@ -39,6 +45,9 @@ public class NetworkManager {
     private static final String TAG = BuildConfig.LOG_TAG
             + ' '
             + NetworkManager.class.getSimpleName();
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final String VALIDATOR_SUFFIX = ".part.validator";
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
     
     private final String collectUrl;
     private final String engageUrl;
@@ -58,6 +67,37 @@ public class NetworkManager {
             Settings settings,
             @Nullable String hash) {
         
+        this(envKey, collectUrl, engageUrl, settings, hash, Connectivity.ALWAYS);
+    }
+    
+    /**
+     * Creates a manager which parks uploads while the device is not
+     * connected, and fails engage requests and downloads straight away.
+     */
+    public NetworkManager(
+            Context context,
+            String envKey,
+            String collectUrl,
+            String engageUrl,
+            Settings settings,
+            @Nullable String hash) {
+        
+        this(   envKey,
+                collectUrl,
+                engageUrl,
+                settings,
+                hash,
+                new ConnectivityMonitor(context.getApplicationContext()));
+    }
+    
+    private NetworkManager(
+            String envKey,
+            String collectUrl,
+            String engageUrl,
+            Settings settings,
+            @Nullable String hash,
+            Connectivity connectivity) {
+        
         this.collectUrl = collectUrl + '/' + envKey;
         this.engageUrl = engageUrl + '/' + envKey;
         this.settings = settings;
@@ -73,7 +113,19 @@ public class NetworkManager {
         }
         md5 = md;
         
-        dispatcher = new NetworkDispatcher();
+        dispatcher = new NetworkDispatcher(
+                (settings.getHttpTransport() != null)
+                        ? settings.getHttpTransport()
+                        : UrlConnectionTransport.DEFAULT,
+                settings.getRequestMetricsListener(),
+                connectivity);
+    }
+    
+    /**
+     * Gets the timings of the recent requests.
+     */
+    public NetworkStats getStats() {
+        return dispatcher.getNetworkStats();
     }
     
     public CancelableRequest collect(
@@ -90,6 +142,7 @@ public class NetworkManager {
                         .maxRetries(settings.getHttpRequestMaxRetries())
                         .retryDelay(settings.getHttpRequestRetryDelay() * 1000)
                         .connectionTimeout(settings.getHttpRequestCollectTimeout() * 1000)
+                        .lane(Lane.COLLECT)
                         .build(),
                 listener);
     }
@@ -98,7 +151,6 @@ public class NetworkManager {
             JSONObject payload,
             RequestListener<JSONObject> listener) {
         
-        // TODO tweak timeouts to make engage come back within the magic 5s
         return engage(payload, listener, false);
     }
 
@@ -113,34 +165,99 @@ public class NetworkManager {
                         .url(buildHashedEndpoint(engageUrl, payload.toString()))
                         .header("Accept", "application/json")
                         .connectionTimeout(timeoutInSeconds * 1000)
+                        // bounds waiting on the response as well as connecting
+                        .readTimeout(timeoutInSeconds * 1000)
+                        .lane(Lane.ENGAGE)
                         .build(),
                 ResponseBodyConverter.JSON,
                 listener);
     }
     
+    /**
+     * Downloads {@code url} to {@code dest}, which will only be created
+     * once the download has completed. An interrupted download gets resumed
+     * from where it was left off if the server supports range requests.
+     */
     public CancelableRequest fetch(
             String url,
+            File dest,
+            RequestListener<Download> listener) {
+        
+        return fetch(url, dest, null, null, listener);
+    }
+    
+    /**
+     * Downloads {@code url} to {@code dest}, unless the previously
+     * downloaded {@code dest} is still valid according to the {@code etag}
+     * and {@code lastModified} validators, in which case the
+     * {@link Download} will be not modified without anything being
+     * downloaded.
+     */
+    public CancelableRequest fetch(
+            final String url,
             final File dest,
-            RequestListener<File> listener) {
+            @Nullable String etag,
+            @Nullable String lastModified,
+            final RequestListener<Download> listener) {
+        
+        final File partial = new File(dest.getPath() + PARTIAL_SUFFIX);
+        final File validator = new File(dest.getPath() + VALIDATOR_SUFFIX);
+        final boolean conditional = (etag != null || lastModified != null);
+        long offset = 0;
         
         // TODO tweak timeouts as this should come back quickly as well
+        final Request.Builder<Download> builder = new Request.Builder<Download>()
+                .get()
+                .url(url)
+                .connectionTimeout(settings.getHttpRequestEngageTimeout() * 1000)
+                .lane(Lane.FETCH)
+                // callers wait on the download, so fail rather than park
+                .deferrable(false);
+        if (conditional) {
+            // a partial download may be of a different version of the file
+            discard(partial, validator);
+            if (etag != null) {
+                builder.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                builder.header("If-Modified-Since", lastModified);
+            }
+        } else if (partial.length() > 0) {
+            final String range = read(validator);
+            if (range != null) {
+                Log.d(TAG, String.format(
+                        Locale.US,
+                        "Resuming download of %s from %d",
+                        url,
+                        partial.length()));
+                offset = partial.length();
+                builder.header("Range", "bytes=" + offset + '-');
+                // the remainder is only wanted of the same version
+                builder.header("If-Range", range);
+            } else {
+                // without a validator the remainder could be of another version
+                discard(partial, validator);
+            }
+        }
+        
         return dispatcher.enqueue(
-                new Request.Builder<File>()
-                        .get()
-                        .url(url)
-                        .connectionTimeout(settings.getHttpRequestEngageTimeout() * 1000)
-                        .build(),
-                new ResponseBodyConverter<File>() {
+                builder.build(),
+                new Downloader(partial, validator, dest, offset),
+                new RequestListener<Download>() {
                     @Override
-                    public File convert(byte[] input) throws Exception {
-                        final FileOutputStream os = new FileOutputStream(dest);
-                        os.write(input);
-                        os.close();
+                    public void onCompleted(Response<Download> response) {
+                        if (response.code == HTTP_RANGE_NOT_SATISFIABLE) {
+                            discard(partial, validator);
+                        }
                         
-                        return dest;
+                        listener.onCompleted(response);
                     }
-                },
-                listener);
+                    
+                    @Override
+                    public void onError(Throwable t) {
+                        listener.onError(t);
+                    }
+                });
     }
     
     private String buildHashedEndpoint(String endpoint, String payload) {
@@ -164,4 +281,151 @@ public class NetworkManager {
         
         return builder.toString();
     }
+    
+    private static void discard(File partial, File validator) {
+        if (partial.exists() && !partial.delete()) {
+            Log.w(TAG, "Failed deleting " + partial);
+        }
+        if (validator.exists() && !validator.delete()) {
+            Log.w(TAG, "Failed deleting " + validator);
+        }
+    }
+    
+    @Nullable
+    private static String read(File validator) {
+        if (!validator.exists()) return null;
+        
+        try {
+            final InputStream is = new FileInputStream(validator);
+            try {
+                final ByteArrayOutputStream os = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[256];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, read);
+                }
+                
+                final String value = os.toString("UTF-8");
+                return value.isEmpty() ? null : value;
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed reading " + validator, e);
+            return null;
+        }
+    }
+    
+    /**
+     * Streams a download into a partial file, which only gets renamed to
+     * the destination once it is complete and synced to storage so that
+     * the destination never holds an incomplete download.
+     * <p>
+     * The validator of the version being downloaded is kept next to the
+     * partial file, so that an interrupted download only gets resumed
+     * with the remainder of the same version.
+     */
+    private static final class Downloader extends ResponseBodyConverter.Streaming<Download> {
+        
+        private final File partial;
+        private final File validator;
+        private final File dest;
+        private final long offset;
+        
+        Downloader(File partial, File validator, File dest, long offset) {
+            this.partial = partial;
+            this.validator = validator;
+            this.dest = dest;
+            this.offset = offset;
+        }
+        
+        @Override
+        boolean accepts(int code) {
+            return (super.accepts(code) || code == HttpURLConnection.HTTP_NOT_MODIFIED);
+        }
+        
+        @Override
+        public Download convert(InputStream input) throws Exception {
+            write(input, false);
+            return new Download(dest, false, null, null, -1);
+        }
+        
+        @Override
+        Download convert(HttpTransport.Response response, InputStream input)
+                throws IOException {
+            
+            if (response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return Download.of(dest, true, response);
+            }
+            
+            if (response.getCode() == HttpURLConnection.HTTP_PARTIAL) {
+                final String range = response.getHeader("Content-Range");
+                if (    offset == 0
+                        || partial.length() != offset
+                        || range == null
+                        || !range.trim().startsWith("bytes " + offset + '-')) {
+                    discard(partial, validator);
+                    throw new IOException(String.format(
+                            Locale.US,
+                            "Expected range from %d but got %s",
+                            offset,
+                            range));
+                }
+                
+                write(input, true);
+            } else {
+                // anything other than the requested range means starting over
+                keep(response);
+                write(input, false);
+            }
+            
+            return Download.of(dest, false, response);
+        }
+        
+        /**
+         * Keeps the validator of the version in the {@code response}, or
+         * none if it cannot be used for resuming the download.
+         */
+        private void keep(HttpTransport.Response response) throws IOException {
+            String value = response.getHeader("ETag");
+            if (value == null || value.startsWith("W/")) {
+                // weak tags cannot be used for ranges
+                value = response.getHeader("Last-Modified");
+            }
+            
+            if (value == null) {
+                if (validator.exists() && !validator.delete()) {
+                    Log.w(TAG, "Failed deleting " + validator);
+                }
+            } else {
+                final FileOutputStream os = new FileOutputStream(validator);
+                try {
+                    os.write(value.getBytes("UTF-8"));
+                } finally {
+                    os.close();
+                }
+            }
+        }
+        
+        private void write(InputStream input, boolean append) throws IOException {
+            final FileOutputStream os = new FileOutputStream(partial, append);
+            try {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    os.write(buffer, 0, read);
+                }
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+            
+            if (!partial.renameTo(dest)) {
+                throw new IOException("Failed renaming " + partial + " to " + dest);
+            }
+            if (validator.exists() && !validator.delete()) {
+                Log.w(TAG, "Failed deleting " + validator);
+            }
+        }
+    }
 }
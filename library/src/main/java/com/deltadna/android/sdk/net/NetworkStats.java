@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk.net;
+
+import com.deltadna.android.sdk.helpers.Objects;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Snapshot of the statistics of the network requests made by the SDK,
+ * aggregated by {@link Lane} over the recent requests.
+ *
+ * @see com.deltadna.android.sdk.DDNA#getNetworkStats()
+ */
+public final class NetworkStats {
+    
+    public static final NetworkStats EMPTY =
+            new NetworkStats(new EnumMap<Lane, Timings>(Lane.class));
+    
+    private final Map<Lane, Timings> timings;
+    
+    NetworkStats(Map<Lane, Timings> timings) {
+        this.timings = Collections.unmodifiableMap(timings);
+    }
+    
+    /**
+     * Gets the timings of the requests on the {@code lane}.
+     */
+    public Timings getTimings(Lane lane) {
+        final Timings result = timings.get(lane);
+        return (result != null) ? result : Timings.EMPTY;
+    }
+    
+    @Override
+    public String toString() {
+        return new Objects.ToStringHelper(this)
+                .add("timings", timings)
+                .toString();
+    }
+    
+    /**
+     * Timings of the requests on a {@link Lane}.
+     */
+    public static final class Timings {
+        
+        static final Timings EMPTY = new Timings(
+                0,
+                0,
+                Percentiles.EMPTY,
+                Percentiles.EMPTY,
+                Percentiles.EMPTY);
+        
+        private final long requests;
+        private final long failures;
+        private final Percentiles totalTime;
+        private final Percentiles timeToFirstByte;
+        private final Percentiles connectTime;
+        
+        Timings(
+                long requests,
+                long failures,
+                Percentiles totalTime,
+                Percentiles timeToFirstByte,
+                Percentiles connectTime) {
+            
+            this.requests = requests;
+            this.failures = failures;
+            this.totalTime = totalTime;
+            this.timeToFirstByte = timeToFirstByte;
+            this.connectTime = connectTime;
+        }
+        
+        /**
+         * Gets the number of requests which have been completed.
+         */
+        public long getRequests() {
+            return requests;
+        }
+        
+        /**
+         * Gets the number of requests which have failed without a
+         * successful response.
+         */
+        public long getFailures() {
+            return failures;
+        }
+        
+        /**
+         * @see RequestMetrics#getTotalTime()
+         */
+        public Percentiles getTotalTime() {
+            return totalTime;
+        }
+        
+        /**
+         * @see RequestMetrics#getTimeToFirstByte()
+         */
+        public Percentiles getTimeToFirstByte() {
+            return timeToFirstByte;
+        }
+        
+        /**
+         * @see RequestMetrics#getConnectTime()
+         */
+        public Percentiles getConnectTime() {
+            return connectTime;
+        }
+        
+        @Override
+        public String toString() {
+            return new Objects.ToStringHelper(this)
+                    .add("requests", requests)
+                    .add("failures", failures)
+                    .add("totalTime", totalTime)
+                    .add("timeToFirstByte", timeToFirstByte)
+                    .add("connectTime", connectTime)
+                    .toString();
+        }
+    }
+    
+    /**
+     * Percentiles of a timing, in milliseconds, which will be {@code 0} if
+     * there have been no samples.
+     */
+    public static final class Percentiles {
+        
+        static final Percentiles EMPTY = new Percentiles(0, 0, 0);
+        
+        private final long p50;
+        private final long p95;
+        private final long p99;
+        
+        Percentiles(long p50, long p95, long p99) {
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+        }
+        
+        public long getP50() {
+            return p50;
+        }
+        
+        public long getP95() {
+            return p95;
+        }
+        
+        public long getP99() {
+            return p99;
+        }
+        
+        @Override
+        public String toString() {
+            return new Objects.ToStringHelper(this)
+                    .add("p50", p50)
+                    .add("p95", p95)
+                    .add("p99", p99)
+                    .toString();
+        }
+    }
+}
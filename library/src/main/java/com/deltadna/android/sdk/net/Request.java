@@ -16,18 +16,22 @@
 
 package com.deltadna.android.sdk.net;
 
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.deltadna.android.sdk.helpers.Objects;
 import com.deltadna.android.sdk.helpers.Preconditions;
 import com.deltadna.android.sdk.listeners.RequestListener;
 
-import java.net.HttpURLConnection;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Encapsulates the required details and logic for performing an
@@ -39,6 +43,7 @@ final class Request<T> implements Callable<Response<T>> {
     
     private static final int CONNECTION_TIMEOUT = 15 * 1000;
     private static final int READ_TIMEOUT = 10 * 1000;
+    private static final long NOT_QUEUED = Long.MIN_VALUE;
     
     private final URL url;
     private final RequestMethod method;
@@ -49,9 +54,12 @@ final class Request<T> implements Callable<Response<T>> {
     private final int connectionTimeout;
     private final int readTimeout;
     private final int maxRetries;
+    final Lane lane;
+    final boolean deferrable;
     
     @Nullable
     private ResponseBodyConverter<T> converter;
+    private HttpTransport transport = UrlConnectionTransport.DEFAULT;
     
     // TODO following members should perhaps be moved out
     final int retryDelay;
@@ -59,6 +67,17 @@ final class Request<T> implements Callable<Response<T>> {
     RequestListener<T> listener;
     private int runs;
     
+    // timings of the last run, in nanoseconds unless stated otherwise
+    private long queued = NOT_QUEUED;
+    private long waited;
+    private long started;
+    private long firstByte;
+    private long finished;
+    private long connectTime;
+    private boolean reused;
+    private int code;
+    private long responseBytes;
+    
     private Request(
             URL url,
             RequestMethod method,
@@ -67,7 +86,9 @@ final class Request<T> implements Callable<Response<T>> {
             int connectionTimeout,
             int readTimeout,
             int maxRetries,
-            int retryDelay) {
+            int retryDelay,
+            Lane lane,
+            boolean deferrable) {
         
         this.url = url;
         this.method = method;
@@ -78,6 +99,8 @@ final class Request<T> implements Callable<Response<T>> {
         this.readTimeout = readTimeout;
         this.maxRetries = maxRetries;
         this.retryDelay = retryDelay;
+        this.lane = lane;
+        this.deferrable = deferrable;
     }
     
     Request<T> setConverter(@Nullable ResponseBodyConverter<T> converter) {
@@ -85,11 +108,24 @@ final class Request<T> implements Callable<Response<T>> {
         return this;
     }
     
+    Request<T> setTransport(HttpTransport transport) {
+        this.transport = transport;
+        return this;
+    }
+    
     Request<T> setRequestListener(@Nullable RequestListener<T> listener) {
         this.listener = listener;
         return this;
     }
     
+    /**
+     * Marks the request as queued to be run at {@code nanos}, which may be
+     * in the future if it has been scheduled.
+     */
+    void setQueued(long nanos) {
+        queued = nanos;
+    }
+    
     boolean shouldRetry() {
         return (runs <= maxRetries);
     }
@@ -98,33 +134,80 @@ final class Request<T> implements Callable<Response<T>> {
     public Response<T> call() throws Exception {
         runs++;
         
-        HttpURLConnection connection = null;
+        started = System.nanoTime();
+        if (queued != NOT_QUEUED) {
+            waited += Math.max(0, started - queued);
+            queued = NOT_QUEUED;
+        }
+        firstByte = -1;
+        connectTime = -1;
+        reused = false;
+        code = -1;
+        responseBytes = 0;
+        
         try {
-            connection = (HttpURLConnection) url.openConnection();
-            
-            connection.setConnectTimeout(connectionTimeout);
-            connection.setReadTimeout(readTimeout);
+            final HttpTransport.Response exchange = transport.execute(
+                    new HttpTransport.Request(
+                            url,
+                            method,
+                            headers,
+                            body,
+                            connectionTimeout,
+                            readTimeout));
+            firstByte = System.nanoTime();
+            connectTime = exchange.getConnectTime();
+            reused = exchange.isConnectionReused();
             
-            method.set(connection);
-            
-            for (final String header : headers.keySet()) {
-                connection.setRequestProperty(header, headers.get(header));
-            }
-            
-            if (body != null) {
-                body.fill(connection);
+            boolean reusable = false;
+            CountingInputStream stream = null;
+            try {
+                code = exchange.getCode();
+                
+                final InputStream body = exchange.getBody();
+                stream = (body != null) ? new CountingInputStream(body) : null;
+                final Response<T> response = Response.create(
+                        exchange,
+                        stream,
+                        converter);
+                // body has been read to the end so the connection can be kept alive
+                reusable = true;
+                return response;
+            } finally {
+                if (stream != null) {
+                    responseBytes = stream.count;
+                }
+                
+                if (reusable) {
+                    exchange.close();
+                } else {
+                    exchange.disconnect();
+                }
             }
-            
-            connection.connect();
-            
-            return Response.create(connection, converter);
         } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
+            finished = System.nanoTime();
         }
     }
     
+    /**
+     * Gets the metrics of the request, as of its last run.
+     */
+    RequestMetrics metrics() {
+        return new RequestMetrics(
+                lane,
+                url.toString(),
+                code,
+                TimeUnit.NANOSECONDS.toMillis(waited),
+                connectTime,
+                (firstByte != -1)
+                        ? TimeUnit.NANOSECONDS.toMillis(firstByte - started)
+                        : -1,
+                TimeUnit.NANOSECONDS.toMillis(finished - started),
+                (body != null) ? body.content.length : 0,
+                responseBytes,
+                Math.max(0, runs - 1),
+                reused);
+    }
+    
     @Override
     public String toString() {
         return new Objects.ToStringHelper(this)
@@ -135,6 +218,44 @@ final class Request<T> implements Callable<Response<T>> {
                 .toString();
     }
 
+    /**
+     * Counts the bytes read from a response body.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        
+        private long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            final int read = super.read();
+            if (read != -1) count++;
+            return read;
+        }
+        
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read != -1) count += read;
+            return read;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+    
     /**
      * Builder providing a fluid API for creating a {@link Request}.
      * 
@@ -151,6 +272,9 @@ final class Request<T> implements Callable<Response<T>> {
         private int readTimeout = READ_TIMEOUT;
         private int maxRetries;
         private int retryDelay;
+        private Lane lane = Lane.COLLECT;
+        @Nullable
+        private Boolean deferrable;
         
         Builder() {
             method = RequestMethod.GET;
@@ -204,6 +328,21 @@ final class Request<T> implements Callable<Response<T>> {
             return this;
         }
         
+        Builder<T> lane(Lane lane) {
+            Preconditions.checkArg(lane != null, "lane cannot be null");
+            this.lane = lane;
+            return this;
+        }
+        
+        /**
+         * Sets whether the request can wait for the device to get
+         * connected, which otherwise depends on the {@link Lane}.
+         */
+        Builder<T> deferrable(boolean deferrable) {
+            this.deferrable = deferrable;
+            return this;
+        }
+        
         Request<T> build() {
             Preconditions.checkArg(url != null, "url has not been specified");
             return new Request<>(
@@ -214,7 +353,9 @@ final class Request<T> implements Callable<Response<T>> {
                     connectionTimeout,
                     readTimeout,
                     maxRetries,
-                    retryDelay);
+                    retryDelay,
+                    lane,
+                    (deferrable != null) ? deferrable : lane.deferrable);
         }
         
         private Builder<T> method(
@@ -49,9 +49,19 @@ final class RequestBody {
     }
     
     void fill(HttpURLConnection connection) throws IOException {
+        prepare(connection);
+        write(connection);
+    }
+    
+    /**
+     * Sets up the {@code connection} for the body, before it connects.
+     */
+    void prepare(HttpURLConnection connection) {
         connection.setFixedLengthStreamingMode(content.length);
         connection.setRequestProperty("Content-Type", type);
-        
+    }
+    
+    void write(HttpURLConnection connection) throws IOException {
         OutputStream output = null;
         try {
             output = connection.getOutputStream();
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk.net;
+
+import com.deltadna.android.sdk.helpers.Objects;
+
+/**
+ * Timings and sizes of a network request made by the SDK, recorded once
+ * the request has completed or failed for the last time.
+ * <p>
+ * The timings, other than the queue wait, are for the last attempt of the
+ * request, and are {@code -1} if the attempt failed before reaching them.
+ *
+ * @see com.deltadna.android.sdk.helpers.Settings#setRequestMetricsListener(Listener)
+ */
+public final class RequestMetrics {
+    
+    private final Lane lane;
+    private final String url;
+    private final int code;
+    private final long queueWait;
+    private final long connectTime;
+    private final long timeToFirstByte;
+    private final long totalTime;
+    private final long requestBytes;
+    private final long responseBytes;
+    private final int retries;
+    private final boolean connectionReused;
+    
+    RequestMetrics(
+            Lane lane,
+            String url,
+            int code,
+            long queueWait,
+            long connectTime,
+            long timeToFirstByte,
+            long totalTime,
+            long requestBytes,
+            long responseBytes,
+            int retries,
+            boolean connectionReused) {
+        
+        this.lane = lane;
+        this.url = url;
+        this.code = code;
+        this.queueWait = queueWait;
+        this.connectTime = connectTime;
+        this.timeToFirstByte = timeToFirstByte;
+        this.totalTime = totalTime;
+        this.requestBytes = requestBytes;
+        this.responseBytes = responseBytes;
+        this.retries = retries;
+        this.connectionReused = connectionReused;
+    }
+    
+    /**
+     * Gets the lane of the request, which corresponds to the type of the
+     * endpoint.
+     */
+    public Lane getLane() {
+        return lane;
+    }
+    
+    public String getUrl() {
+        return url;
+    }
+    
+    /**
+     * Gets the HTTP status code of the response.
+     *
+     * @return the status code, or {@code -1} if no response was received
+     */
+    public int getCode() {
+        return code;
+    }
+    
+    /**
+     * Gets whether a successful response was received.
+     */
+    public boolean isSuccessful() {
+        return Response.isSuccess(code);
+    }
+    
+    /**
+     * Gets the time the request waited behind other requests to be
+     * performed, summed over all of its attempts but not including the
+     * delays before retries.
+     *
+     * @return the time in milliseconds
+     */
+    public long getQueueWait() {
+        return queueWait;
+    }
+    
+    /**
+     * Gets the time taken to connect, which will be {@code 0} if an
+     * existing connection was reused.
+     *
+     * @return the time in milliseconds, or {@code -1} if not known
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+    
+    /**
+     * Gets the time from the start of the request until the status and
+     * headers of the response were received.
+     *
+     * @return the time in milliseconds, or {@code -1} if not received
+     */
+    public long getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+    
+    /**
+     * Gets the time from the start of the request until the body of the
+     * response was read.
+     *
+     * @return the time in milliseconds
+     */
+    public long getTotalTime() {
+        return totalTime;
+    }
+    
+    /**
+     * @return the size of the request body in bytes
+     */
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+    
+    /**
+     * @return the size of the response body in bytes
+     */
+    public long getResponseBytes() {
+        return responseBytes;
+    }
+    
+    /**
+     * Gets the number of times the request was retried.
+     */
+    public int getRetries() {
+        return retries;
+    }
+    
+    /**
+     * Gets whether the request reused a connection kept alive from an
+     * earlier request.
+     *
+     * @return {@code true} if reused, {@code false} if not or not known
+     */
+    public boolean isConnectionReused() {
+        return connectionReused;
+    }
+    
+    @Override
+    public String toString() {
+        return new Objects.ToStringHelper(this)
+                .add("lane", lane)
+                .add("url", url)
+                .add("code", code)
+                .add("queueWait", queueWait)
+                .add("connectTime", connectTime)
+                .add("timeToFirstByte", timeToFirstByte)
+                .add("totalTime", totalTime)
+                .add("requestBytes", requestBytes)
+                .add("responseBytes", responseBytes)
+                .add("retries", retries)
+                .add("connectionReused", connectionReused)
+                .toString();
+    }
+    
+    /**
+     * Listener for the {@link RequestMetrics} of the requests made by the
+     * SDK, which will be called on a background thread and should return
+     * quickly.
+     */
+    public interface Listener {
+        
+        void onRequestMetrics(RequestMetrics metrics);
+    }
+}
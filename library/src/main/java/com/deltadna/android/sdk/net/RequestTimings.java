@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk.net;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Aggregates the {@link RequestMetrics} of the recent requests on each
+ * {@link Lane} into {@link NetworkStats}.
+ */
+final class RequestTimings {
+    
+    private static final int SAMPLES = 128;
+    
+    private final Map<Lane, LaneTimings> lanes = new EnumMap<>(Lane.class);
+    
+    RequestTimings() {
+        for (final Lane lane : Lane.values()) {
+            lanes.put(lane, new LaneTimings());
+        }
+    }
+    
+    void record(RequestMetrics metrics) {
+        final LaneTimings timings = lanes.get(metrics.getLane());
+        synchronized (timings) {
+            timings.requests++;
+            if (!metrics.isSuccessful()) timings.failures++;
+            
+            timings.totalTime.add(metrics.getTotalTime());
+            timings.timeToFirstByte.add(metrics.getTimeToFirstByte());
+            timings.connectTime.add(metrics.getConnectTime());
+        }
+    }
+    
+    NetworkStats getStats() {
+        final Map<Lane, NetworkStats.Timings> stats = new EnumMap<>(Lane.class);
+        for (final Lane lane : Lane.values()) {
+            final LaneTimings timings = lanes.get(lane);
+            synchronized (timings) {
+                stats.put(lane, new NetworkStats.Timings(
+                        timings.requests,
+                        timings.failures,
+                        timings.totalTime.percentiles(),
+                        timings.timeToFirstByte.percentiles(),
+                        timings.connectTime.percentiles()));
+            }
+        }
+        
+        return new NetworkStats(stats);
+    }
+    
+    private static final class LaneTimings {
+        
+        long requests;
+        long failures;
+        final Samples totalTime = new Samples();
+        final Samples timeToFirstByte = new Samples();
+        final Samples connectTime = new Samples();
+    }
+    
+    /**
+     * Ring of the most recent samples, ignoring unknown timings.
+     */
+    private static final class Samples {
+        
+        private final long[] samples = new long[SAMPLES];
+        private long count;
+        
+        void add(long sample) {
+            if (sample >= 0) {
+                samples[(int) (count++ % SAMPLES)] = sample;
+            }
+        }
+        
+        NetworkStats.Percentiles percentiles() {
+            if (count == 0) return NetworkStats.Percentiles.EMPTY;
+            
+            final long[] recent = Arrays.copyOf(
+                    samples,
+                    (int) Math.min(count, SAMPLES));
+            Arrays.sort(recent);
+            
+            return new NetworkStats.Percentiles(
+                    percentile(recent, 0.5),
+                    percentile(recent, 0.95),
+                    percentile(recent, 0.99));
+        }
+        
+        private static long percentile(long[] sorted, double percentile) {
+            return sorted[(int) Math.ceil(sorted.length * percentile) - 1];
+        }
+    }
+}
@@ -20,7 +20,10 @@ import android.support.annotation.Nullable;
 
 import com.deltadna.android.sdk.helpers.Objects;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.util.Arrays;
@@ -29,12 +32,15 @@ import java.util.Arrays;
  * HTTP response, including the code, body, and error if applicable.
  * <p>
  * The body is in byte form and {@link T} if a {@link ResponseBodyConverter}
- * has been provided.
+ * has been provided, or only {@link T} if the converter is
+ * {@link ResponseBodyConverter.Streaming}.
  *
  * @param <T> type of the converted response body
  */
 public final class Response<T> {
     
+    private static final int BUFFER_SIZE = 8192;
+    
     /**
      * HTTP status code of the response.
      */
@@ -46,7 +52,11 @@ public final class Response<T> {
     /**
      * Response in plain bytes, may be the error message if the request was a
      * failure.
+     * <p>
+     * Will be {@code null} if the body has been converted while it was being
+     * read.
      */
+    @Nullable
     public final byte[] bytes;
     /**
      * Converted body of the response if the request was a success.
@@ -57,7 +67,7 @@ public final class Response<T> {
      */
     public final String error;
     
-    public Response(int code, boolean cached, byte[] bytes, T body, String error) {
+    public Response(int code, boolean cached, @Nullable byte[] bytes, T body, String error) {
         this.code = code;
         this.cached = cached;
         this.bytes = bytes;
@@ -110,37 +120,61 @@ public final class Response<T> {
             HttpURLConnection connection,
             @Nullable ResponseBodyConverter<T> converter) throws Exception {
         
-        final int code = connection.getResponseCode();
-        return create(
-                code,
-                connection.getContentLength(),
-                isSuccess(code)
-                        ? connection.getInputStream()
-                        : connection.getErrorStream(),
-                converter);
+        return create(new UrlConnectionTransport.Exchange(connection), converter);
     }
     
-    private static <T> Response<T> create(
-            int code,
-            int contentLength,
-            InputStream stream,
+    static <T> Response<T> create(
+            HttpTransport.Response response,
             @Nullable ResponseBodyConverter<T> converter) throws Exception {
         
-        final ByteArrayOutputStream buffer;
-        //noinspection TryFinallyCanBeTryWithResources
-        try {
-            buffer = (contentLength != -1)
-                    ? new ByteArrayOutputStream(contentLength)
-                    : new ByteArrayOutputStream();
-            int read;
-            while ((read = stream.read()) != -1) {
-                buffer.write(read);
+        return create(response, response.getBody(), converter);
+    }
+    
+    /**
+     * Creates the response for {@code exchange}, reading the body from
+     * {@code stream} which will be closed afterwards.
+     */
+    static <T> Response<T> create(
+            HttpTransport.Response exchange,
+            @Nullable InputStream stream,
+            @Nullable ResponseBodyConverter<T> converter) throws Exception {
+        
+        final int code = exchange.getCode();
+        
+        if (    converter instanceof ResponseBodyConverter.Streaming
+                && ((ResponseBodyConverter.Streaming<T>) converter).accepts(code)) {
+            final InputStream buffered = new BufferedInputStream(
+                    (stream != null) ? stream : new ByteArrayInputStream(new byte[0]),
+                    BUFFER_SIZE);
+            try {
+                final T body = ((ResponseBodyConverter.Streaming<T>) converter)
+                        .convert(exchange, buffered);
+                // anything left needs to be read for the connection to be reused
+                drain(buffered);
+                
+                return new Response<>(code, false, null, body, null);
+            } finally {
+                buffered.close();
             }
+        }
+        
+        // no stream when an error response has no body
+        if (stream == null) {
+            return create(code, new byte[0], converter);
+        }
+        
+        try {
+            return create(code, read(stream, exchange.getContentLength()), converter);
         } finally {
             stream.close();
         }
+    }
+    
+    private static <T> Response<T> create(
+            int code,
+            byte[] bytes,
+            @Nullable ResponseBodyConverter<T> converter) throws Exception {
         
-        final byte[] bytes = buffer.toByteArray();
         return new Response<>(
                 code,
                 false,
@@ -153,6 +187,40 @@ public final class Response<T> {
                         : null);
     }
     
+    /**
+     * Reads the whole of {@code stream} in bulk, straight into an array of
+     * the right size when the length is known.
+     */
+    static byte[] read(InputStream stream, int contentLength) throws IOException {
+        if (contentLength >= 0) {
+            // the stream ends at the content length
+            final byte[] bytes = new byte[contentLength];
+            int length = 0;
+            int read;
+            while (     length < bytes.length
+                        && (read = stream.read(bytes, length, bytes.length - length)) != -1) {
+                length += read;
+            }
+            
+            return (length == bytes.length) ? bytes : Arrays.copyOf(bytes, length);
+        } else {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(BUFFER_SIZE);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            
+            return output.toByteArray();
+        }
+    }
+    
+    private static void drain(InputStream stream) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        //noinspection StatementWithEmptyBody
+        while (stream.read(buffer) != -1) {}
+    }
+    
     static boolean isSuccess(int code) {
         return (code >= 200 && code < 300);
     }
@@ -18,6 +18,10 @@ package com.deltadna.android.sdk.net;
 
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 
 /**
@@ -28,9 +32,9 @@ import java.nio.charset.Charset;
  */
 interface ResponseBodyConverter<T> {
     
-    ResponseBodyConverter<Void> NULL = new ResponseBodyConverter<Void>() {
+    ResponseBodyConverter<Void> NULL = new Streaming<Void>() {
         @Override
-        public Void convert(byte[] input) {
+        public Void convert(InputStream input) {
             return null;
         }
     };
@@ -40,12 +44,62 @@ interface ResponseBodyConverter<T> {
             return new String(input, Charset.forName("UTF-8"));
         }
     };
-    ResponseBodyConverter<JSONObject> JSON = new ResponseBodyConverter<JSONObject>() {
+    ResponseBodyConverter<JSONObject> JSON = new Streaming<JSONObject>() {
         @Override
-        public JSONObject convert(byte[] input) throws Exception {
-            return new JSONObject(ResponseBodyConverter.STRING.convert(input));
+        public JSONObject convert(InputStream input) throws Exception {
+            // decoded straight into characters without going through bytes
+            final Reader reader = new InputStreamReader(input, Charset.forName("UTF-8"));
+            final StringBuilder builder = new StringBuilder();
+            final char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, read);
+            }
+            
+            return new JSONObject(builder.toString());
         }
     };
     
     T convert(byte[] input) throws Exception;
+    
+    /**
+     * Converter which consumes the body while it is being read, so that
+     * the body does not have to be held in memory in its entirety. The
+     * {@link Response#bytes} of a successful response converted by it
+     * will be {@code null}.
+     * 
+     * @param <T> type to convert the {@link Response} body to
+     */
+    abstract class Streaming<T> implements ResponseBodyConverter<T> {
+        
+        @Override
+        public T convert(byte[] input) throws Exception {
+            return convert(new ByteArrayInputStream(input));
+        }
+        
+        /**
+         * Converts the body from {@code input}, which is buffered and does
+         * not need to be closed. Whatever is not read will be discarded.
+         */
+        public abstract T convert(InputStream input) throws Exception;
+        
+        /**
+         * Checks whether the body of a response with {@code code} should be
+         * converted, which by default is only the case for successful
+         * responses.
+         */
+        boolean accepts(int code) {
+            return Response.isSuccess(code);
+        }
+        
+        /**
+         * Converts the body of an {@link #accepts(int)}ed {@code response},
+         * whose code will be {@link java.net.HttpURLConnection#HTTP_PARTIAL}
+         * if only a range of the body has been sent. The {@code input} will
+         * be empty if the response has no body.
+         */
+        T convert(HttpTransport.Response response, InputStream input) throws Exception {
+            return convert(input);
+        }
+    }
 }
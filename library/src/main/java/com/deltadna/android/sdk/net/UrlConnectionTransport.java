@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk.net;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import static com.deltadna.android.sdk.net.Response.isSuccess;
+
+/**
+ * {@link HttpTransport} using the {@link HttpURLConnection} of the platform,
+ * which is used unless another transport has been provided.
+ */
+final class UrlConnectionTransport implements HttpTransport {
+    
+    static final UrlConnectionTransport DEFAULT =
+            new UrlConnectionTransport(Connections.DEFAULT);
+    
+    private final Connections connections;
+    
+    UrlConnectionTransport(Connections connections) {
+        this.connections = connections;
+    }
+    
+    @Override
+    public HttpTransport.Response execute(Request request) throws IOException {
+        final HttpURLConnection connection = connections.open(request.getUrl());
+        try {
+            connection.setConnectTimeout(request.getConnectionTimeout());
+            connection.setReadTimeout(request.getReadTimeout());
+            
+            request.method.set(connection);
+            
+            for (final String header : request.getHeaders().keySet()) {
+                connection.setRequestProperty(
+                        header,
+                        request.getHeaders().get(header));
+            }
+            
+            if (request.body != null) {
+                request.body.prepare(connection);
+            }
+            
+            // connects separately from writing the body to time it
+            connections.track();
+            final long start = System.nanoTime();
+            connection.connect();
+            final long connectTime = TimeUnit.NANOSECONDS.toMillis(
+                    System.nanoTime() - start);
+            // only secure connections can be tracked
+            final boolean reused = (connection instanceof HttpsURLConnection)
+                    && !connections.created();
+            
+            if (request.body != null) {
+                request.body.write(connection);
+            }
+            
+            // waits for the status and headers
+            connection.getResponseCode();
+            
+            return new Exchange(connection, reused ? 0 : connectTime, reused);
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+    
+    static final class Exchange implements HttpTransport.Response {
+        
+        private final HttpURLConnection connection;
+        private final long connectTime;
+        private final boolean reused;
+        
+        Exchange(HttpURLConnection connection) {
+            this(connection, -1, false);
+        }
+        
+        Exchange(HttpURLConnection connection, long connectTime, boolean reused) {
+            this.connection = connection;
+            this.connectTime = connectTime;
+            this.reused = reused;
+        }
+        
+        @Override
+        public int getCode() throws IOException {
+            return connection.getResponseCode();
+        }
+        
+        @Override
+        public int getContentLength() {
+            return connection.getContentLength();
+        }
+        
+        @Nullable
+        @Override
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+        
+        @Nullable
+        @Override
+        public InputStream getBody() throws IOException {
+            // no error stream when an error response has no body
+            return isSuccess(getCode())
+                    ? connection.getInputStream()
+                    : connection.getErrorStream();
+        }
+        
+        @Override
+        public long getConnectTime() {
+            return connectTime;
+        }
+        
+        @Override
+        public boolean isConnectionReused() {
+            return reused;
+        }
+        
+        @Override
+        public void close() {
+            // closing the body has returned the connection to the pool
+        }
+        
+        @Override
+        public void disconnect() {
+            connection.disconnect();
+        }
+    }
+}
@@ -23,4 +23,11 @@ public interface CloseableIterator<T> extends Iterator<T> {
     enum Mode { NONE, UP_TO_CURRENT, ALL}
     
     void close(Mode mode);
+    
+    /**
+     * Releases what is held for iterating, such as a database cursor, ahead
+     * of {@link #close(Mode)} being called once it is known what should
+     * happen to the items. No more items may be read afterwards.
+     */
+    default void release() {}
 }
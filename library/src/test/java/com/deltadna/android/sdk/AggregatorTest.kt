@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk
+
+import com.google.common.truth.Truth.assertThat
+import com.nhaarman.mockito_kotlin.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+class AggregatorTest {
+
+    @Test
+    fun `values are aggregated`() {
+        with(Aggregator("a").record(1.5).record(0.5).record(20000.0).snapshot()) {
+            assertThat(count).isEqualTo(3)
+            assertThat(sum).isEqualTo(20002.0)
+            assertThat(min).isEqualTo(0.5)
+            assertThat(max).isEqualTo(20000.0)
+            assertThat(buckets[0]).isEqualTo(1)
+            assertThat(buckets[1]).isEqualTo(1)
+            assertThat(buckets[Aggregator.BOUNDS.size]).isEqualTo(1)
+        }
+    }
+
+    @Test
+    fun `reset starts over`() {
+        with(Aggregator("a").record(1.0)) {
+            assertThat(reset().count).isEqualTo(1)
+            assertThat(snapshot().count).isEqualTo(0)
+
+            record(2.0)
+            with(reset()) {
+                assertThat(min).isEqualTo(2.0)
+                assertThat(max).isEqualTo(2.0)
+            }
+        }
+    }
+
+    @Test
+    fun `snapshot round trips through json`() {
+        val snapshot = Aggregator("a").record(3.0).record(7.0).snapshot()
+
+        with(Aggregator("b")) {
+            merge(Aggregator.Snapshot.fromJson(snapshot.toJson()))
+            record(1.0)
+
+            with(snapshot()) {
+                assertThat(count).isEqualTo(3)
+                assertThat(sum).isEqualTo(11.0)
+                assertThat(min).isEqualTo(1.0)
+                assertThat(max).isEqualTo(7.0)
+            }
+        }
+    }
+
+    @Test
+    fun `summary event is recorded per window and restored from checkpoint`() {
+        val checkpoint = File(RuntimeEnvironment.application.filesDir, "checkpoint.json")
+        val ddna = mock<DDNA>()
+
+        AggregatorStore(ddna, checkpoint).run {
+            get("a").record(1.0).record(2.0)
+            checkpoint()
+        }
+        assertThat(checkpoint.exists()).isTrue()
+
+        with(AggregatorStore(ddna, checkpoint)) {
+            get("a").record(3.0)
+            flush()
+        }
+
+        verify(ddna).recordEvent(argThat<Event<*>> {
+            name == "a"
+                    && params.toJson().getLong("aggregateCount") == 3L
+                    && params.toJson().getDouble("aggregateSum") == 6.0
+        })
+        assertThat(checkpoint.exists()).isFalse()
+    }
+
+    @Test
+    fun `stop records summary events off the calling thread before returning`() {
+        val checkpoint = File(RuntimeEnvironment.application.filesDir, "checkpoint.json")
+        val caller = Thread.currentThread()
+        val threads = mutableListOf<Thread>()
+        val ddna = mock<DDNA> {
+            on { recordEvent(any<Event<*>>()) } doAnswer {
+                threads.add(Thread.currentThread())
+                EventAction.EMPTY
+            }
+        }
+
+        with(AggregatorStore(ddna, checkpoint)) {
+            get("a").record(1.0)
+            stop()
+        }
+
+        verify(ddna).recordEvent(argThat<Event<*>> { name == "a" })
+        assertThat(threads).doesNotContain(caller)
+    }
+
+    @Test
+    fun `infinite values are left out of the summary event`() {
+        val event = Aggregator("a")
+                .record(Double.POSITIVE_INFINITY)
+                .record(1.0)
+                .snapshot()
+                .toEvent("a")
+        
+        with(event.params.toJson()) {
+            assertThat(getLong("aggregateCount")).isEqualTo(2)
+            assertThat(has("aggregateSum")).isFalse()
+            assertThat(getDouble("aggregateMin")).isEqualTo(1.0)
+            assertThat(has("aggregateMax")).isFalse()
+        }
+    }
+}
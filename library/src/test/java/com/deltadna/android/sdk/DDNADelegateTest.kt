@@ -125,6 +125,9 @@ class DDNADelegateTest {
         uut.clearRegistrationId()
         verify(tracking).clearRegistrationId()
         
+        uut.eventStoreStats
+        verify(tracking).eventStoreStats
+        
         uut.iso4217
         verify(tracking).iso4217
         
@@ -198,6 +201,9 @@ class DDNADelegateTest {
         uut.clearRegistrationId()
         verify(nonTracking).clearRegistrationId()
         
+        uut.eventStoreStats
+        verify(nonTracking).eventStoreStats
+        
         uut.iso4217
         verify(nonTracking).iso4217
         
@@ -345,6 +351,9 @@ class DDNADelegateTest {
 
         uut.clearRegistrationId()
         verify(nonTracking).clearRegistrationId()
+        
+        uut.eventStoreStats
+        verify(nonTracking).eventStoreStats
 
         uut.iso4217
         verify(nonTracking).iso4217
@@ -297,6 +297,44 @@ class DDNAImplTest {
         }
     }
     
+    @Test
+    fun `serialised events are completed and recorded`() {
+        server.enqueue(MockResponse().setResponseCode(200).setBody("{}"))
+        server.enqueue(MockResponse().setResponseCode(200))
+        uut.settings.setBackgroundEventUpload(false)
+        uut.startSdk()
+        server.takeRequest()
+        
+        uut.recordEventJson("""{"eventName":"a","eventParams":{"b":1}}""")
+        uut.recordEventsJson("""[{"eventName":"c","userID":"d"},{"eventName":1}]""")
+        uut.upload()
+        
+        server.takeRequest().run {
+            assertThat(path).startsWith("/collect")
+            with(JSONObject(body.readUtf8()).getJSONArray("eventList")) {
+                val events = (0 until length())
+                        .map { getJSONObject(it) }
+                        .associateBy { it.getString("eventName") }
+                
+                with(events.getValue("a")) {
+                    assertThat(getString("userID")).isEqualTo(uut.userId)
+                    assertThat(getString("sessionID")).isEqualTo(uut.sessionId)
+                    assertThat(has("eventTimestamp")).isTrue()
+                    assertThat(has("eventUUID")).isTrue()
+                    assertThat(getJSONObject("eventParams").getInt("b")).isEqualTo(1)
+                    assertThat(getJSONObject("eventParams").has("sdkVersion")).isTrue()
+                }
+                assertThat(events.getValue("c").getString("userID")).isEqualTo("d")
+                assertThat(events).doesNotContainKey("1")
+            }
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException::class)
+    fun `invalid serialised event is rejected`() {
+        uut.recordEventJson("""{"eventParams":{}}""")
+    }
+    
     @Test
     fun `decision point whitelisting`() {
         val listenerA = mock<EngageListener<Engagement<*>>>()
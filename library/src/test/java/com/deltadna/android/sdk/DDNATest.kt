@@ -22,6 +22,7 @@ import com.deltadna.android.sdk.helpers.ClientInfo
 import com.deltadna.android.sdk.helpers.Settings
 import com.deltadna.android.sdk.listeners.EngageListener
 import com.deltadna.android.sdk.listeners.internal.IEventListener
+import com.deltadna.android.sdk.net.NetworkStats
 import com.google.common.truth.Truth.assertThat
 import com.nhaarman.mockito_kotlin.mock
 import com.nhaarman.mockito_kotlin.times
@@ -266,6 +267,14 @@ class DDNATest {
             return this
         }
         
+        override fun getEventStoreStats(): EventStoreStats {
+            return listener.eventStoreStats
+        }
+        
+        override fun getNetworkStats(): NetworkStats {
+            return listener.networkStats
+        }
+        
         override fun getImageMessageStore(): ImageMessageStore {
             return listener.imageMessageStore
         }
@@ -68,4 +68,38 @@ class DatabaseHelperTest {
         assertThat(uut.getAction(1L)).isNull()
         assertThat(uut.getAction(2L)).isNull()
     }
+    
+    @Test
+    fun `image message is stale once expired`() {
+        val url = "http://host.net/path/1.png"
+        uut.insertImageMessage(url, Location.INTERNAL, "1.png", 1L, Date())
+        
+        // cannot be revalidated without validators
+        assertThat(uut.getStaleImageMessage(url, Date())).isNull()
+        
+        assertThat(uut.updateImageMessage(url, "\"a\"", null, Date(1000L))).isTrue()
+        assertThat(uut.getStaleImageMessage(url, Date(999L))).isNull()
+        with(uut.getStaleImageMessage("https://host.net/path/1.png", Date(1000L))!!) {
+            assertThat(getAsString(DatabaseHelper.ImageMessages.Column.URL.toString()))
+                    .isEqualTo(url)
+            assertThat(getAsString(DatabaseHelper.ImageMessages.Column.ETAG.toString()))
+                    .isEqualTo("\"a\"")
+        }
+    }
+    
+    @Test
+    fun `image message update keeps missing validators`() {
+        val url = "http://host.net/path/1.png"
+        uut.insertImageMessage(url, Location.INTERNAL, "1.png", 1L, Date())
+        uut.updateImageMessage(url, "\"a\"", "Tue, 01 Jan 2019 00:00:00 GMT", Date(0L))
+        
+        uut.updateImageMessage(url, null, null, Date(0L))
+        
+        with(uut.getStaleImageMessage(url, Date())!!) {
+            assertThat(getAsString(DatabaseHelper.ImageMessages.Column.ETAG.toString()))
+                    .isEqualTo("\"a\"")
+            assertThat(getAsString(DatabaseHelper.ImageMessages.Column.LAST_MODIFIED.toString()))
+                    .isEqualTo("Tue, 01 Jan 2019 00:00:00 GMT")
+        }
+    }
 }
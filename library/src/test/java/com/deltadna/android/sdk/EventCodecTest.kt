@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk
+
+import com.google.common.truth.Truth.assertThat
+import org.json.JSONException
+import org.json.JSONObject
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.ByteArrayInputStream
+import java.io.IOException
+
+@RunWith(RobolectricTestRunner::class)
+class EventCodecTest {
+    
+    private val event = """
+        {
+            "eventName": "transaction",
+            "eventTimestamp": "2019-01-01 00:00:00.000",
+            "eventUUID": "7c2a9c1e-3f0b-4f8a-9a7e-2d1c2e3f4a5b",
+            "sessionID": "b3e1c2d4",
+            "userID": "user/1",
+            "eventParams": {
+                "platform": "ANDROID",
+                "sdkVersion": "Android SDK v4.11.3.2",
+                "transactionType": "PURCHASE",
+                "productsSpent": {"realCurrency": {"realCurrencyType": "GBP", "realCurrencyAmount": 99}},
+                "productsReceived": {"items": [
+                    {"item": {"itemName": "sword", "itemType": "weapon", "itemAmount": -1}},
+                    {"item": {"itemName": "shield", "itemType": "weapon", "itemAmount": 12345678901}}]},
+                "ratio": 1.5e-3,
+                "zero": -0,
+                "flag": true,
+                "other": false,
+                "missing": null,
+                "text": "\"quoted\"\né"
+            }
+        }""".trimIndent()
+    
+    @Test
+    fun `events round trip`() {
+        val encoded = EventCodec.encode(event)
+        
+        assertThat(EventCodec.isEncoded(encoded[0].toInt() and 0xFF)).isTrue()
+        assertThat(decode(encoded).toString())
+                .isEqualTo(JSONObject(event).toString())
+    }
+    
+    @Test
+    fun `encoded events are smaller`() {
+        assertThat(EventCodec.encode(event).size)
+                .isLessThan(JSONObject(event).toString().toByteArray().size / 2)
+    }
+    
+    @Test
+    fun `json is not mistaken for encoded content`() {
+        assertThat(EventCodec.isEncoded('{'.toInt())).isFalse()
+    }
+    
+    @Test(expected = JSONException::class)
+    fun `invalid json is rejected`() {
+        EventCodec.encode("""{"a":}""")
+    }
+    
+    @Test(expected = IOException::class)
+    fun `truncated content is rejected`() {
+        with(EventCodec.encode(event)) { decode(copyOf(size - 2)) }
+    }
+    
+    @Test(expected = IOException::class)
+    fun `lengths beyond the content are rejected`() {
+        decode(bytes(0xDD, 1, 0x05, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F, 0x61))
+    }
+    
+    @Test(expected = IOException::class)
+    fun `negative lengths are rejected`() {
+        decode(bytes(0xDD, 1, 0x03, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01))
+    }
+    
+    @Test(expected = IOException::class)
+    fun `unknown interned strings are rejected`() {
+        decode(bytes(0xDD, 1, 0x06, 0xFF, 0x7F))
+    }
+    
+    @Test(expected = IOException::class)
+    fun `unknown repeated strings are rejected`() {
+        decode(bytes(0xDD, 1, 0x07, 0x00))
+    }
+    
+    @Test(expected = IOException::class)
+    fun `deep nesting is rejected`() {
+        decode(bytes(0xDD, 1, *IntArray(100_000) { 0x09 }))
+    }
+    
+    private fun bytes(vararg values: Int) =
+            ByteArray(values.size) { values[it].toByte() }
+    
+    private fun decode(content: ByteArray) = JSONObject(StringBuilder().apply {
+        EventCodec.decode(ByteArrayInputStream(content), content.size.toLong(), this)
+    }.toString())
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.IOException
+
+class EventCompressorTest {
+    
+    private val event = """{"eventName":"gameStarted","eventTimestamp":"2019-06-01 12:34:56.789","eventUUID":"7c2a9c1e-3f0b-4f8a-9a7e-2d1c2e3f4a5b","sessionID":"b3e1c2d4","userID":"a1b2c3","eventParams":{"platform":"ANDROID","sdkVersion":"Android SDK v4.11.3.2","clientVersion":"1.0"}}"""
+            .toByteArray()
+    
+    @Test
+    fun `content round trips`() {
+        val compressed = EventCompressor.compress(event)
+        
+        assertThat(EventCompressor.isCompressed(compressed[0].toInt() and 0xFF)).isTrue()
+        assertThat(EventCompressor.decompress(ByteArrayInputStream(compressed)))
+                .isEqualTo(event)
+    }
+    
+    @Test
+    fun `small events compress thanks to the dictionary`() {
+        assertThat(EventCompressor.compress(event).size).isLessThan(event.size / 2)
+    }
+    
+    @Test
+    fun `large content round trips`() {
+        val content = ByteArray(100 * 1024) { (it % 251).toByte() }
+        
+        assertThat(EventCompressor.decompress(ByteArrayInputStream(
+                EventCompressor.compress(content))))
+                .isEqualTo(content)
+    }
+    
+    @Test(expected = IOException::class)
+    fun `truncated content is rejected`() {
+        with(EventCompressor.compress(event)) {
+            EventCompressor.decompress(ByteArrayInputStream(copyOf(size / 2)))
+        }
+    }
+}
@@ -232,6 +232,136 @@ class EventHandlerTest {
         verify(listener).onError(same(cause))
     }
     
+    @Test
+    fun handleEngagementCoalescesInFlightRequests() {
+        val engagements = listOf(
+                KEngagement("point", "flavour"),
+                KEngagement("point", "flavour"),
+                KEngagement("point", "other"))
+        val listeners = List(3) { mock<EngageListener<KEngagement>>() }
+        val requests = mutableListOf<RequestListener<JSONObject>>()
+        whenever(network.engage(any(), any(), any())).thenAnswer {
+            requests.add(it.arguments[1] as RequestListener<JSONObject>)
+            null
+        }
+        
+        engagements.forEachIndexed { i, engagement ->
+            uut.handleEngagement(
+                    engagement,
+                    listeners[i],
+                    "userId",
+                    "sessionId",
+                    0,
+                    "sdkVersion",
+                    "platform")
+        }
+        
+        assertThat(requests).hasSize(2)
+        
+        val result = JSONObject().put("result", 1)
+        requests[0].onCompleted(Response(200, false, null, result, null))
+        
+        verify(this.engagements).put(same(engagements[0]))
+        for (i in 0..1) {
+            verify(listeners[i]).onCompleted(argThat {
+                assertThat(this).isSameAs(engagements[i])
+                assertThat(this.statusCode).isEqualTo(200)
+                assertThat(this.json.toString()).isEqualTo(result.toString())
+                true
+            })
+        }
+        assertThat(engagements[1].json).isNotSameAs(engagements[0].json)
+        verifyZeroInteractions(listeners[2])
+        
+        // completed requests are no longer coalesced
+        uut.handleEngagement(
+                engagements[0],
+                listeners[0],
+                "userId",
+                "sessionId",
+                0,
+                "sdkVersion",
+                "platform")
+        assertThat(requests).hasSize(3)
+    }
+    
+    @Test
+    fun handleEngagementReleasesFailedRequests() {
+        val engagement = KEngagement("point", "flavour")
+        val listener = mock<EngageListener<KEngagement>>()
+        val cause = IllegalArgumentException()
+        whenever(network.engage(any(), any(), any())).thenThrow(cause)
+        
+        repeat(2) {
+            uut.handleEngagement(
+                    engagement,
+                    listener,
+                    "userId",
+                    "sessionId",
+                    0,
+                    "sdkVersion",
+                    "platform")
+        }
+        
+        verify(network, times(2)).engage(any(), any(), any())
+        verify(listener, times(2)).onError(same(cause))
+    }
+    
+    @Test
+    fun handleEngagementIsolatesFailingListeners() {
+        val engagements = List(2) { KEngagement("point", "flavour") }
+        val listeners = List(2) { mock<EngageListener<KEngagement>>() }
+        doThrow(IllegalStateException()).whenever(listeners[0]).onCompleted(any())
+        val requests = mutableListOf<RequestListener<JSONObject>>()
+        whenever(network.engage(any(), any(), any())).thenAnswer {
+            requests.add(it.arguments[1] as RequestListener<JSONObject>)
+            null
+        }
+        
+        engagements.forEachIndexed { i, engagement ->
+            uut.handleEngagement(
+                    engagement,
+                    listeners[i],
+                    "userId",
+                    "sessionId",
+                    0,
+                    "sdkVersion",
+                    "platform")
+        }
+        requests.single().onCompleted(Response(200, false, null, JSONObject(), null))
+        
+        listeners.forEach {
+            verify(it).onCompleted(any())
+            verify(it, never()).onError(any())
+        }
+    }
+    
+    @Test
+    fun uploadsWaitForInFlightUpload() {
+        withStoreEvents(listOf("0"), listOf("1")) {
+            val requests = mutableListOf<RequestListener<Void>>()
+            whenever(network.collect(any(), any())).thenAnswer {
+                requests.add(it.arguments[1] as RequestListener<Void>)
+                null
+            }
+            
+            uut.start(0, 1)
+            Thread.sleep(1500)
+            
+            // the upload is still in flight, but the thread and store are free
+            verify(events).items()
+            verify(this[0]).release()
+            verify(this[0], never()).close(any())
+            
+            requests.single().onCompleted(Response(200, false, null, null, null))
+            verify(this[0]).close(same(CloseableIterator.Mode.ALL))
+            Thread.sleep(1000)
+            
+            verify(events, times(2)).items()
+            assertThat(requests).hasSize(2)
+        }
+    }
+    
     @Test
     fun itemsClearedOnSuccess() {
         withStoreEvents(listOf("0")) {
@@ -352,6 +482,7 @@ class EventHandlerTest {
         override fun hasNext() = index < backing.size - 1
         override fun next() = backing[++index]
         override fun close(mode: CloseableIterator.Mode) {}
+        override fun release() {}
         override fun remove() {}
     }
     
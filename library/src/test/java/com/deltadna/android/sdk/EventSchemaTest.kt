@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk
+
+import com.github.salomonbrys.kotson.jsonObject
+import com.google.common.truth.Truth.assertThat
+import org.json.JSONException
+import org.json.JSONObject
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class EventSchemaTest {
+
+    private val uut = EventSchema.compile(JSONObject(jsonObject(
+            "a" to jsonObject(
+                    "b" to "string",
+                    "c" to jsonObject("type" to "integer", "required" to true),
+                    "d" to "boolean"))
+            .toString()))
+
+    @Test
+    fun `events not in schema are not validated`() {
+        assertThat(uut.covers("e")).isFalse()
+        assertThat(uut.validate("e", mapOf("f" to JsonScanner.Kind.ARRAY))).isNull()
+    }
+
+    @Test
+    fun `valid events pass`() {
+        assertThat(uut.covers("a")).isTrue()
+        assertThat(uut.validate("a", EventSchema.kinds(
+                KEvent("a").putParam("b", "x").putParam("c", 1).params.toJson())))
+                .isNull()
+        assertThat(uut.validate("a", RawEvent.parse(
+                """{"eventName":"a","eventParams":{"c":2,"d":false}}""").params))
+                .isNull()
+    }
+
+    @Test
+    fun `parameters added by the sdk need not be declared`() {
+        assertThat(uut.validate("a", RawEvent.parse("""{"eventName":"a","eventParams":{
+            "c":2,"platform":"ANDROID","sdkVersion":"Android SDK v4","ddnaSampleRate":0.5}}""")
+                .params))
+                .isNull()
+    }
+
+    @Test
+    fun `violations are reported`() {
+        assertThat(uut.validate("a", mapOf(
+                "c" to JsonScanner.Kind.NUMBER,
+                "e" to JsonScanner.Kind.STRING)))
+                .contains("Unexpected parameter e")
+        assertThat(uut.validate("a", mapOf("c" to JsonScanner.Kind.STRING)))
+                .contains("Parameter c")
+        assertThat(uut.validate("a", mapOf("b" to JsonScanner.Kind.STRING)))
+                .contains("Missing parameter c")
+    }
+
+    @Test(expected = JSONException::class)
+    fun `unknown types are rejected`() {
+        EventSchema.compile(JSONObject(jsonObject(
+                "a" to jsonObject("b" to "date"))
+                .toString()))
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.deltadna.android.sdk
 
+import android.content.Intent
 import android.os.Environment
 import com.deltadna.android.sdk.helpers.Settings
 import com.deltadna.android.sdk.util.CloseableIterator
@@ -26,7 +27,9 @@ import org.junit.runner.RunWith
 import org.robolectric.RobolectricTestRunner
 import org.robolectric.RuntimeEnvironment
 import org.robolectric.shadows.ShadowEnvironment
+import java.io.DataOutputStream
 import java.io.File
+import java.security.MessageDigest
 
 @RunWith(RobolectricTestRunner::class)
 class EventStoreTest {
@@ -72,6 +75,35 @@ class EventStoreTest {
         }
     }
     
+    @Test
+    fun migratesLegacyStoreFromRecordedProgress() {
+        val legacy = LegacyEventStore(
+                File(   application!!.getExternalFilesDir(null),
+                        "/ddsdk/events/").path,
+                prefs,
+                false,
+                false)
+        legacy.swap()
+        legacy.swap()
+        listOf("1", "2", "3").forEach { legacy.push(it) }
+        
+        // as if interrupted after migrating the first record
+        prefs.prefs.edit()
+                .putString("DDSDK_EVENT_MIGRATION_FILE", "A")
+                .putLong("DDSDK_EVENT_MIGRATION_OFFSET", 5)
+                .apply()
+        
+        uut = EventStore(application, database, settings, prefs)
+        pause()
+        
+        with(uut.items()) {
+            assertThat(next().get()).isEqualTo("2")
+            assertThat(next().get()).isEqualTo("3")
+            assertThat(hasNext()).isFalse()
+        }
+        assertThat(prefs.prefs.contains("DDSDK_EVENT_MIGRATION_OFFSET")).isFalse()
+    }
+    
     @Test
     fun itemsAddedAndRetrievable() {
         val items = listOf("1", "2", "3")
@@ -133,10 +165,12 @@ class EventStoreTest {
     
     @Test
     fun itemNotAvailableOnExternalUnmounted() {
+        settings.setEventStoreInternalLimit(0)
+        
         with(uut) {
             add("1")
             pause()
-            ShadowEnvironment.setExternalStorageState(Environment.MEDIA_UNMOUNTED)
+            unmount()
             
             with(items()) {
                 assertThat(next().available()).isFalse()
@@ -145,6 +179,28 @@ class EventStoreTest {
         }
     }
     
+    @Test
+    fun itemsWrittenInternallyAndTieredToExternal() {
+        settings.setEventStoreInternalLimit(2)
+        
+        with(uut) {
+            listOf("1", "2", "3").forEach { add(it) }
+            pause()
+            
+            assertThat(database.getEventsSize(Location.INTERNAL)).isEqualTo(2L)
+            assertThat(database.getEventsSize(Location.EXTERNAL)).isEqualTo(1L)
+            assertThat(Location.EXTERNAL.storage(application, "events/")
+                    .listFiles()).hasLength(1)
+            
+            with(items()) {
+                listOf("1", "2", "3").forEach {
+                    assertThat(next().get()).isEqualTo(it)
+                }
+                assertThat(hasNext()).isFalse()
+            }
+        }
+    }
+    
     @Test
     fun itemsRetrievedUpToLimit() {
         val items = listOf(512*1024, 512*1024, 512*1024, 1024*1024)
@@ -207,7 +263,8 @@ class EventStoreTest {
                 pause()
             }
             
-            (0..4).forEach {
+            // the rest of the store is reserved for critical events
+            (0..3).forEach {
                 with(items()) {
                     assertThat(hasNext()).isTrue()
                     next()
@@ -253,18 +310,21 @@ class EventStoreTest {
     
     @Test
     fun itemsRemovedOnCloseWithClearUpToCurrent() {
+        settings.setEventStoreInternalLimit(0)
+        
         with(uut) {
             listOf("1", "2", "3").forEach { add(it) }
             pause()
             
             with(items()) {
                 next()
-                ShadowEnvironment.setExternalStorageState(Environment.MEDIA_UNMOUNTED)
+                unmount()
                 assertThat(next().available()).isFalse()
                 close(CloseableIterator.Mode.UP_TO_CURRENT)
             }
             
             ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED)
+            uut.onReceive(application, Intent(Intent.ACTION_MEDIA_MOUNTED))
             with(items()) {
                 assertThat(next().get()).isEqualTo("2")
                 assertThat(next().get()).isEqualTo("3")
@@ -272,6 +332,49 @@ class EventStoreTest {
         }
     }
     
+    @Test
+    fun statsMaintainedAsItemsStoredAndRemoved() {
+        settings.isUseInternalStorageForEvents = true
+        
+        with(uut) {
+            listOf("1", "22", "333").forEach { add(it) }
+            add(String(CharArray(EventStore.EVENTS_LIMIT + 1) { 'a' }))
+            pause()
+            
+            with(stats) {
+                assertThat(pendingEvents).isEqualTo(3L)
+                assertThat(pendingBytes).isEqualTo(6L)
+                assertThat(internalBytes).isEqualTo(6L)
+                assertThat(externalBytes).isEqualTo(0L)
+                assertThat(oldestEventAge).isGreaterThan(0L)
+                assertThat(droppedTooLarge).isEqualTo(1L)
+            }
+            
+            with(items()) {
+                next()
+                close(CloseableIterator.Mode.UP_TO_CURRENT)
+            }
+            with(stats) {
+                assertThat(pendingEvents).isEqualTo(2L)
+                assertThat(pendingBytes).isEqualTo(5L)
+            }
+            
+            (1L..20L).forEach { recordBatchBuildTime(it) }
+            with(stats) {
+                assertThat(batches).isEqualTo(20L)
+                assertThat(averageBatchBuildTime).isEqualTo(10L)
+                assertThat(p95BatchBuildTime).isEqualTo(19L)
+            }
+            
+            clear()
+            with(stats) {
+                assertThat(pendingEvents).isEqualTo(0L)
+                assertThat(pendingBytes).isEqualTo(0L)
+                assertThat(oldestEventAge).isEqualTo(0L)
+            }
+        }
+    }
+    
     @Test
     fun clear() {
         with(uut) {
@@ -282,5 +385,443 @@ class EventStoreTest {
         }
     }
     
+    @Test
+    fun clearWipesFilesInBackground() {
+        settings.isUseInternalStorageForEvents = true
+        
+        with(uut) {
+            listOf("1", "2", "3").forEach { add(it) }
+            pause()
+            clear()
+            
+            assertThat(items().hasNext()).isFalse()
+            assertThat(Location.INTERNAL.storage(application, "events/").list()).isEmpty()
+            
+            add("4")
+            pause()
+        }
+        
+        assertThat(Location.INTERNAL.storage(application, "").list()!!
+                .filter { it.startsWith("tombstone-") })
+                .isEmpty()
+        assertItems("4")
+    }
+    
+    @Test
+    fun newestDroppedWhenQueueFull() {
+        settings.setEventQueueCapacity(1)
+        settings.setEventQueueOverflowPolicy(Settings.OverflowPolicy.DROP_NEWEST)
+        uut = EventStore(application, database, settings, prefs)
+        
+        fillQueue()
+        pause()
+        
+        assertThat(uut.droppedCount).isEqualTo(1)
+        assertItems("1", "2")
+    }
+    
+    @Test
+    fun oldestDroppedWhenQueueFull() {
+        settings.setEventQueueCapacity(1)
+        settings.setEventQueueOverflowPolicy(
+                Settings.OverflowPolicy.DROP_OLDEST_LOW_PRIORITY)
+        uut = EventStore(application, database, settings, prefs)
+        
+        fillQueue()
+        pause()
+        
+        assertThat(uut.droppedCount).isEqualTo(1)
+        assertItems("1", "3")
+    }
+    
+    @Test
+    fun droppedAfterBlockingWhenQueueFull() {
+        settings.setEventQueueCapacity(1)
+        settings.setEventQueueOverflowPolicy(Settings.OverflowPolicy.BLOCK)
+        settings.setEventQueueBlockTimeout(10)
+        uut = EventStore(application, database, settings, prefs)
+        
+        fillQueue()
+        pause()
+        
+        assertThat(uut.droppedCount).isEqualTo(1)
+        assertItems("1", "2")
+    }
+    
+    @Test
+    fun spilledToDiskWhenQueueFull() {
+        settings.setEventQueueCapacity(1)
+        settings.setEventQueueOverflowPolicy(Settings.OverflowPolicy.SPILL_TO_DISK)
+        uut = EventStore(application, database, settings, prefs)
+        
+        fillQueue()
+        pause()
+        
+        assertThat(uut.droppedCount).isEqualTo(0)
+        assertThat(uut.spilledCount).isEqualTo(1)
+        assertItems("1", "2", "3")
+    }
+    
+    @Test
+    fun interruptedSpillDrainResumed() {
+        with(Location.INTERNAL.storage(application, "")) {
+            // the first event was stored before the process died
+            DataOutputStream(File(this, "events.spill.offset").outputStream()).use {
+                it.writeLong(8L + 1 + 4 + 1)
+            }
+            DataOutputStream(File(this, "events.spill.draining").outputStream()).use {
+                listOf("1", "2").forEach { event ->
+                    it.writeLong(System.currentTimeMillis())
+                    it.writeByte(EventPriority.NORMAL.value)
+                    it.writeInt(event.length)
+                    it.write(event.toByteArray())
+                }
+            }
+        }
+        
+        uut = EventStore(application, database, settings, prefs)
+        pause()
+        
+        assertItems("2")
+        assertThat(Location.INTERNAL.storage(application, "").list()!!
+                .filter { it.startsWith("events.spill") })
+                .isEmpty()
+    }
+    
+    @Test
+    fun itemsRetrievedInPriorityOrder() {
+        with(uut) {
+            add("1", EventPriority.LOW)
+            add("2")
+            add("3", EventPriority.CRITICAL)
+            add("4", EventPriority.NORMAL)
+            pause()
+        }
+        
+        assertItems("3", "2", "4", "1")
+    }
+    
+    @Test
+    fun lowerPriorityEvictedWhenFull() {
+        with(uut) {
+            add(item('l'), EventPriority.LOW)
+            (0..3).forEach { add(item('n')) }
+            add(item('c'), EventPriority.CRITICAL)
+            pause()
+            
+            assertThat(evictedCount).isEqualTo(1)
+            with(items()) {
+                assertThat(next().get()!![0]).isEqualTo('c')
+                close(CloseableIterator.Mode.ALL)
+            }
+            (0..3).forEach {
+                with(items()) {
+                    assertThat(next().get()!![0]).isEqualTo('n')
+                    assertThat(hasNext()).isFalse()
+                    close(CloseableIterator.Mode.ALL)
+                }
+            }
+            assertThat(items().hasNext()).isFalse()
+        }
+    }
+    
+    @Test
+    fun criticalNotDroppedWhileLowerPriorityStored() {
+        settings.setEventStoreEvictionPolicy(Settings.EvictionPolicy.DROP_NEWEST)
+        
+        with(uut) {
+            add(item('l'), EventPriority.LOW)
+            (0..3).forEach { add(item('n')) }
+            add(item('c'), EventPriority.CRITICAL)
+            pause()
+            
+            assertThat(evictedCount).isEqualTo(1)
+            assertThat(stats.droppedStoreFull).isEqualTo(0)
+        }
+        assertBatches('c', 'n', 'n', 'n', 'n')
+    }
+    
+    @Test
+    fun criticalEvictsLowerPriorityBeforeOlderCritical() {
+        settings.setEventStoreEvictionPolicy(Settings.EvictionPolicy.DROP_OLDEST)
+        
+        with(uut) {
+            add(item('a'), EventPriority.CRITICAL)
+            add(item('l'), EventPriority.LOW)
+            (0..2).forEach { add(item('n')) }
+            add(item('b'), EventPriority.CRITICAL)
+            pause()
+            
+            assertThat(evictedCount).isEqualTo(1)
+        }
+        assertBatches('a', 'b', 'n', 'n', 'n')
+    }
+    
+    @Test
+    fun lowPriorityLimitedToQuota() {
+        with(uut) {
+            (0..1).forEach { add(item('l'), EventPriority.LOW) }
+            pause()
+            
+            with(items()) {
+                next()
+                close(CloseableIterator.Mode.ALL)
+            }
+            assertThat(items().hasNext()).isFalse()
+        }
+    }
+    
+    @Test
+    fun oldestEvictedWithinQuota() {
+        settings.setEventStoreEvictionPolicy(Settings.EvictionPolicy.DROP_OLDEST)
+        
+        with(uut) {
+            add(item('a'), EventPriority.LOW)
+            add(item('b'), EventPriority.LOW)
+            pause()
+            
+            assertThat(evictedCount).isEqualTo(1)
+            assertThat(stats.droppedStoreFull).isEqualTo(0)
+        }
+        assertBatches('b')
+    }
+    
+    @Test
+    fun newestDroppedWhenStoreFull() {
+        settings.setEventStoreEvictionPolicy(Settings.EvictionPolicy.DROP_NEWEST)
+        
+        fillStore()
+        
+        assertThat(uut.evictedCount).isEqualTo(0)
+        assertBatches('a', 'b', 'c', 'd')
+    }
+    
+    @Test
+    fun oldestEvictedWhenStoreFull() {
+        settings.setEventStoreEvictionPolicy(Settings.EvictionPolicy.DROP_OLDEST)
+        
+        fillStore()
+        
+        assertThat(uut.evictedCount).isEqualTo(2)
+        assertThat(uut.evictedBytes).isEqualTo(2*1024*1024L)
+        assertBatches('c', 'd', 'e', 'f')
+    }
+    
+    @Test
+    fun expiredEvictedWhenStoreFull() {
+        settings.setEventStoreEvictionPolicy(Settings.EvictionPolicy.DROP_OLDER_THAN)
+        settings.setEventStoreEvictionAge(3600)
+        
+        fillStore()
+        
+        assertThat(uut.evictedCount).isEqualTo(0)
+        assertBatches('a', 'b', 'c', 'd')
+        
+        settings.setEventStoreEvictionAge(0)
+        
+        fillStore()
+        
+        assertThat(uut.evictedCount).isEqualTo(2)
+        assertBatches('c', 'd', 'e', 'f')
+    }
+    
+    @Test
+    fun expiredItemsNotRetrievedAndDeleted() {
+        uut.add("1")
+        pause()
+        pause()
+        
+        settings.setEventTimeToLive(1)
+        uut.add("2")
+        assertThat(uut.awaitPersisted(1000)).isTrue()
+        
+        assertItems("2")
+        assertThat(uut.expire()).isEqualTo(1)
+        assertThat(uut.expiredCount).isEqualTo(1)
+        
+        settings.setEventTimeToLive(0)
+        assertItems("2")
+    }
+    
+    @Test
+    fun itemsStoredInBinaryFormat() {
+        settings.setEventStoreFormat(Settings.StoreFormat.BINARY)
+        
+        with(uut) {
+            add("""{"eventName":"a","eventParams":{"b":1}}""")
+            add("not json")
+            pause()
+        }
+        
+        assertThat(database.getEventsSize()).isLessThan(
+                """{"eventName":"a","eventParams":{"b":1}}""".length + "not json".length.toLong())
+        assertItems("""{"eventName":"a","eventParams":{"b":1}}""", "not json")
+    }
+    
+    @Test
+    fun itemsStoredCompressed() {
+        settings.setCompressStoredEvents(true)
+        
+        fillStore()
+        
+        // everything fits as the events compress down to almost nothing
+        assertThat(database.getEventsSize()).isLessThan(64 * 1024L)
+        assertBatches('a', 'b', 'c', 'd', 'e', 'f')
+    }
+    
+    @Test
+    fun corruptedItemsQuarantined() {
+        settings.isUseInternalStorageForEvents = true
+        
+        uut.add("1")
+        pause()
+        Location.INTERNAL.storage(application, "events/").listFiles()!!
+                .single()
+                .writeText("2")
+        uut.add("3")
+        pause()
+        
+        with(uut.items()) {
+            assertThat(next().get()).isNull()
+            assertThat(next().get()).isEqualTo("3")
+            close(CloseableIterator.Mode.NONE)
+        }
+        
+        assertThat(uut.quarantinedCount).isEqualTo(1)
+        assertThat(Location.INTERNAL.storage(application, "quarantine/").list()!!.size)
+                .isEqualTo(1)
+        assertItems("3")
+    }
+    
+    @Test
+    fun legacyItemsVerified() {
+        pause()
+        
+        with(Location.EXTERNAL.storage(application, "events/")) {
+            mkdirs()
+            File(this, "tampered").writeText("""{"a":2}""")
+            File(this, "unhashed").writeText("""{"a":""")
+            File(this, "intact").writeText("""{"a":3}""")
+        }
+        database.insertEventRow(
+                System.currentTimeMillis(),
+                Location.EXTERNAL,
+                "tampered",
+                sha1("""{"a":1}"""),
+                7)
+        database.insertEventRow(
+                System.currentTimeMillis(),
+                Location.EXTERNAL,
+                "unhashed",
+                null,
+                5)
+        database.insertEventRow(
+                System.currentTimeMillis(),
+                Location.EXTERNAL,
+                "intact",
+                sha1("""{"a":3}"""),
+                7)
+        
+        with(uut.items()) {
+            assertThat(next().get()).isNull()
+            assertThat(next().get()).isNull()
+            assertThat(next().get()).isEqualTo("""{"a":3}""")
+            close(CloseableIterator.Mode.NONE)
+        }
+        
+        assertThat(uut.quarantinedCount).isEqualTo(2)
+    }
+    
+    @Test
+    fun orphansReconciledOnStartup() {
+        settings.isUseInternalStorageForEvents = true
+        
+        with(uut) {
+            add("1")
+            add("2")
+            pause()
+        }
+        with(Location.INTERNAL.storage(application, "events/")) {
+            File(this, "orphan").writeText("3")
+            listFiles()!!.single { it.readText() == "1" }.delete()
+        }
+        
+        uut = EventStore(application, database, settings, prefs)
+        pause()
+        
+        assertThat(uut.adoptedCount).isEqualTo(1)
+        assertThat(uut.orphanedRowsCount).isEqualTo(1)
+        assertItems("2", "3")
+    }
+    
+    @Test
+    fun orphansAdoptedWithTheirPriority() {
+        settings.isUseInternalStorageForEvents = true
+        
+        with(uut) {
+            add("1")
+            add("2", EventPriority.CRITICAL)
+            pause()
+        }
+        database.removeEventRows()
+        
+        uut = EventStore(application, database, settings, prefs)
+        pause()
+        
+        assertThat(uut.adoptedCount).isEqualTo(2)
+        assertItems("2", "1")
+    }
+    
+    /**
+     * Adds six events of a batch each, the last of which does not fit.
+     */
+    private fun fillStore() {
+        ('a'..'f').forEach {
+            uut.add(item(it))
+            pause()
+        }
+    }
+    
+    private fun assertBatches(vararg expected: Char) {
+        expected.forEach {
+            with(uut.items()) {
+                assertThat(next().get()!![0]).isEqualTo(it)
+                close(CloseableIterator.Mode.ALL)
+            }
+        }
+        assertThat(uut.items().hasNext()).isFalse()
+    }
+    
+    /**
+     * Holds up the worker on the first event, so that the second one fills
+     * the queue and the third one overflows.
+     */
+    private fun fillQueue() {
+        synchronized(uut) {
+            uut.add("1")
+            Thread.sleep(200)
+            uut.add("2")
+            uut.add("3")
+        }
+    }
+    
+    private fun assertItems(vararg expected: String) {
+        with(uut.items()) {
+            expected.forEach { assertThat(next().get()).isEqualTo(it) }
+            assertThat(hasNext()).isFalse()
+        }
+    }
+    
+    private fun item(c: Char) = String(CharArray(1024*1024) { c })
+    
+    private fun unmount() {
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_UNMOUNTED)
+        uut.onReceive(application, Intent(Intent.ACTION_MEDIA_UNMOUNTED))
+    }
+    
+    private fun sha1(content: String) = MessageDigest.getInstance("SHA1")
+            .digest(content.toByteArray())
+            .joinToString("") { "%02x".format(it) }
+    
     private fun pause() = Thread.sleep(1000)
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk
+
+import com.deltadna.android.sdk.helpers.Settings
+import com.github.salomonbrys.kotson.jsonObject
+import com.google.common.truth.Truth.assertThat
+import com.nhaarman.mockito_kotlin.doReturn
+import com.nhaarman.mockito_kotlin.mock
+import org.json.JSONObject
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+class EventThrottlerTest {
+
+    private val random = mock<Random> {
+        on { nextDouble() } doReturn 0.3 doReturn 0.7
+    }
+
+    private lateinit var settings: Settings
+    private lateinit var uut: EventThrottler
+
+    @Before
+    fun before() {
+        settings = Settings()
+        uut = EventThrottler(settings, random)
+    }
+
+    @Test
+    fun `events without rules are kept`() {
+        assertThat(uut.admit("a")).isEqualTo(EventThrottler.KEEP)
+    }
+
+    @Test
+    fun `events are sampled`() {
+        settings.setEventSampleRate("a", 0.5)
+
+        assertThat(uut.admit("a")).isEqualTo(0.5)
+        assertThat(uut.admit("a")).isEqualTo(EventThrottler.DROP)
+        assertThat(uut.admit("b")).isEqualTo(EventThrottler.KEEP)
+    }
+
+    @Test
+    fun `events are rate limited`() {
+        settings.setEventRateLimit("a", 1.0, 2)
+
+        assertThat(uut.admit("a")).isEqualTo(EventThrottler.KEEP)
+        assertThat(uut.admit("a")).isEqualTo(EventThrottler.KEEP)
+        assertThat(uut.admit("a")).isEqualTo(EventThrottler.DROP)
+        assertThat(uut.admit("b")).isEqualTo(EventThrottler.KEEP)
+
+        Robolectric.getForegroundThreadScheduler().advanceBy(1, TimeUnit.SECONDS)
+
+        assertThat(uut.admit("a")).isEqualTo(EventThrottler.KEEP)
+        assertThat(uut.admit("a")).isEqualTo(EventThrottler.DROP)
+    }
+
+    @Test
+    fun `sampled out events do not use up rate limit`() {
+        settings.setEventSampleRate("a", 0.5)
+        settings.setEventRateLimit("a", 1.0, 1)
+        uut = EventThrottler(settings, mock {
+            on { nextDouble() } doReturn 0.7 doReturn 0.3
+        })
+
+        assertThat(uut.admit("a")).isEqualTo(EventThrottler.DROP)
+        assertThat(uut.admit("a")).isEqualTo(0.5)
+        assertThat(uut.admit("a")).isEqualTo(EventThrottler.DROP)
+    }
+
+    @Test
+    fun `session configuration overrides settings`() {
+        settings.setEventSampleRate("a", 0.1)
+        settings.setEventRateLimit("b", 1.0, 1)
+
+        uut.configure(
+                JSONObject(jsonObject("a" to 1, "c" to 0).toString()),
+                JSONObject(jsonObject(
+                        "b" to jsonObject("perSecond" to 1, "burst" to 3))
+                        .toString()))
+
+        assertThat(uut.admit("a")).isEqualTo(EventThrottler.KEEP)
+        assertThat(uut.admit("c")).isEqualTo(EventThrottler.DROP)
+        repeat(3) {
+            assertThat(uut.admit("b")).isEqualTo(EventThrottler.KEEP)
+        }
+        assertThat(uut.admit("b")).isEqualTo(EventThrottler.DROP)
+    }
+
+    @Test
+    fun `invalid session configuration is ignored`() {
+        uut.configure(
+                JSONObject(jsonObject("a" to 2, "b" to "c").toString()),
+                JSONObject(jsonObject("d" to jsonObject("burst" to 0)).toString()))
+
+        assertThat(uut.admit("a")).isEqualTo(EventThrottler.KEEP)
+        assertThat(uut.admit("b")).isEqualTo(EventThrottler.KEEP)
+        assertThat(uut.admit("d")).isEqualTo(EventThrottler.KEEP)
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.deltadna.android.sdk
 
+import android.content.ContentValues
 import android.database.Cursor
 import android.os.Environment
 import com.deltadna.android.sdk.DatabaseHelper.ImageMessages.Column.*
@@ -24,6 +25,7 @@ import com.deltadna.android.sdk.Location.INTERNAL
 import com.deltadna.android.sdk.helpers.Settings
 import com.deltadna.android.sdk.listeners.RequestListener
 import com.deltadna.android.sdk.net.CancelableRequest
+import com.deltadna.android.sdk.net.Download
 import com.deltadna.android.sdk.net.NetworkManager
 import com.deltadna.android.sdk.net.Response
 import com.google.common.truth.Truth.assertThat
@@ -151,8 +153,8 @@ class ImageMessageStoreTest {
             }
         }
         doAnswer {
-            (it.arguments[2] as RequestListener<File>).onCompleted(
-                    mock<Response<File>>().apply {
+            (it.arguments[2] as RequestListener<Download>).onCompleted(
+                    mock<Response<Download>>().apply {
                         whenever(isSuccessful).then { true }
                     })
             mock<CancelableRequest>()
@@ -193,6 +195,79 @@ class ImageMessageStoreTest {
         verifyZeroInteractions(network)
     }
     
+    @Test
+    fun revalidatesStaleFromStorage() {
+        val file = File(EXTERNAL.cache(application, "image_messages"), "1.png")
+        file.createNewFile()
+        
+        whenever(database.getImageMessage(eq("http://host.net/path/1.png"))).then {
+            mock<Cursor>().apply {
+                whenever(moveToFirst()).then { true }
+                whenever(getColumnIndex(eq(LOCATION.toString()))).then { 0 }
+                whenever(getColumnIndex(eq(NAME.toString()))).then { 1 }
+                whenever(getString(eq(0))).then { EXTERNAL.name }
+                whenever(getString(eq(1))).then { "1.png" }
+            }
+        }
+        whenever(database.getStaleImageMessage(eq("http://host.net/path/1.png"), any()))
+                .then { ContentValues().apply {
+                    put(URL.toString(), "http://host.net/path/1.png")
+                    put(LOCATION.toString(), EXTERNAL.name)
+                    put(ETAG.toString(), "\"a\"")
+                }}
+        doAnswer {
+            (it.arguments[4] as RequestListener<Download>).onCompleted(
+                    Response<Download>(304, false, null, mock<Download>().apply {
+                        whenever(isNotModified).then { true }
+                        whenever(eTag).then { "\"b\"" }
+                        whenever(maxAge).then { 60L }
+                    }, null))
+            mock<CancelableRequest>()
+        }.whenever(network).fetch(
+                eq("http://host.net/path/1.png"),
+                eq(file),
+                eq("\"a\""),
+                isNull(),
+                any())
+        
+        assertThat(uut.get("http://host.net/path/1.png")).isEqualTo(file)
+        verify(database).updateImageMessage(
+                eq("http://host.net/path/1.png"),
+                eq("\"b\""),
+                isNull(),
+                argThat { after(Date(now() + 59_000)) })
+        verify(database, never()).insertImageMessage(any(), any(), any(), any(), any())
+    }
+    
+    @Test
+    fun revalidationFailureFallsBackToStorage() {
+        val file = File(EXTERNAL.cache(application, "image_messages"), "1.png")
+        file.createNewFile()
+        
+        whenever(database.getImageMessage(eq("http://host.net/path/1.png"))).then {
+            mock<Cursor>().apply {
+                whenever(moveToFirst()).then { true }
+                whenever(getColumnIndex(eq(LOCATION.toString()))).then { 0 }
+                whenever(getColumnIndex(eq(NAME.toString()))).then { 1 }
+                whenever(getString(eq(0))).then { EXTERNAL.name }
+                whenever(getString(eq(1))).then { "1.png" }
+            }
+        }
+        whenever(database.getStaleImageMessage(eq("http://host.net/path/1.png"), any()))
+                .then { ContentValues().apply {
+                    put(URL.toString(), "http://host.net/path/1.png")
+                    put(LOCATION.toString(), EXTERNAL.name)
+                    put(LAST_MODIFIED.toString(), "Tue, 01 Jan 2019 00:00:00 GMT")
+                }}
+        doAnswer {
+            (it.arguments[4] as RequestListener<Download>).onError(Exception())
+            mock<CancelableRequest>()
+        }.whenever(network).fetch(any(), any(), anyOrNull(), anyOrNull(), any())
+        
+        assertThat(uut.get("http://host.net/path/1.png")).isEqualTo(file)
+        verify(database, never()).updateImageMessage(any(), anyOrNull(), anyOrNull(), any())
+    }
+    
     @Test
     fun loadingMissingFromStorageFetchesFromNetwork() {
         whenever(database.getImageMessage(eq("http://host.net/path/1.png"))).then {
@@ -250,8 +325,8 @@ class ImageMessageStoreTest {
                         }}
                 
                 doAnswer {
-                    (it.arguments[2] as RequestListener<File>).onCompleted(
-                            Response<File>(200, false, null, file, null))
+                    (it.arguments[2] as RequestListener<Download>).onCompleted(
+                            Response<Download>(200, false, null, mock(), null))
                     mock<CancelableRequest>()
                 }.whenever(network).fetch(eq("http://host.net/path/$name"), any(), any())
             }
@@ -285,11 +360,11 @@ class ImageMessageStoreTest {
             
             doAnswer {
                 if (name == "2.png") {
-                    (it.arguments[2] as RequestListener<File>).onCompleted(
-                            Response<File>(500, false, null, null, "error"))
+                    (it.arguments[2] as RequestListener<Download>).onCompleted(
+                            Response<Download>(500, false, null, null, "error"))
                 } else {
-                    (it.arguments[2] as RequestListener<File>).onCompleted(
-                            Response<File>(200, false, null, file, null))
+                    (it.arguments[2] as RequestListener<Download>).onCompleted(
+                            Response<Download>(200, false, null, mock(), null))
                 }
                 mock<CancelableRequest>()
             }.whenever(network).fetch(eq("http://host.net/path/$name"), any(), any())
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk
+
+import com.google.common.truth.Truth.assertThat
+import org.json.JSONException
+import org.json.JSONObject
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class RawEventTest {
+
+    @Test
+    fun `name and param kinds are scanned`() {
+        with(RawEvent.parse("""
+            {
+                "eventName": "a",
+                "eventParams": {"b": "c", "d": 1.5e3, "e": [1, {}], "f": true, "g": null}
+            }
+            """)) {
+            assertThat(name).isEqualTo("a")
+            assertThat(params).containsExactly(
+                    "b", JsonScanner.Kind.STRING,
+                    "d", JsonScanner.Kind.NUMBER,
+                    "e", JsonScanner.Kind.ARRAY,
+                    "f", JsonScanner.Kind.BOOLEAN,
+                    "g", JsonScanner.Kind.NULL)
+        }
+    }
+
+    @Test
+    fun `missing fields and params are added`() {
+        with(JSONObject(RawEvent.parse("""{"eventName":"a","eventParams":{"b":1}}""")
+                .putFieldIfAbsent("userID", "u")
+                .putParam("platform", "p")
+                .putParam("c", 2)
+                .serialise())) {
+            assertThat(getString("eventName")).isEqualTo("a")
+            assertThat(getString("userID")).isEqualTo("u")
+            with(getJSONObject("eventParams")) {
+                assertThat(getInt("b")).isEqualTo(1)
+                assertThat(getString("platform")).isEqualTo("p")
+                assertThat(getInt("c")).isEqualTo(2)
+            }
+        }
+    }
+
+    @Test
+    fun `existing fields are kept and params replaced`() {
+        with(JSONObject(RawEvent.parse(
+                """{"userID":"u","eventName":"a","eventParams":{"platform":"p","b":{"platform":1},"sdkVersion":"s"}}""")
+                .putFieldIfAbsent("userID", "v")
+                .putFieldIfAbsent("sessionID", null)
+                .putParam("platform", "q")
+                .putParam("sdkVersion", null)
+                .serialise())) {
+            assertThat(getString("userID")).isEqualTo("u")
+            assertThat(has("sessionID")).isFalse()
+            with(getJSONObject("eventParams")) {
+                assertThat(getString("platform")).isEqualTo("q")
+                assertThat(getJSONObject("b").getInt("platform")).isEqualTo(1)
+                assertThat(getString("sdkVersion")).isEqualTo("s")
+                assertThat(length()).isEqualTo(3)
+            }
+        }
+    }
+
+    @Test
+    fun `params are added to missing or empty event params`() {
+        with(JSONObject(RawEvent.parse("""{"eventName":"a"}""")
+                .putParam("b", "c")
+                .serialise())) {
+            assertThat(getJSONObject("eventParams").getString("b")).isEqualTo("c")
+        }
+        with(JSONObject(RawEvent.parse("""{"eventName":"a","eventParams":{}}""")
+                .putParam("b", "c")
+                .serialise())) {
+            assertThat(getJSONObject("eventParams").getString("b")).isEqualTo("c")
+        }
+    }
+
+    @Test
+    fun `params are parsed on demand`() {
+        with(RawEvent.parse("""{"eventName":"a","eventParams":{"b":"c","d":2}}""")
+                .toParams()) {
+            assertThat(toJson().getString("b")).isEqualTo("c")
+            assertThat(toJson().getInt("d")).isEqualTo(2)
+        }
+    }
+
+    @Test
+    fun `invalid events are rejected`() {
+        listOf( "",
+                "[]",
+                "{}",
+                """{"eventName":""}""",
+                """{"eventName":1}""",
+                """{"eventName":"a","eventParams":[]}""",
+                """{"eventName":"a","eventParams":{"b":}}""",
+                """{"eventName":"a"} {}""",
+                """{"eventName":"a\q"}""",
+                """{"eventName":"a","eventParams":{"b":01x}}""")
+                .forEach {
+                    try {
+                        RawEvent.parse(it)
+                        throw AssertionError("Accepted $it")
+                    } catch (e: JSONException) {
+                        // expected
+                    }
+                }
+    }
+
+    @Test
+    fun `invalid events in batches are skipped`() {
+        val failures = mutableListOf<JSONException>()
+
+        with(RawEvent.parseAll(
+                """[{"eventName":"a"},{"eventName":2},{"eventName":"b"}]""",
+                failures)) {
+            assertThat(map { it.name }).containsExactly("a", "b").inOrder()
+        }
+        assertThat(failures).hasSize(1)
+    }
+
+    @Test
+    fun `single event is accepted as batch`() {
+        assertThat(RawEvent.parseAll("""{"eventName":"a"}""", null).map { it.name })
+                .containsExactly("a")
+    }
+
+    @Test(expected = JSONException::class)
+    fun `malformed batch is rejected`() {
+        RawEvent.parseAll("""[{"eventName":"a"},""", null)
+    }
+}
@@ -111,4 +111,39 @@ class SettingsTest {
         uut.httpRequestEngageTimeout = 0
         assertThat(uut.httpRequestEngageTimeout).isEqualTo(0)
     }
+    
+    @Test(expected = IllegalArgumentException::class)
+    fun eventSampleRateInvalid() {
+        uut.setEventSampleRate("a", 1.5)
+    }
+    
+    @Test
+    fun eventSampleRates() {
+        assertThat(uut.eventSampleRates).isEmpty()
+        
+        uut.setEventSampleRate("a", 0.5)
+        assertThat(uut.eventSampleRates).containsExactly("a", 0.5)
+        
+        uut.clearEventLimits("a")
+        assertThat(uut.eventSampleRates).isEmpty()
+    }
+    
+    @Test(expected = IllegalArgumentException::class)
+    fun eventRateLimitInvalid() {
+        uut.setEventRateLimit("a", 1.0, 0)
+    }
+    
+    @Test
+    fun eventRateLimits() {
+        assertThat(uut.eventRateLimits).isEmpty()
+        
+        uut.setEventRateLimit("a", 2.0, 5)
+        with(uut.eventRateLimits["a"]!!) {
+            assertThat(perSecond).isEqualTo(2.0)
+            assertThat(burst).isEqualTo(5)
+        }
+        
+        uut.clearEventLimits("a")
+        assertThat(uut.eventRateLimits).isEmpty()
+    }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.deltadna.android.sdk.net
+
+/**
+ * [Connectivity] whose state is set by the test, notifying the listener
+ * when it becomes connected.
+ */
+internal class FakeConnectivity(@Volatile private var connected: Boolean) : Connectivity {
+    
+    @Volatile
+    private var listener: Connectivity.Listener? = null
+    
+    override fun isConnected() = connected
+    
+    override fun setListener(listener: Connectivity.Listener?) {
+        this.listener = listener
+    }
+    
+    fun connect() {
+        connected = true
+        listener?.onConnected()
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk.net
+
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * In-memory [HttpTransport] which replies with the enqueued responses, in
+ * order, and records the requests made.
+ */
+internal class FakeTransport : HttpTransport {
+    
+    val requests = CopyOnWriteArrayList<HttpTransport.Request>()
+    
+    private val responses = LinkedBlockingQueue<HttpTransport.Response>()
+    private val closes = AtomicInteger()
+    private val disconnects = AtomicInteger()
+    
+    val closed get() = closes.get()
+    val disconnected get() = disconnects.get()
+    
+    fun enqueue(code: Int, body: String = "", headers: Map<String, String> = emptyMap()) {
+        responses.add(Exchange(code, body.toByteArray(), headers))
+    }
+    
+    fun enqueue(failure: IOException) {
+        responses.add(Failure(failure))
+    }
+    
+    override fun execute(request: HttpTransport.Request): HttpTransport.Response {
+        requests.add(request)
+        
+        val response = responses.poll() ?: throw IOException("No response enqueued")
+        if (response is Failure) throw response.cause
+        return response
+    }
+    
+    private inner class Exchange(
+            private val code: Int,
+            private val body: ByteArray,
+            private val headers: Map<String, String>) : HttpTransport.Response {
+        
+        override fun getCode() = code
+        override fun getContentLength() = body.size
+        override fun getHeader(name: String) = headers[name]
+        override fun getBody(): InputStream? =
+                if (body.isEmpty()) null else ByteArrayInputStream(body)
+        
+        override fun close() {
+            closes.incrementAndGet()
+        }
+        
+        override fun disconnect() {
+            disconnects.incrementAndGet()
+        }
+    }
+    
+    private class Failure(val cause: IOException) : HttpTransport.Response {
+        
+        override fun getCode(): Int = throw cause
+        override fun getContentLength() = -1
+        override fun getHeader(name: String): String? = null
+        override fun getBody(): InputStream? = null
+        override fun close() {}
+        override fun disconnect() {}
+    }
+}
@@ -29,6 +29,9 @@ import org.junit.runner.RunWith
 import org.robolectric.RobolectricTestRunner
 import org.robolectric.RuntimeEnvironment
 import java.io.IOException
+import java.net.ConnectException
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.TimeUnit
 
 @RunWith(RobolectricTestRunner::class)
@@ -83,6 +86,188 @@ class NetworkDispatcherTest {
                 null)))
     }
     
+    @Test
+    fun requestsUseTransport() {
+        val transport = FakeTransport()
+        val listener = mock<RequestListener<String>>()
+        uut = NetworkDispatcher(transport)
+        
+        transport.enqueue(IOException("offline"))
+        transport.enqueue(200, "response")
+        
+        uut!!.enqueue(
+                Request.Builder<String>()
+                        .get()
+                        .url("https://example.com/transport")
+                        .maxRetries(1)
+                        .build(),
+                ResponseBodyConverter.STRING,
+                listener)
+        
+        Thread.sleep(100)
+        RuntimeEnvironment.getMasterScheduler().advanceToLastPostedRunnable()
+        
+        assertThat(transport.requests).hasSize(2)
+        verify(listener).onCompleted(eq(Response(
+                200,
+                false,
+                "response".toByteArray(),
+                "response",
+                null)))
+    }
+    
+    @Test
+    fun engageNotBlockedByCollect() {
+        val collect = mock<RequestListener<Void>>()
+        val engage = mock<RequestListener<Void>>()
+        
+        server!!.enqueue(MockResponse()
+                .setResponseCode(200)
+                .setBody("collect")
+                .setBodyDelay(1, TimeUnit.SECONDS))
+        server!!.enqueue(MockResponse().setResponseCode(200))
+        
+        uut!!.enqueue(
+                Request.Builder<Void>()
+                        .get()
+                        .url(server!!.url("/collect").toString())
+                        .lane(Lane.COLLECT)
+                        .build(),
+                collect)
+        server!!.takeRequest()
+        uut!!.enqueue(
+                Request.Builder<Void>()
+                        .get()
+                        .url(server!!.url("/engage").toString())
+                        .lane(Lane.ENGAGE)
+                        .build(),
+                engage)
+        server!!.takeRequest()
+        Thread.sleep(100)
+        RuntimeEnvironment.getMasterScheduler().advanceToLastPostedRunnable()
+        
+        verify(engage).onCompleted(any())
+        verifyZeroInteractions(collect)
+        with(uut!!.getStats(Lane.ENGAGE)) {
+            assertThat(completed).isEqualTo(1L)
+            assertThat(active).isEqualTo(0)
+        }
+        with(uut!!.getStats(Lane.COLLECT)) {
+            assertThat(completed).isEqualTo(0L)
+            assertThat(active).isEqualTo(1)
+        }
+    }
+    
+    @Test
+    fun metricsRecorded() {
+        val transport = FakeTransport()
+        val metrics = CopyOnWriteArrayList<RequestMetrics>()
+        uut = NetworkDispatcher(transport, RequestMetrics.Listener { metrics.add(it) })
+        
+        transport.enqueue(IOException("offline"))
+        transport.enqueue(200, "response")
+        
+        uut!!.enqueue(
+                Request.Builder<String>()
+                        .post(RequestBody("text/plain", "request".toByteArray()))
+                        .url("https://example.com/metrics")
+                        .lane(Lane.ENGAGE)
+                        .maxRetries(1)
+                        .build(),
+                ResponseBodyConverter.STRING,
+                mock())
+        Thread.sleep(100)
+        
+        with(metrics.single()) {
+            assertThat(lane).isEqualTo(Lane.ENGAGE)
+            assertThat(url).isEqualTo("https://example.com/metrics")
+            assertThat(code).isEqualTo(200)
+            assertThat(isSuccessful).isTrue()
+            assertThat(retries).isEqualTo(1)
+            assertThat(requestBytes).isEqualTo(7L)
+            assertThat(responseBytes).isEqualTo(8L)
+            assertThat(timeToFirstByte).isAtLeast(0L)
+            assertThat(totalTime).isAtLeast(timeToFirstByte)
+        }
+        with(uut!!.networkStats) {
+            assertThat(getTimings(Lane.ENGAGE).requests).isEqualTo(1L)
+            assertThat(getTimings(Lane.ENGAGE).failures).isEqualTo(0L)
+            assertThat(getTimings(Lane.COLLECT).requests).isEqualTo(0L)
+        }
+    }
+    
+    @Test
+    fun deferrableRequestParkedUntilConnected() {
+        val connectivity = FakeConnectivity(false)
+        val listener = mock<RequestListener<Void>>()
+        uut = NetworkDispatcher(UrlConnectionTransport.DEFAULT, null, connectivity)
+        
+        server!!.enqueue(MockResponse().setResponseCode(200))
+        
+        uut!!.enqueue(
+                Request.Builder<Void>()
+                        .get()
+                        .url(server!!.url("/collect").toString())
+                        .lane(Lane.COLLECT)
+                        .build(),
+                listener)
+        Thread.sleep(100)
+        
+        assertThat(server!!.requestCount).isEqualTo(0)
+        assertThat(uut!!.getStats(Lane.COLLECT).parked).isEqualTo(1)
+        
+        connectivity.connect()
+        server!!.takeRequest()
+        Thread.sleep(100)
+        RuntimeEnvironment.getMasterScheduler().advanceToLastPostedRunnable()
+        
+        verify(listener).onCompleted(any())
+        assertThat(uut!!.getStats(Lane.COLLECT).parked).isEqualTo(0)
+    }
+    
+    @Test
+    fun cancelledParkedRequestNotResumedAndListenerNotified() {
+        val connectivity = FakeConnectivity(false)
+        val listener = mock<RequestListener<Void>>()
+        uut = NetworkDispatcher(UrlConnectionTransport.DEFAULT, null, connectivity)
+        
+        uut!!.enqueue(
+                Request.Builder<Void>()
+                        .get()
+                        .url(server!!.url("/fetch").toString())
+                        .lane(Lane.FETCH)
+                        .build(),
+                listener).cancel()
+        
+        connectivity.connect()
+        Thread.sleep(100)
+        RuntimeEnvironment.getMasterScheduler().advanceToLastPostedRunnable()
+        
+        assertThat(server!!.requestCount).isEqualTo(0)
+        assertThat(uut!!.getStats(Lane.FETCH).parked).isEqualTo(0)
+        verify(listener).onError(isA<CancellationException>())
+        verifyNoMoreInteractions(listener)
+    }
+    
+    @Test
+    fun engageFailsFastWhenNotConnected() {
+        val listener = mock<RequestListener<Void>>()
+        uut = NetworkDispatcher(UrlConnectionTransport.DEFAULT, null, FakeConnectivity(false))
+        
+        uut!!.enqueue(
+                Request.Builder<Void>()
+                        .get()
+                        .url(server!!.url("/engage").toString())
+                        .lane(Lane.ENGAGE)
+                        .build(),
+                listener)
+        RuntimeEnvironment.getMasterScheduler().advanceToLastPostedRunnable()
+        
+        assertThat(server!!.requestCount).isEqualTo(0)
+        verify(listener).onError(isA<ConnectException>())
+        assertThat(uut!!.getStats(Lane.ENGAGE).failed).isEqualTo(1L)
+    }
+    
     @Test
     fun failureRetriesRequest() {
         val responseBody = "not found"
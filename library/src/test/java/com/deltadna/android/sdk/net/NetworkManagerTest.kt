@@ -17,8 +17,12 @@
 package com.deltadna.android.sdk.net
 
 import com.deltadna.android.sdk.helpers.Settings
+import com.deltadna.android.sdk.listeners.RequestListener
 import com.google.common.truth.Truth.assertThat
+import com.nhaarman.mockito_kotlin.argThat
 import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.timeout
+import com.nhaarman.mockito_kotlin.verify
 import com.nhaarman.mockito_kotlin.whenever
 import com.squareup.okhttp.mockwebserver.MockResponse
 import com.squareup.okhttp.mockwebserver.MockWebServer
@@ -202,6 +206,135 @@ class NetworkManagerTest {
         assertThat(dst.delete()).isTrue()
     }
     
+    @Test
+    fun fetchResumesPartialDownload() {
+        val dst = File.createTempFile("ddnasdk-test-", ".tmp")
+        assertThat(dst.delete()).isTrue()
+        val partial = File(dst.path + ".part")
+        partial.writeText("respo", Charset.forName("UTF-8"))
+        val validator = File(dst.path + ".part.validator")
+        validator.writeText("\"a\"", Charset.forName("UTF-8"))
+        
+        server!!.enqueue(MockResponse()
+                .setResponseCode(206)
+                .setHeader("Content-Range", "bytes 5-7/8")
+                .setBody("nse"))
+        
+        uut!!.fetch(server!!.url("/file").toString(), dst, mock())
+        
+        with(server!!.takeRequest()) {
+            assertThat(path).isEqualTo("/file")
+            assertThat(getHeader("Range")).isEqualTo("bytes=5-")
+            assertThat(getHeader("If-Range")).isEqualTo("\"a\"")
+        }
+        
+        Thread.sleep(1000)
+        assertThat(dst.readText(Charset.forName("UTF-8"))).isEqualTo("response")
+        assertThat(partial.exists()).isFalse()
+        assertThat(validator.exists()).isFalse()
+        assertThat(dst.delete()).isTrue()
+    }
+    
+    @Test
+    fun fetchRestartsPartialDownloadWithoutValidator() {
+        val dst = File.createTempFile("ddnasdk-test-", ".tmp")
+        assertThat(dst.delete()).isTrue()
+        val partial = File(dst.path + ".part")
+        partial.writeText("stale", Charset.forName("UTF-8"))
+        
+        server!!.enqueue(MockResponse()
+                .setResponseCode(200)
+                .setBody("response"))
+        
+        uut!!.fetch(server!!.url("/file").toString(), dst, mock())
+        
+        with(server!!.takeRequest()) {
+            assertThat(getHeader("Range")).isNull()
+            assertThat(getHeader("If-Range")).isNull()
+        }
+        
+        Thread.sleep(1000)
+        assertThat(dst.readText(Charset.forName("UTF-8"))).isEqualTo("response")
+        assertThat(dst.delete()).isTrue()
+    }
+    
+    @Test
+    fun fetchDiscardsPartialDownloadOnUnexpectedRange() {
+        val dst = File.createTempFile("ddnasdk-test-", ".tmp")
+        assertThat(dst.delete()).isTrue()
+        val partial = File(dst.path + ".part")
+        partial.writeText("respo", Charset.forName("UTF-8"))
+        File(dst.path + ".part.validator").writeText("\"a\"", Charset.forName("UTF-8"))
+        
+        server!!.enqueue(MockResponse()
+                .setResponseCode(206)
+                .setHeader("Content-Range", "bytes 0-7/8")
+                .setBody("response"))
+        
+        uut!!.fetch(server!!.url("/file").toString(), dst, mock())
+        
+        assertThat(server!!.takeRequest().getHeader("Range")).isEqualTo("bytes=5-")
+        
+        Thread.sleep(1000)
+        assertThat(partial.exists()).isFalse()
+        assertThat(dst.exists()).isFalse()
+    }
+    
+    @Test
+    fun fetchRestartsPartialDownloadWhenRangeIgnored() {
+        val dst = File.createTempFile("ddnasdk-test-", ".tmp")
+        assertThat(dst.delete()).isTrue()
+        val partial = File(dst.path + ".part")
+        partial.writeText("stale", Charset.forName("UTF-8"))
+        File(dst.path + ".part.validator").writeText("\"a\"", Charset.forName("UTF-8"))
+        
+        server!!.enqueue(MockResponse()
+                .setResponseCode(200)
+                .setBody("response"))
+        
+        uut!!.fetch(server!!.url("/file").toString(), dst, mock())
+        
+        assertThat(server!!.takeRequest().getHeader("Range")).isEqualTo("bytes=5-")
+        
+        Thread.sleep(1000)
+        assertThat(dst.readText(Charset.forName("UTF-8"))).isEqualTo("response")
+        assertThat(partial.exists()).isFalse()
+        assertThat(dst.delete()).isTrue()
+    }
+    
+    @Test
+    fun fetchNotModified() {
+        val dst = File.createTempFile("ddnasdk-test-", ".tmp")
+        dst.writeText("cached", Charset.forName("UTF-8"))
+        val listener = mock<RequestListener<Download>>()
+        
+        server!!.enqueue(MockResponse()
+                .setResponseCode(304)
+                .setHeader("ETag", "\"b\"")
+                .setHeader("Cache-Control", "public, max-age=60"))
+        
+        uut!!.fetch(
+                server!!.url("/file").toString(),
+                dst,
+                "\"a\"",
+                "Tue, 01 Jan 2019 00:00:00 GMT",
+                listener)
+        
+        with(server!!.takeRequest()) {
+            assertThat(getHeader("If-None-Match")).isEqualTo("\"a\"")
+            assertThat(getHeader("If-Modified-Since"))
+                    .isEqualTo("Tue, 01 Jan 2019 00:00:00 GMT")
+            assertThat(getHeader("Range")).isNull()
+        }
+        
+        verify(listener, timeout(1000)).onCompleted(argThat {
+            body.isNotModified
+                    && body.getETag() == "\"b\""
+                    && body.maxAge == 60L })
+        assertThat(dst.readText(Charset.forName("UTF-8"))).isEqualTo("cached")
+        assertThat(dst.delete()).isTrue()
+    }
+    
     companion object {
         
         private val ENV_KEY = "env_key"
@@ -17,6 +17,7 @@
 package com.deltadna.android.sdk.net
 
 import com.google.common.truth.Truth.assertThat
+import com.squareup.okhttp.internal.SslContextBuilder
 import com.squareup.okhttp.mockwebserver.MockResponse
 import com.squareup.okhttp.mockwebserver.MockWebServer
 import org.junit.After
@@ -25,6 +26,12 @@ import org.junit.Test
 import org.junit.runner.RunWith
 import org.junit.runners.JUnit4
 import java.net.ConnectException
+import java.net.InetAddress
+import java.net.Socket
+import java.util.concurrent.atomic.AtomicInteger
+import javax.net.ssl.HostnameVerifier
+import javax.net.ssl.SSLSocket
+import javax.net.ssl.SSLSocketFactory
 
 @RunWith(JUnit4::class)
 class RequestTest {
@@ -127,6 +134,62 @@ class RequestTest {
                 responseBody))
     }
     
+    @Test
+    fun connectionsReused() {
+        val handshakes = AtomicInteger()
+        val factory = CountingSocketFactory(
+                SslContextBuilder.localhost().socketFactory,
+                handshakes)
+        val connections = Connections(factory, HostnameVerifier { _, _ -> true })
+        
+        server!!.useHttps(SslContextBuilder.localhost().socketFactory, false)
+        listOf("/engage", "/collect", "/image").forEach {
+            server!!.enqueue(MockResponse().setResponseCode(200).setBody(it))
+        }
+        
+        listOf("/engage", "/collect", "/image").forEachIndexed { i, path ->
+            val request = Request.Builder<String>()
+                    .get()
+                    .url(server!!.url(path).toString())
+                    .build()
+                    .setTransport(UrlConnectionTransport(connections))
+                    .setConverter(ResponseBodyConverter.STRING)
+            assertThat(request.call().body).isEqualTo(path)
+            assertThat(server!!.takeRequest().sequenceNumber).isEqualTo(i)
+            assertThat(request.metrics().isConnectionReused).isEqualTo(i > 0)
+        }
+        
+        assertThat(handshakes.get()).isEqualTo(1)
+    }
+    
+    @Test
+    fun customTransport() {
+        val transport = FakeTransport()
+        transport.enqueue(200, "response")
+        
+        val response = Request.Builder<String>()
+                .post(RequestBody("text/plain", "request".toByteArray()))
+                .header("Accept", "text/plain")
+                .url("https://example.com/post")
+                .connectionTimeout(1000)
+                .build()
+                .setTransport(transport)
+                .setConverter(ResponseBodyConverter.STRING)
+                .call()
+        
+        with(transport.requests.single()) {
+            assertThat(url.toString()).isEqualTo("https://example.com/post")
+            assertThat(method).isEqualTo("POST")
+            assertThat(headers).containsEntry("Accept", "text/plain")
+            assertThat(contentType).isEqualTo("text/plain")
+            assertThat(String(body!!)).isEqualTo("request")
+            assertThat(connectionTimeout).isEqualTo(1000)
+        }
+        assertThat(response.body).isEqualTo("response")
+        assertThat(transport.closed).isEqualTo(1)
+        assertThat(transport.disconnected).isEqualTo(0)
+    }
+    
     @Test(expected = ConnectException::class)
     fun failure() {
         server!!.shutdown()
@@ -137,4 +200,37 @@ class RequestTest {
                 .build()
                 .call()
     }
+    
+    private class CountingSocketFactory(
+            private val delegate: SSLSocketFactory,
+            private val handshakes: AtomicInteger) : SSLSocketFactory() {
+        
+        override fun getDefaultCipherSuites(): Array<String> =
+                delegate.defaultCipherSuites
+        
+        override fun getSupportedCipherSuites(): Array<String> =
+                delegate.supportedCipherSuites
+        
+        override fun createSocket(s: Socket, host: String, port: Int, autoClose: Boolean) =
+                count(delegate.createSocket(s, host, port, autoClose))
+        
+        override fun createSocket(host: String, port: Int) =
+                count(delegate.createSocket(host, port))
+        
+        override fun createSocket(host: String, port: Int, localHost: InetAddress, localPort: Int) =
+                count(delegate.createSocket(host, port, localHost, localPort))
+        
+        override fun createSocket(host: InetAddress, port: Int) =
+                count(delegate.createSocket(host, port))
+        
+        override fun createSocket(address: InetAddress, port: Int, localAddress: InetAddress, localPort: Int) =
+                count(delegate.createSocket(address, port, localAddress, localPort))
+        
+        private fun count(socket: Socket): Socket {
+            (socket as SSLSocket).addHandshakeCompletedListener {
+                handshakes.incrementAndGet()
+            }
+            return socket
+        }
+    }
 }
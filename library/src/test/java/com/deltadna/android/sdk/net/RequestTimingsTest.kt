@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 deltaDNA Ltd. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deltadna.android.sdk.net
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+@RunWith(JUnit4::class)
+class RequestTimingsTest {
+    
+    private val uut = RequestTimings()
+    
+    @Test
+    fun percentiles() {
+        (100 downTo 1).forEach { uut.record(metrics(Lane.COLLECT, 200, it.toLong())) }
+        uut.record(metrics(Lane.COLLECT, -1, -1))
+        
+        with(uut.stats.getTimings(Lane.COLLECT)) {
+            assertThat(requests).isEqualTo(101L)
+            assertThat(failures).isEqualTo(1L)
+            assertThat(totalTime.p50).isEqualTo(50L)
+            assertThat(totalTime.p95).isEqualTo(95L)
+            assertThat(totalTime.p99).isEqualTo(99L)
+            assertThat(timeToFirstByte.p99).isEqualTo(99L)
+            // unknown timings are not sampled
+            assertThat(connectTime).isEqualTo(NetworkStats.Percentiles.EMPTY)
+        }
+        assertThat(uut.stats.getTimings(Lane.ENGAGE).requests).isEqualTo(0L)
+    }
+    
+    @Test
+    fun percentilesOverRecentRequests() {
+        (1..1000).forEach { uut.record(metrics(Lane.FETCH, 200, it.toLong())) }
+        
+        with(uut.stats.getTimings(Lane.FETCH)) {
+            assertThat(requests).isEqualTo(1000L)
+            assertThat(totalTime.p50).isGreaterThan(872L)
+        }
+    }
+    
+    private fun metrics(lane: Lane, code: Int, time: Long) = RequestMetrics(
+            lane,
+            "https://example.com",
+            code,
+            0,
+            -1,
+            time,
+            time,
+            0,
+            0,
+            0,
+            false)
+}
@@ -19,6 +19,7 @@ package com.deltadna.android.sdk.net
 import com.google.common.truth.Truth.assertThat
 import com.nhaarman.mockito_kotlin.*
 import nl.jqno.equalsverifier.EqualsVerifier
+import org.json.JSONObject
 import org.junit.Assert.fail
 import org.junit.Test
 import org.junit.runner.RunWith
@@ -87,7 +88,7 @@ class ResponseTest {
                 assertThat(body).isEqualTo(String(bytes))
                 assertThat(error).isNull()
             }
-            verify(stream, times(input.size + 1)).read()
+            verify(stream, never()).read()
             verify(stream).close()
         }
     }
@@ -107,11 +108,43 @@ class ResponseTest {
                 assertThat(body).isNull()
                 assertThat(error).isEqualTo(String(bytes))
             }
-            verify(stream, times(input.size + 1)).read()
+            verify(stream, never()).read()
             verify(stream).close()
         }
     }
     
+    @Test
+    fun streamingConverterDoesNotKeepBytes() {
+        with(mock<HttpURLConnection>()) {
+            val input = "{\"a\":1}".toByteArray()
+            val stream = spy(ByteArrayInputStream(input))
+            whenever(this.responseCode).thenReturn(200)
+            whenever(this.contentLength).thenReturn(input.size)
+            whenever(this.inputStream).thenReturn(stream)
+            
+            with(Response.create<JSONObject>(this, ResponseBodyConverter.JSON)) {
+                assertThat(code).isEqualTo(200)
+                assertThat(bytes).isNull()
+                assertThat(body!!.getInt("a")).isEqualTo(1)
+                assertThat(error).isNull()
+            }
+            verify(stream, never()).read()
+            verify(stream).close()
+        }
+    }
+    
+    @Test
+    fun readInBulk() {
+        val input = ByteArray(20000) { it.toByte() }
+        
+        assertThat(Response.read(ByteArrayInputStream(input), input.size))
+                .isEqualTo(input)
+        assertThat(Response.read(ByteArrayInputStream(input), -1))
+                .isEqualTo(input)
+        assertThat(Response.read(ByteArrayInputStream(input), input.size + 1))
+                .isEqualTo(input)
+    }
+    
     @Test
     fun createWithStreamingInput() {
         val input = arrayOf("lorem ", "ipsum")